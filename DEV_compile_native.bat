@@ -0,0 +1,9 @@
+@echo off
+
+:: optional, needs JDK 22 or later. Run DEV_compile.bat first, the
+:: rest of the library is loaded from classes/
+set first=src-jdk22/com/vincentcodes/io/*.java
+:: .java files are in encoding UTF-8
+javac -encoding UTF-8 --release 22 -d classes -cp ./classes %first%
+
+pause
\ No newline at end of file
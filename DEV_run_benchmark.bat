@@ -0,0 +1,12 @@
+@echo off
+
+:: needs jmh-core, jmh-generator-annprocess and their dependencies
+:: (jopt-simple, commons-math3) inside lib/
+set first=src/com/vincentcodes/io/*.java src/com/vincentcodes/io/udpframes/*.java src/com/vincentcodes/test/benchmark/*.java
+:: .java files are in encoding UTF-8
+javac -encoding UTF-8 --release 10 -d benchmarks -cp ./lib/*;./src/ %first%
+
+:: pass a regex to run only some of them (eg. "Frame|Report")
+java -Dfile.encoding=UTF-8 -cp ./lib/*;./benchmarks; org.openjdk.jmh.Main -rf json -rff bench_result.json %*
+
+pause
\ No newline at end of file
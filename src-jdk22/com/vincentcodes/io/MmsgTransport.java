@@ -0,0 +1,414 @@
+package com.vincentcodes.io;
+
+import java.io.IOException;
+import java.lang.foreign.Arena;
+import java.lang.foreign.FunctionDescriptor;
+import java.lang.foreign.Linker;
+import java.lang.foreign.MemoryLayout;
+import java.lang.foreign.MemorySegment;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static java.lang.foreign.ValueLayout.ADDRESS;
+import static java.lang.foreign.ValueLayout.JAVA_BYTE;
+import static java.lang.foreign.ValueLayout.JAVA_INT;
+import static java.lang.foreign.ValueLayout.JAVA_LONG;
+import static java.lang.foreign.ValueLayout.JAVA_SHORT;
+
+/**
+ * A connected udp socket which moves its packets in batches, one
+ * {@code recvmmsg} call reads up to {@link #BATCH} packets and one
+ * {@code sendmmsg} call sends up to {@link #BATCH} of them. The socket
+ * is called through the Foreign Function &amp; Memory API, this class
+ * needs JDK 22 and Linux (x86_64 or aarch64).
+ * <p>
+ * It is built separately from the rest of the library (which targets
+ * Java 10) and is only loaded through {@link NativeTransport}, which
+ * falls back to a {@link DatagramTransport} when it cannot be used.
+ * <p>
+ * Packets sent are copied into native memory and held back until the
+ * batch is full or {@link #flush()} is called. Packets received are
+ * read ahead into native memory, {@link #receive(ByteBuffer)} hands
+ * them out one at a time and only calls the kernel once they are all
+ * taken.
+ */
+final class MmsgTransport implements PacketTransport{
+    /**
+     * Packets per system call
+     */
+    static final int BATCH = 32;
+
+    // Linux (the same on x86_64 and aarch64)
+    private static final int AF_INET = 2;
+    private static final int AF_INET6 = 10;
+    private static final int SOCK_DGRAM = 2;
+    private static final int SOL_SOCKET = 1;
+    private static final int SO_RCVBUF = 8;
+    private static final int SO_RCVTIMEO = 20;
+    private static final int MSG_WAITFORONE = 0x10000;
+    private static final int SHUT_RDWR = 2;
+    private static final int EINTR = 4;
+    private static final int EAGAIN = 11;
+    private static final int ENOBUFS = 105;
+    private static final int ECONNREFUSED = 111;
+
+    private static final int RECEIVE_BUFFER_SIZE = 65536;
+
+    /**
+     * A closed socket is noticed by a blocked receive() within this time
+     * at the latest (shutdown() usually wakes it up right away)
+     */
+    private static final long RECEIVE_TIMEOUT_MICROS = 200_000;
+
+    // struct sockaddr_in / sockaddr_in6
+    private static final int SOCKADDR_IN_LENGTH = 16;
+    private static final int SOCKADDR_IN6_LENGTH = 28;
+    // struct iovec { void *iov_base; size_t iov_len; }
+    private static final int IOVEC_LENGTH = 16;
+    private static final int IOV_LEN_OFFSET = 8;
+    // struct mmsghdr { struct msghdr msg_hdr; unsigned int msg_len; }, the
+    // name of a connected socket is NULL and no control data is used
+    private static final int MMSGHDR_LENGTH = 64;
+    private static final int MSG_IOV_OFFSET = 16;
+    private static final int MSG_IOVLEN_OFFSET = 24;
+    private static final int MSG_LEN_OFFSET = 56;
+
+    private static final MethodHandle SOCKET;
+    private static final MethodHandle BIND;
+    private static final MethodHandle CONNECT;
+    private static final MethodHandle GETSOCKNAME;
+    private static final MethodHandle SETSOCKOPT;
+    private static final MethodHandle SHUTDOWN;
+    private static final MethodHandle CLOSE;
+    private static final MethodHandle RECVMMSG;
+    private static final MethodHandle SENDMMSG;
+    private static final long ERRNO_OFFSET;
+
+    static{
+        Linker linker = Linker.nativeLinker();
+        Linker.Option errno = Linker.Option.captureCallState("errno");
+        SOCKET = downcall(linker, errno, "socket", FunctionDescriptor.of(JAVA_INT, JAVA_INT, JAVA_INT, JAVA_INT));
+        BIND = downcall(linker, errno, "bind", FunctionDescriptor.of(JAVA_INT, JAVA_INT, ADDRESS, JAVA_INT));
+        CONNECT = downcall(linker, errno, "connect", FunctionDescriptor.of(JAVA_INT, JAVA_INT, ADDRESS, JAVA_INT));
+        GETSOCKNAME = downcall(linker, errno, "getsockname", FunctionDescriptor.of(JAVA_INT, JAVA_INT, ADDRESS, ADDRESS));
+        SETSOCKOPT = downcall(linker, errno, "setsockopt", FunctionDescriptor.of(JAVA_INT, JAVA_INT, JAVA_INT, JAVA_INT, ADDRESS, JAVA_INT));
+        // nothing can be done if closing fails, the results are dropped
+        SHUTDOWN = MethodHandles.dropReturn(downcall(linker, errno, "shutdown", FunctionDescriptor.of(JAVA_INT, JAVA_INT, JAVA_INT)));
+        CLOSE = MethodHandles.dropReturn(downcall(linker, errno, "close", FunctionDescriptor.of(JAVA_INT, JAVA_INT)));
+        RECVMMSG = downcall(linker, errno, "recvmmsg", FunctionDescriptor.of(JAVA_INT, JAVA_INT, ADDRESS, JAVA_INT, JAVA_INT, ADDRESS));
+        SENDMMSG = downcall(linker, errno, "sendmmsg", FunctionDescriptor.of(JAVA_INT, JAVA_INT, ADDRESS, JAVA_INT, JAVA_INT));
+        ERRNO_OFFSET = Linker.Option.captureStateLayout().byteOffset(MemoryLayout.PathElement.groupElement("errno"));
+    }
+
+    private static MethodHandle downcall(Linker linker, Linker.Option errno, String name, FunctionDescriptor descriptor){
+        MemorySegment symbol = linker.defaultLookup().find(name)
+            .orElseThrow(() -> new UnsupportedOperationException(name + "() is not available"));
+        return linker.downcallHandle(symbol, descriptor, errno);
+    }
+
+    /**
+     * Packets of one direction: their bytes, one iovec and one mmsghdr
+     * each
+     */
+    private static class Batch{
+        final MemorySegment buffers;
+        final MemorySegment iovecs;
+        final MemorySegment messages;
+        final MemorySegment callState;
+
+        Batch(Arena arena, int slotLength){
+            buffers = arena.allocate((long)BATCH * slotLength, 8);
+            iovecs = arena.allocate((long)BATCH * IOVEC_LENGTH, 8);
+            messages = arena.allocate((long)BATCH * MMSGHDR_LENGTH, 8);
+            callState = arena.allocate(Linker.Option.captureStateLayout());
+            for(int i = 0; i < BATCH; i++){
+                iovecs.set(ADDRESS, (long)i * IOVEC_LENGTH, buffers.asSlice((long)i * slotLength, slotLength));
+                iovecs.set(JAVA_LONG, (long)i * IOVEC_LENGTH + IOV_LEN_OFFSET, slotLength);
+                messages.set(ADDRESS, (long)i * MMSGHDR_LENGTH + MSG_IOV_OFFSET, iovecs.asSlice((long)i * IOVEC_LENGTH, IOVEC_LENGTH));
+                messages.set(JAVA_LONG, (long)i * MMSGHDR_LENGTH + MSG_IOVLEN_OFFSET, 1);
+            }
+        }
+
+        int errno(){
+            return callState.get(JAVA_INT, ERRNO_OFFSET);
+        }
+    }
+
+    private final int fd;
+    private final Arena arena = Arena.ofShared();
+    private final InetSocketAddress remote;
+    private final int slotLength;
+    private final int localPort;
+
+    private final Object receiveLock = new Object();
+    private final Batch in; // guarded by receiveLock
+    private int received = 0; // packets in the batch, guarded by receiveLock
+    private int next = 0; // next packet to hand out, guarded by receiveLock
+
+    private final Object sendLock = new Object();
+    private final Batch out; // guarded by sendLock
+    private int pending = 0; // packets held back, guarded by sendLock
+
+    private final MemorySegment closeState; // shutdown() and close() only
+    private final AtomicBoolean closed = new AtomicBoolean();
+
+    /**
+     * @param local address to bind to, port 0 picks a free port
+     * @param remote address of the peer
+     * @param maxPacketLength larger packets are cut when they are
+     * received and cannot be sent
+     */
+    MmsgTransport(InetSocketAddress local, InetSocketAddress remote, int maxPacketLength) throws IOException{
+        if(remote.isUnresolved())
+            throw new SocketException("Unresolved address: " + remote);
+        this.remote = remote;
+        this.slotLength = maxPacketLength;
+        boolean ipv6 = remote.getAddress() instanceof Inet6Address;
+        try{
+            in = new Batch(arena, slotLength);
+            out = new Batch(arena, slotLength);
+            closeState = arena.allocate(Linker.Option.captureStateLayout());
+            MemorySegment state = in.callState;
+            fd = (int)SOCKET.invokeExact(state, ipv6? AF_INET6 : AF_INET, SOCK_DGRAM, 0);
+            if(fd < 0) throw error("socket", in.errno());
+        }catch(IOException | RuntimeException | Error e){
+            arena.close();
+            throw e;
+        }catch(Throwable e){
+            arena.close();
+            throw new IOException(e);
+        }
+        try{
+            MemorySegment state = in.callState;
+            MemorySegment value = arena.allocate(16, 8);
+            value.set(JAVA_INT, 0, RECEIVE_BUFFER_SIZE);
+            check("setsockopt", (int)SETSOCKOPT.invokeExact(state, fd, SOL_SOCKET, SO_RCVBUF, value, 4));
+            // struct timeval { time_t tv_sec; suseconds_t tv_usec; }
+            value.set(JAVA_LONG, 0, RECEIVE_TIMEOUT_MICROS / 1_000_000);
+            value.set(JAVA_LONG, 8, RECEIVE_TIMEOUT_MICROS % 1_000_000);
+            check("setsockopt", (int)SETSOCKOPT.invokeExact(state, fd, SOL_SOCKET, SO_RCVTIMEO, value, 16));
+
+            InetAddress localAddress = local.getAddress();
+            if(localAddress == null || localAddress.isAnyLocalAddress())
+                localAddress = ipv6? InetAddress.getByName("::") : InetAddress.getByName("0.0.0.0");
+            MemorySegment address = sockaddr(localAddress, local.getPort());
+            check("bind", (int)BIND.invokeExact(state, fd, address, (int)address.byteSize()));
+            address = sockaddr(remote.getAddress(), remote.getPort());
+            check("connect", (int)CONNECT.invokeExact(state, fd, address, (int)address.byteSize()));
+
+            MemorySegment name = arena.allocate(SOCKADDR_IN6_LENGTH, 8);
+            MemorySegment nameLength = arena.allocate(JAVA_INT);
+            nameLength.set(JAVA_INT, 0, SOCKADDR_IN6_LENGTH);
+            check("getsockname", (int)GETSOCKNAME.invokeExact(state, fd, name, nameLength));
+            localPort = (name.get(JAVA_BYTE, 2) & 0xff) << 8 | (name.get(JAVA_BYTE, 3) & 0xff);
+        }catch(Throwable e){
+            closeNative();
+            if(e instanceof IOException) throw (IOException)e;
+            if(e instanceof RuntimeException) throw (RuntimeException)e;
+            if(e instanceof Error) throw (Error)e;
+            throw new IOException(e);
+        }
+    }
+
+    private MemorySegment sockaddr(InetAddress address, int port){
+        byte[] bytes = address.getAddress();
+        boolean ipv6 = address instanceof Inet6Address;
+        MemorySegment sockaddr = arena.allocate(ipv6? SOCKADDR_IN6_LENGTH : SOCKADDR_IN_LENGTH, 8);
+        sockaddr.set(JAVA_SHORT, 0, (short)(ipv6? AF_INET6 : AF_INET));
+        // the port is in network byte order
+        sockaddr.set(JAVA_BYTE, 2, (byte)(port >>> 8));
+        sockaddr.set(JAVA_BYTE, 3, (byte)port);
+        MemorySegment.copy(MemorySegment.ofArray(bytes), 0, sockaddr, ipv6? 8 : 4, bytes.length);
+        if(ipv6)
+            sockaddr.set(JAVA_INT, 24, ((Inet6Address)address).getScopeId());
+        return sockaddr;
+    }
+
+    private void check(String call, int result) throws IOException{
+        if(result < 0) throw error(call, in.errno());
+    }
+
+    private static IOException error(String call, int errno){
+        return new SocketException(call + "() failed, errno " + errno);
+    }
+
+    @Override
+    public void send(ByteBuffer datagram) throws IOException{
+        synchronized(sendLock){
+            long offset = reserve(datagram.remaining());
+            copy(datagram, offset);
+            pending++;
+        }
+    }
+
+    @Override
+    public void send(ByteBuffer header, ByteBuffer payload, ByteBuffer trailer) throws IOException{
+        synchronized(sendLock){
+            long offset = reserve(header.remaining() + payload.remaining() + trailer.remaining());
+            offset = copy(header, offset);
+            offset = copy(payload, offset);
+            copy(trailer, offset);
+            pending++;
+        }
+    }
+
+    /**
+     * Takes the next slot of the batch, the batch is sent first if it is
+     * full
+     * @return offset of the slot
+     */
+    private long reserve(int length) throws IOException{
+        if(closed.get())
+            throw new SocketException("Socket is closed");
+        if(length > slotLength)
+            throw new IOException("Packet of " + length + " bytes, at most " + slotLength + " bytes can be sent");
+        if(pending == BATCH)
+            sendPending();
+        out.iovecs.set(JAVA_LONG, (long)pending * IOVEC_LENGTH + IOV_LEN_OFFSET, length);
+        return (long)pending * slotLength;
+    }
+
+    private long copy(ByteBuffer src, long offset){
+        int length = src.remaining();
+        MemorySegment.copy(MemorySegment.ofBuffer(src), 0, out.buffers, offset, length);
+        src.position(src.limit());
+        return offset + length;
+    }
+
+    @Override
+    public void flush() throws IOException{
+        synchronized(sendLock){
+            if(pending == 0) return;
+            if(closed.get())
+                throw new SocketException("Socket is closed");
+            sendPending();
+        }
+    }
+
+    /**
+     * Like a full socket buffer, a packet the kernel refuses is lost
+     */
+    private void sendPending() throws IOException{
+        int sent = 0;
+        try{
+            while(sent < pending){
+                int count;
+                try{
+                    count = (int)SENDMMSG.invokeExact(out.callState, fd,
+                        out.messages.asSlice((long)sent * MMSGHDR_LENGTH), pending - sent, 0);
+                }catch(Throwable e){
+                    throw new IOException(e);
+                }
+                if(count > 0){
+                    sent += count;
+                    continue;
+                }
+                int errno = out.errno();
+                if(errno == EINTR) continue;
+                if(errno == ECONNREFUSED || errno == ENOBUFS || errno == EAGAIN){
+                    // the peer is not up (yet) or the queue is full
+                    sent++;
+                    continue;
+                }
+                throw error("sendmmsg", errno);
+            }
+        }finally{
+            pending = 0;
+        }
+    }
+
+    @Override
+    public void receive(ByteBuffer dst) throws IOException{
+        synchronized(receiveLock){
+            while(next == received){
+                receiveBatch();
+            }
+            int length = in.messages.get(JAVA_INT, (long)next * MMSGHDR_LENGTH + MSG_LEN_OFFSET);
+            length = Math.min(Math.min(length, slotLength), dst.remaining());
+            MemorySegment.copy(in.buffers, (long)next * slotLength, MemorySegment.ofBuffer(dst), 0, length);
+            dst.position(dst.position() + length);
+            next++;
+        }
+    }
+
+    /**
+     * Blocks until at least one packet arrives, takes every packet which
+     * is already there (up to {@link #BATCH})
+     */
+    private void receiveBatch() throws IOException{
+        while(true){
+            if(closed.get())
+                throw new SocketException("Socket is closed");
+            int count;
+            try{
+                count = (int)RECVMMSG.invokeExact(in.callState, fd, in.messages, BATCH, MSG_WAITFORONE, MemorySegment.NULL);
+            }catch(Throwable e){
+                throw new IOException(e);
+            }
+            // shutdown() makes the call return an empty packet
+            if(closed.get())
+                throw new SocketException("Socket is closed");
+            if(count > 0){
+                received = count;
+                next = 0;
+                return;
+            }
+            int errno = in.errno();
+            if(errno == EINTR || errno == EAGAIN || errno == ECONNREFUSED)
+                continue; // ECONNREFUSED: an earlier packet did not reach the peer
+            throw error("recvmmsg", errno);
+        }
+    }
+
+    /**
+     * @return the port bound to
+     */
+    public int getLocalPort(){
+        return localPort;
+    }
+
+    @Override
+    public InetSocketAddress getRemoteAddress(){
+        return remote;
+    }
+
+    @Override
+    public String getRemoteName(){
+        return remote.getHostString() + ":" + remote.getPort();
+    }
+
+    @Override
+    public boolean isClosed(){
+        return closed.get();
+    }
+
+    /**
+     * Packets held back are discarded
+     */
+    @Override
+    public void close() throws IOException{
+        if(!closed.compareAndSet(false, true)) return;
+        try{
+            // wakes up the listener blocked in recvmmsg
+            SHUTDOWN.invokeExact(closeState, fd, SHUT_RDWR);
+        }catch(Throwable ignored){}
+        synchronized(receiveLock){
+            synchronized(sendLock){
+                closeNative();
+            }
+        }
+    }
+
+    private void closeNative(){
+        try{
+            CLOSE.invokeExact(closeState, fd);
+        }catch(Throwable ignored){}
+        arena.close();
+    }
+}
@@ -0,0 +1,101 @@
+package com.vincentcodes.io;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.SocketException;
+import java.net.StandardSocketOptions;
+
+import com.vincentcodes.io.udpframes.Frame;
+
+/**
+ * One thread calling the blocking {@link DatagramSocket#receive(DatagramPacket)}.
+ * All sockets send through the same DatagramSocket.
+ */
+class BlockingServerEngine extends ServerEngine{
+    private final DatagramSocket serverSocket;
+    private final DatagramPacket packetIn;
+
+    /**
+     * @param reusePort bind with SO_REUSEPORT, so that other engines can 
+     * listen on the same port
+     */
+    public BlockingServerEngine(UdpServerSocket server, int port, boolean reliable, boolean reusePort) throws IOException{
+        super(server, reliable, false);
+        if(reusePort){
+            this.serverSocket = new DatagramSocket(null);
+            if(!serverSocket.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT)){
+                serverSocket.close();
+                throw new SocketException("SO_REUSEPORT is not supported on this platform");
+            }
+            serverSocket.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+            serverSocket.bind(new InetSocketAddress(port));
+        }else this.serverSocket = new DatagramSocket(port);
+        this.packetIn = new DatagramPacket(new byte[0], 0);
+
+        serverSocket.setReceiveBufferSize(65536);
+    }
+
+    @Override
+    public void start(){
+        new Thread("UdpServerSocket connection and data listener"){
+            public void run(){
+                try{
+                    while(!serverSocket.isClosed()){
+                        // Receive a connection (with data, necessary)
+                        // straight into the buffer of a pooled frame
+                        Frame datagram = framePool.acquire();
+                        packetIn.setData(datagram.getBuffer().array());
+                        serverSocket.receive(packetIn);
+
+                        datagram.getBuffer().limit(packetIn.getLength());
+                        dispatch((InetSocketAddress)packetIn.getSocketAddress(), datagram);
+                    }
+                }catch(Exception e){
+                    if(!server.isClosed()) e.printStackTrace();
+                    server.close();
+                }
+                return;
+            }
+        }.start();
+    }
+
+    @Override
+    protected PeerTransport createTransport(InetSocketAddress destAddr){
+        return new DatagramSocketPeer(serverSocket, destAddr);
+    }
+
+    @Override
+    public int getLocalPort(){
+        return serverSocket.getLocalPort();
+    }
+
+    @Override
+    public InetAddress getLocalAddress(){
+        return serverSocket.getLocalAddress();
+    }
+
+    @Override
+    public SocketAddress getLocalSocketAddress(){
+        return serverSocket.getLocalSocketAddress();
+    }
+
+    @Override
+    public void setSoTimeout(int timeoutMs) throws IOException{
+        serverSocket.setSoTimeout(timeoutMs);
+    }
+
+    @Override
+    public void setBroadcast(boolean on) throws IOException{
+        serverSocket.setBroadcast(on);
+    }
+
+    @Override
+    public void close(){
+        serverSocket.close();
+        super.close();
+    }
+}
@@ -1,5 +1,5 @@
 package com.vincentcodes.io;
 
 class BooleanContainer {
-    boolean value = false;
+    volatile boolean value = false;
 }
@@ -0,0 +1,53 @@
+package com.vincentcodes.io;
+
+/**
+ * Decides how many frames a connection may have in flight (the
+ * congestion window). The window of a connection is the smaller one of
+ * the congestion window and {@link UdpSocket#getWindowSize()}.
+ * <p>
+ * One controller belongs to one socket, it keeps its state across
+ * messages. Calls are made while the sender state is locked, so a
+ * controller is never called by 2 threads at the same time.
+ * @see NewRenoController
+ * @see DelayBasedController
+ * @see UdpSocket#setCongestionController(CongestionController)
+ */
+public interface CongestionController {
+    /**
+     * Frames are acknowledged for the first time
+     * @param frames number of frames acknowledged by one report
+     * @param rttNanos rtt sample taken from the report, -1 if the report
+     * gives no sample
+     */
+    void onAck(int frames, long rttNanos);
+
+    /**
+     * A frame is detected as lost from a report. It is called at most once
+     * per window of data (once per loss event).
+     */
+    void onLoss();
+
+    /**
+     * Every frame which caused the last loss event turned out to be
+     * acknowledged the first time it was sent (it was re-ordered or
+     * delayed, not lost). The window should go back to where it was
+     * before {@link #onLoss()}. Ignored by default.
+     */
+    default void onSpuriousLoss(){}
+
+    /**
+     * No report arrived within the retransmission timeout
+     */
+    void onTimeout();
+
+    /**
+     * @return the congestion window in frames (at least 1)
+     */
+    int getWindow();
+
+    /**
+     * @return true if the window is still growing exponentially, frames
+     * are paced faster in this case
+     */
+    boolean inSlowStart();
+}
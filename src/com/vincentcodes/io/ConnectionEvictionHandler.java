@@ -0,0 +1,11 @@
+package com.vincentcodes.io;
+
+/**
+ * Called when {@link UdpServerSocket} drops an idle connection. The
+ * socket is already closed.
+ * @see UdpServerSocket#setIdleTimeout(long)
+ */
+@FunctionalInterface
+public interface ConnectionEvictionHandler {
+    void handle(UdpSocket socket);
+}
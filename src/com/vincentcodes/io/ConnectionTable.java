@@ -0,0 +1,387 @@
+package com.vincentcodes.io;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+/**
+ * The sockets of a shard of a {@link UdpServerSocket} by the address of
+ * their peer.
+ * <p>
+ * The key is a long made of the address and the port
+ * ({@code address << 16 | port}, for IPv4 the hash code of the address
+ * is the address itself), so looking up the socket of a datagram builds
+ * no string and allocates nothing. Keys are not unique for IPv6, the
+ * address of the socket is compared as well.
+ * <p>
+ * The table is split into segments, each of them is an open addressing
+ * hash table guarded by its own lock. Every shard has its own table
+ * (the kernel sends the packets of a peer to the same shard), the
+ * timer of the shard sweeps it in the background: sockets which
+ * received nothing for the idle timeout are closed and removed, closed
+ * sockets are removed as well.
+ * <p>
+ * The connection limit applies to the whole server, the tables of all
+ * shards count their sockets in one shared counter. Once it reaches the
+ * maximum number of connections, datagrams of new peers are dropped
+ * until some connections are gone (evicting active connections instead
+ * would let a flood of new addresses kick out every peer).
+ */
+class ConnectionTable {
+    /**
+     * Number of segments (power of 2)
+     */
+    private static final int SEGMENTS = 64;
+
+    private static final long MIN_SWEEP_INTERVAL_MS = 100;
+    private static final long MAX_SWEEP_INTERVAL_MS = 1000;
+
+    private static class Entry{
+        final long key;
+        final UdpSocketServerImpl socket;
+        volatile long lastReceived; // ConnectionTable.clock
+
+        Entry(long key, UdpSocketServerImpl socket, long now){
+            this.key = key;
+            this.socket = socket;
+            this.lastReceived = now;
+        }
+    }
+
+    /**
+     * Linear probing, at most half full
+     */
+    private static class Segment{
+        long[] keys = new long[16];
+        Entry[] entries = new Entry[16];
+        int size = 0;
+
+        Entry get(long key, InetAddress address, int port){
+            int mask = entries.length - 1;
+            for(int i = index(key, mask); entries[i] != null; i = (i + 1) & mask){
+                if(keys[i] == key && matches(entries[i].socket, address, port))
+                    return entries[i];
+            }
+            return null;
+        }
+
+        void put(Entry entry){
+            if((size + 1) * 2 > entries.length)
+                resize(entries.length * 2);
+            insert(entry);
+            size++;
+        }
+
+        private void insert(Entry entry){
+            int mask = entries.length - 1;
+            int i = index(entry.key, mask);
+            while(entries[i] != null){
+                i = (i + 1) & mask;
+            }
+            keys[i] = entry.key;
+            entries[i] = entry;
+        }
+
+        boolean remove(Entry entry){
+            int mask = entries.length - 1;
+            int i = index(entry.key, mask);
+            while(entries[i] != entry){
+                if(entries[i] == null) return false;
+                i = (i + 1) & mask;
+            }
+            // Shift the following entries back, so that no lookup stops
+            // at the hole before reaching them
+            int hole = i;
+            for(int j = (hole + 1) & mask; entries[j] != null; j = (j + 1) & mask){
+                int home = index(keys[j], mask);
+                // move it if its home slot is not between the hole and j
+                if(((j - home) & mask) >= ((j - hole) & mask)){
+                    keys[hole] = keys[j];
+                    entries[hole] = entries[j];
+                    hole = j;
+                }
+            }
+            entries[hole] = null;
+            keys[hole] = 0;
+            size--;
+            return true;
+        }
+
+        private void resize(int capacity){
+            Entry[] old = entries;
+            keys = new long[capacity];
+            entries = new Entry[capacity];
+            for(Entry entry : old){
+                if(entry != null) insert(entry);
+            }
+        }
+    }
+
+    private final Segment[] segments = new Segment[SEGMENTS];
+    private final AtomicInteger size = new AtomicInteger();
+    private final AtomicInteger total; // sockets of every shard
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder rejections = new LongAdder();
+
+    /**
+     * Nanos, updated by every sweep. Reading the clock for every packet
+     * costs more than the lookup itself, the idle timeout does not need
+     * that precision.
+     */
+    private volatile long clock = System.nanoTime();
+    private volatile int maxConnections = Integer.MAX_VALUE;
+    private volatile long idleTimeoutNanos = 0;
+    private volatile ConnectionEvictionHandler evictionHandler;
+    private final HashedWheelTimer.Timeout sweepTimeout;
+
+    /**
+     * @param timer sweeps the table periodically
+     * @param total counts the sockets of every table of the server, the
+     * connection limit applies to it
+     */
+    public ConnectionTable(HashedWheelTimer timer, AtomicInteger total){
+        this.total = total;
+        for(int i = 0; i < SEGMENTS; i++){
+            segments[i] = new Segment();
+        }
+        sweepTimeout = timer.schedule(this::sweep, MAX_SWEEP_INTERVAL_MS);
+    }
+
+    /**
+     * Find the socket of a peer and mark it as active
+     * @return null if the peer has no socket
+     */
+    public UdpSocketServerImpl get(InetSocketAddress remoteAddr){
+        InetAddress address = remoteAddr.getAddress();
+        int port = remoteAddr.getPort();
+        long key = key(address, port);
+        Segment segment = segmentOf(key);
+        Entry entry;
+        synchronized(segment){
+            entry = segment.get(key, address, port);
+        }
+        if(entry == null) return null;
+        long now = clock;
+        if(entry.lastReceived != now)
+            entry.lastReceived = now;
+        return entry.socket;
+    }
+
+    /**
+     * Take a slot for a new peer before its socket is built, so that a
+     * flood of new addresses is turned away without allocating anything.
+     * The slot is filled by {@link #add(UdpSocketServerImpl)} or given 
+     * back by {@link #cancelReservation()}.
+     * @return false if the server is full
+     */
+    public boolean tryReserve(){
+        if(total.incrementAndGet() > maxConnections){
+            total.decrementAndGet();
+            rejections.increment();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Give back a slot taken by {@link #tryReserve()} which is not used
+     */
+    public void cancelReservation(){
+        total.decrementAndGet();
+    }
+
+    /**
+     * Count a new peer turned away after its slot was reserved (eg. its
+     * socket could not be built). The slot is given back separately.
+     */
+    public void countRejection(){
+        rejections.increment();
+    }
+
+    /**
+     * Add a socket into the slot taken by {@link #tryReserve()}
+     */
+    public void add(UdpSocketServerImpl socket){
+        size.incrementAndGet();
+        long key = key(socket.getRemoteAddress(), socket.getRemotePort());
+        Segment segment = segmentOf(key);
+        synchronized(segment){
+            segment.put(new Entry(key, socket, clock));
+        }
+    }
+
+    /**
+     * Remove a socket (usually because it is closed)
+     */
+    public void remove(UdpSocketServerImpl socket){
+        long key = key(socket.getRemoteAddress(), socket.getRemotePort());
+        Segment segment = segmentOf(key);
+        synchronized(segment){
+            Entry entry = segment.get(key, socket.getRemoteAddress(), socket.getRemotePort());
+            if(entry == null || entry.socket != socket || !segment.remove(entry)) return;
+        }
+        size.decrementAndGet();
+        total.decrementAndGet();
+    }
+
+    /**
+     * Remove the closed sockets and close the idle ones
+     */
+    private void sweep(){
+        long idleTimeout = idleTimeoutNanos;
+        long now = System.nanoTime();
+        // the last packet may have arrived up to one sweep after the
+        // clock read by get()
+        long evictBefore = now - idleTimeout - TimeUnit.MILLISECONDS.toNanos(getSweepInterval());
+        clock = now;
+        List<Entry> removed = new ArrayList<>();
+        List<Entry> evicted = new ArrayList<>();
+        for(Segment segment : segments){
+            synchronized(segment){
+                for(Entry entry : segment.entries){
+                    if(entry == null) continue;
+                    if(entry.socket.isClosed())
+                        removed.add(entry);
+                    else if(idleTimeout > 0 && entry.lastReceived - evictBefore < 0)
+                        evicted.add(entry);
+                }
+                for(Entry entry : removed){
+                    segment.remove(entry);
+                }
+                for(Entry entry : evicted){
+                    segment.remove(entry);
+                }
+            }
+            size.addAndGet(-removed.size() - evicted.size());
+            total.addAndGet(-removed.size() - evicted.size());
+            evictions.add(evicted.size());
+            removed.clear();
+            for(Entry entry : evicted){
+                try{
+                    entry.socket.close();
+                }catch(Exception ignored){}
+                ConnectionEvictionHandler handler = evictionHandler;
+                if(handler != null){
+                    try{
+                        handler.handle(entry.socket);
+                    }catch(Exception e){
+                        e.printStackTrace();
+                    }
+                }
+            }
+            evicted.clear();
+        }
+        sweepTimeout.reset(getSweepInterval());
+    }
+
+    private long getSweepInterval(){
+        long idleTimeoutMs = TimeUnit.NANOSECONDS.toMillis(idleTimeoutNanos);
+        if(idleTimeoutMs == 0) return MAX_SWEEP_INTERVAL_MS;
+        return Math.max(MIN_SWEEP_INTERVAL_MS, Math.min(MAX_SWEEP_INTERVAL_MS, idleTimeoutMs / 4));
+    }
+
+    /**
+     * @param timeoutMs 0 never evicts idle sockets
+     */
+    public void setIdleTimeout(long timeoutMs){
+        idleTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+        sweepTimeout.reset(getSweepInterval());
+    }
+
+    public long getIdleTimeout(){
+        return TimeUnit.NANOSECONDS.toMillis(idleTimeoutNanos);
+    }
+
+    public void setMaxConnections(int connections){
+        maxConnections = connections;
+    }
+
+    public int getMaxConnections(){
+        return maxConnections;
+    }
+
+    public void setEvictionHandler(ConnectionEvictionHandler handler){
+        evictionHandler = handler;
+    }
+
+    /**
+     * Run the action for every socket in the table. The segments are 
+     * locked one at a time, the action runs outside of the locks.
+     */
+    public void forEach(Consumer<UdpSocketServerImpl> action){
+        List<UdpSocketServerImpl> sockets = new ArrayList<>();
+        for(Segment segment : segments){
+            synchronized(segment){
+                for(Entry entry : segment.entries){
+                    if(entry != null) sockets.add(entry.socket);
+                }
+            }
+            for(UdpSocketServerImpl socket : sockets){
+                action.accept(socket);
+            }
+            sockets.clear();
+        }
+    }
+
+    /**
+     * @return idle sockets closed and removed so far
+     */
+    public long getEvictions(){
+        return evictions.sum();
+    }
+
+    /**
+     * @return new peers turned away because the server was full or their
+     * socket could not be built
+     */
+    public long getRejections(){
+        return rejections.sum();
+    }
+
+    /**
+     * @return sockets in this table (ie. of this shard)
+     */
+    public int size(){
+        return size.get();
+    }
+
+    /**
+     * Stops sweeping
+     */
+    public void close(){
+        sweepTimeout.cancel();
+    }
+
+    private Segment segmentOf(long key){
+        return segments[(int)(mix(key) >>> 58) & (SEGMENTS - 1)];
+    }
+
+    private static int index(long key, int mask){
+        return (int)mix(key) & mask;
+    }
+
+    private static boolean matches(UdpSocketServerImpl socket, InetAddress address, int port){
+        return socket.getRemotePort() == port && socket.getRemoteAddress().equals(address);
+    }
+
+    private static long key(InetAddress address, int port){
+        return ((long)address.hashCode() << 16) | port;
+    }
+
+    /**
+     * Spreads the bits of the key (the finalizer of MurmurHash3)
+     */
+    private static long mix(long key){
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        key *= 0xc4ceb9fe1a85ec53L;
+        key ^= key >>> 33;
+        return key;
+    }
+}
@@ -2,7 +2,10 @@ package com.vincentcodes.io;
 
 /**
  * Time decreases by 1ms
+ * @deprecated every timer is a thread which wakes up every 1ms, use
+ * {@link HashedWheelTimer} instead
  */
+@Deprecated
 public class CountdownTimer extends Thread{
     private final int TIME;
     private int timelapsed = 0;
@@ -0,0 +1,36 @@
+package com.vincentcodes.io;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+
+/**
+ * Sends packets to one peer through a (shared) blocking DatagramSocket
+ */
+class DatagramSocketPeer extends PeerTransport{
+    private final DatagramSocket socket;
+    private final DatagramPacket outPacket;
+
+    public DatagramSocketPeer(DatagramSocket socket, InetSocketAddress destAddr){
+        super(destAddr, false);
+        this.socket = socket;
+        this.outPacket = new DatagramPacket(new byte[0], 0, destAddr);
+    }
+
+    @Override
+    public void send(ByteBuffer datagram) throws IOException{
+        if(!datagram.hasArray()){
+            byte[] bytes = new byte[datagram.remaining()];
+            datagram.get(bytes);
+            datagram = ByteBuffer.wrap(bytes);
+        }
+        // reports are sent by the listener thread as well
+        synchronized(outPacket){
+            outPacket.setData(datagram.array(), datagram.arrayOffset() + datagram.position(), datagram.remaining());
+            socket.send(outPacket);
+        }
+        datagram.position(datagram.limit());
+    }
+}
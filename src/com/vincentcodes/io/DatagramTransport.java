@@ -0,0 +1,118 @@
+package com.vincentcodes.io;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.PortUnreachableException;
+import java.net.SocketException;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+
+/**
+ * A udp transport between 2 fixed addresses. Unlike
+ * {@link UdpSocket#create(String, int)}, both sides are equal (there is
+ * no server), which is handy to put another transport in between (eg.
+ * {@link ImpairedTransport}).
+ */
+public class DatagramTransport implements PacketTransport{
+    private final DatagramChannel channel;
+    private final InetSocketAddress remote;
+    private final ByteBuffer[] gather = new ByteBuffer[3]; // guarded by gather
+
+    /**
+     * @param local address to bind to, port 0 picks a free port
+     * @param remote address of the peer
+     */
+    public DatagramTransport(InetSocketAddress local, InetSocketAddress remote) throws IOException{
+        this.channel = DatagramChannel.open();
+        try{
+            channel.setOption(StandardSocketOptions.SO_RCVBUF, 65536);
+            channel.bind(local);
+            channel.connect(remote);
+        }catch(IOException e){
+            channel.close();
+            throw e;
+        }
+        this.remote = remote;
+    }
+
+    /**
+     * Bind to a free port on every interface
+     */
+    public DatagramTransport(String host, int port) throws IOException{
+        this(new InetSocketAddress(0), new InetSocketAddress(host, port));
+    }
+
+    @Override
+    public void send(ByteBuffer datagram) throws IOException{
+        try{
+            channel.write(datagram);
+        }catch(PortUnreachableException e){
+            // the peer is not up (yet), the packet is lost
+        }
+    }
+
+    @Override
+    public void send(ByteBuffer header, ByteBuffer payload, ByteBuffer trailer) throws IOException{
+        synchronized(gather){
+            gather[0] = header;
+            gather[1] = payload;
+            gather[2] = trailer;
+            try{
+                channel.write(gather);
+            }catch(PortUnreachableException e){
+                // the peer is not up (yet), the packet is lost
+            }finally{
+                gather[0] = null;
+                gather[1] = null;
+                gather[2] = null;
+            }
+        }
+    }
+
+    @Override
+    public void receive(ByteBuffer dst) throws IOException{
+        while(true){
+            try{
+                if(channel.read(dst) >= 0) return;
+                throw new SocketException("Socket is closed");
+            }catch(PortUnreachableException e){
+                // an earlier packet did not reach the peer, keep waiting
+            }
+        }
+    }
+
+    /**
+     * Enable/disable SO_BROADCAST
+     */
+    public void setBroadcast(boolean on) throws SocketException{
+        channel.socket().setBroadcast(on);
+    }
+
+    /**
+     * @return the port bound to
+     */
+    public int getLocalPort(){
+        return channel.socket().getLocalPort();
+    }
+
+    @Override
+    public InetSocketAddress getRemoteAddress(){
+        return remote;
+    }
+
+    @Override
+    public String getRemoteName(){
+        return remote.getHostString() + ":" + remote.getPort();
+    }
+
+    @Override
+    public boolean isClosed(){
+        return !channel.isOpen();
+    }
+
+    @Override
+    public void close() throws IOException{
+        channel.close();
+    }
+}
@@ -0,0 +1,99 @@
+package com.vincentcodes.io;
+
+/**
+ * Delay based congestion control similar to TCP Vegas. It keeps the
+ * queues on the path short instead of filling them until a packet is
+ * dropped, which suits shared links and small receive buffers.
+ * <p>
+ * Once per round trip, the number of frames queued on the path is
+ * estimated from the rtt:
+ * <pre>
+ * queued = cwnd * (rtt - baseRtt) / rtt
+ * </pre>
+ * where baseRtt is the lowest rtt seen. The window grows by 1 frame if
+ * fewer than {@link #ALPHA} frames are queued and shrinks by 1 frame
+ * if more than {@link #BETA} frames are queued. Losses and timeouts are
+ * handled like {@link NewRenoController}, spurious loss events are
+ * undone as well.
+ */
+public class DelayBasedController implements CongestionController{
+    public static final int INITIAL_WINDOW = NewRenoController.INITIAL_WINDOW;
+    public static final int MIN_WINDOW = NewRenoController.MIN_WINDOW;
+
+    /**
+     * Lower / upper bound of the frames queued on the path
+     */
+    public static final int ALPHA = 2;
+    public static final int BETA = 4;
+
+    private static final int MAX_WINDOW = 1 << 16;
+
+    private int cwnd = INITIAL_WINDOW;
+    private int ssthresh = MAX_WINDOW;
+    private int priorCwnd = INITIAL_WINDOW; // before the last loss event
+    private int priorSsthresh = MAX_WINDOW;
+    private long baseRtt = Long.MAX_VALUE;
+    private long minRttOfRound = Long.MAX_VALUE;
+    private int ackedInRound = 0;
+
+    @Override
+    public synchronized void onAck(int frames, long rttNanos){
+        if(rttNanos > 0){
+            baseRtt = Math.min(baseRtt, rttNanos);
+            minRttOfRound = Math.min(minRttOfRound, rttNanos);
+        }
+        ackedInRound += frames;
+        if(ackedInRound < cwnd) return;
+
+        // a window of frames is acknowledged, one round trip has passed
+        ackedInRound = 0;
+        if(minRttOfRound == Long.MAX_VALUE){
+            // no sample in this round
+            if(cwnd < ssthresh) cwnd = Math.min(cwnd * 2, MAX_WINDOW);
+            return;
+        }
+        double queued = cwnd * (double)(minRttOfRound - baseRtt) / minRttOfRound;
+        minRttOfRound = Long.MAX_VALUE;
+        if(cwnd < ssthresh){
+            if(queued > ALPHA)
+                ssthresh = cwnd; // leave slow start once queues build up
+            else cwnd = Math.min(cwnd * 2, MAX_WINDOW);
+        }else if(queued < ALPHA){
+            cwnd = Math.min(cwnd + 1, MAX_WINDOW);
+        }else if(queued > BETA){
+            cwnd = Math.max(cwnd - 1, MIN_WINDOW);
+        }
+    }
+
+    @Override
+    public synchronized void onLoss(){
+        priorCwnd = cwnd;
+        priorSsthresh = ssthresh;
+        ssthresh = Math.max(cwnd / 2, MIN_WINDOW);
+        cwnd = ssthresh;
+        ackedInRound = 0;
+    }
+
+    @Override
+    public synchronized void onSpuriousLoss(){
+        cwnd = Math.max(cwnd, priorCwnd);
+        ssthresh = Math.max(ssthresh, priorSsthresh);
+    }
+
+    @Override
+    public synchronized void onTimeout(){
+        ssthresh = Math.max(cwnd / 2, MIN_WINDOW);
+        cwnd = 1;
+        ackedInRound = 0;
+    }
+
+    @Override
+    public synchronized int getWindow(){
+        return cwnd;
+    }
+
+    @Override
+    public synchronized boolean inSlowStart(){
+        return cwnd < ssthresh;
+    }
+}
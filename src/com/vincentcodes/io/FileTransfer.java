@@ -0,0 +1,141 @@
+package com.vincentcodes.io;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Sends a file over a stream straight from a mapped file, and receives
+ * it straight into a mapped file. The heap used does not depend on the
+ * size of the file.
+ * <p>
+ * The transfer goes like this:
+ * <ol>
+ * <li>the sender sends the size of the file (8 bytes)</li>
+ * <li>the receiver prepares the file and answers with an empty message,
+ * from now on the messages of the stream are written into the file</li>
+ * <li>the sender sends the file in regions of {@link #REGION_SIZE} bytes,
+ * one message each. The frames are read from the mapped region of the
+ * file (retransmissions read it again).</li>
+ * <li>the receiver maps the region of a message once its first frame
+ * arrives, every frame is written at its offset as soon as it arrives</li>
+ * </ol>
+ * Both sides must not use the stream for anything else during the
+ * transfer.
+ */
+class FileTransfer {
+    /**
+     * Bytes of the file per message
+     */
+    public static final int REGION_SIZE = 1 << 26;
+
+    /**
+     * Regions which are queued or in flight at the same time, so that
+     * not the whole file is mapped at once
+     */
+    private static final int MAX_QUEUED_REGIONS = 4;
+
+    private static final int HEADER_LENGTH = 8;
+
+    /**
+     * Maps the regions of the file being received
+     */
+    private static class Regions implements ReceiveWindow.Sink{
+        private final FileChannel channel;
+        private final long size;
+        private volatile IOException failure;
+
+        Regions(FileChannel channel, long size){
+            this.channel = channel;
+            this.size = size;
+        }
+
+        @Override
+        public ByteBuffer open(int index){
+            long position = (long)index * REGION_SIZE;
+            if(index < 0 || position >= size) return null;
+            try{
+                return channel.map(FileChannel.MapMode.READ_WRITE, position, Math.min(REGION_SIZE, size - position));
+            }catch(IOException e){
+                failure = e;
+                return null;
+            }
+        }
+    }
+
+    private FileTransfer(){}
+
+    /**
+     * Returns once the whole file is acknowledged
+     * @throws IOException if the file cannot be read, the receiver does
+     * not answer within the read timeout or stops responding
+     */
+    public static void send(UdpStream stream, Path path) throws IOException{
+        UdpSocket socket = stream.getSocket();
+        try(FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)){
+            long size = channel.size();
+            stream.send(ByteBuffer.allocate(HEADER_LENGTH).putLong(0, size));
+            if(stream.recv() == null)
+                throw new IOException("Socket is closed");
+
+            ArrayDeque<CompletableFuture<Void>> queued = new ArrayDeque<>();
+            for(long position = 0; position < size; position += REGION_SIZE){
+                if(queued.size() >= MAX_QUEUED_REGIONS)
+                    socket.awaitAcked(queued.pollFirst());
+                MappedByteBuffer region = channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(REGION_SIZE, size - position));
+                queued.add(stream.sendAsync(region));
+            }
+            while(!queued.isEmpty()){
+                socket.awaitAcked(queued.pollFirst());
+            }
+        }
+    }
+
+    /**
+     * Receives a file sent by {@link #send(UdpStream, Path)}, the file
+     * is created or replaced
+     * @return the size of the file
+     * @throws IOException if the file cannot be written, nothing arrives
+     * within the read timeout or the stream carries something else
+     */
+    public static long receive(UdpStream stream, Path path) throws IOException{
+        byte[] header = stream.recv();
+        if(header == null)
+            throw new IOException("Socket is closed");
+        if(header.length != HEADER_LENGTH)
+            throw new IOException("Expected the size of a file, got a message of " + header.length + " bytes");
+        long size = ByteBuffer.wrap(header).getLong();
+        if(size < 0)
+            throw new IOException("Invalid file size: " + size);
+
+        try(FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.READ, StandardOpenOption.WRITE)){
+            // allocate the whole file up front
+            if(size > 0)
+                channel.write(ByteBuffer.allocate(1), size - 1);
+            Regions regions = new Regions(channel, size);
+            stream.setSink(regions);
+            try{
+                stream.send(new byte[0]);
+                long regionCount = (size + REGION_SIZE - 1) / REGION_SIZE;
+                for(long i = 0; i < regionCount; i++){
+                    byte[] message = stream.recv();
+                    if(message == null)
+                        throw new IOException("Socket is closed");
+                    if(regions.failure != null)
+                        throw regions.failure;
+                    if(message.length != 0)
+                        throw new IOException("Unexpected message during a file transfer");
+                }
+            }finally{
+                stream.setSink(null);
+            }
+        }
+        return size;
+    }
+}
@@ -0,0 +1,289 @@
+package com.vincentcodes.io;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A hashed timing wheel driven by one thread. It replaces the thread
+ * per operation {@link CountdownTimer}. Scheduling, cancelling and
+ * resetting a timeout are O(1) and do not allocate.
+ * <p>
+ * Time is read from {@link System#nanoTime()}, so a timeout does not
+ * drift even if the thread wakes up late. A timeout fires at most one
+ * tick late. The thread sleeps until the earliest deadline, not every
+ * tick.
+ * <p>
+ * Tasks run on the timer thread, they should be short.
+ */
+public class HashedWheelTimer implements Closeable{
+    public static final long DEFAULT_TICK_MS = 1;
+    public static final int DEFAULT_WHEEL_SIZE = 512;
+
+    private static HashedWheelTimer shared;
+
+    /**
+     * A scheduled task. It can be cancelled or reset any number of times,
+     * even after it has fired.
+     */
+    public static class Timeout{
+        private final HashedWheelTimer timer;
+        private final VoidFunction task;
+        private long delayMs;
+
+        // guarded by the timer
+        private long deadlineTick;
+        private int bucket = -1; // -1 if not scheduled
+        private Timeout prev;
+        private Timeout next;
+        private boolean collected = false; // due, its task is about to run
+        private volatile boolean expired = false;
+
+        private Timeout(HashedWheelTimer timer, VoidFunction task, long delayMs){
+            this.timer = timer;
+            this.task = task;
+            this.delayMs = delayMs;
+        }
+
+        /**
+         * The task will not run (unless it is reset afterwards)
+         */
+        public void cancel(){
+            timer.remove(this);
+        }
+
+        /**
+         * Start counting the delay from now again
+         */
+        public void reset(){
+            expired = false;
+            timer.add(this);
+        }
+
+        /**
+         * Start counting a new delay from now
+         */
+        public void reset(long delayMs){
+            this.delayMs = delayMs;
+            reset();
+        }
+
+        public long getDelay(){
+            return delayMs;
+        }
+
+        /**
+         * @return true if the task has run since the last schedule / reset
+         */
+        public boolean isExpired(){
+            return expired;
+        }
+    }
+
+    private final String name;
+    private final long tickNanos;
+    private final Timeout[] wheel; // heads of the buckets
+    private final int mask;
+    private final long startTime;
+
+    private long currentTick = 0; // all ticks before it are processed
+    private int pending = 0;
+    private long wakeTick = Long.MAX_VALUE; // the worker sleeps until then
+    private Thread worker;
+    private final ArrayList<Timeout> due = new ArrayList<>(); // worker only
+    private volatile boolean closed = false;
+
+    public HashedWheelTimer(String name){
+        this(name, DEFAULT_TICK_MS, DEFAULT_WHEEL_SIZE);
+    }
+
+    /**
+     * @param tickMs precision of the timer
+     * @param wheelSize number of buckets, rounded up to a power of 2
+     */
+    public HashedWheelTimer(String name, long tickMs, int wheelSize){
+        if(tickMs < 1 || wheelSize < 1)
+            throw new IllegalArgumentException("Tick and wheel size must be positive");
+        int size = Integer.highestOneBit(wheelSize);
+        if(size < wheelSize) size <<= 1;
+        this.name = name;
+        this.tickNanos = TimeUnit.MILLISECONDS.toNanos(tickMs);
+        this.wheel = new Timeout[size];
+        this.mask = size - 1;
+        this.startTime = System.nanoTime();
+    }
+
+    /**
+     * @return the timer used by client sockets
+     */
+    public static synchronized HashedWheelTimer getShared(){
+        if(shared == null)
+            shared = new HashedWheelTimer("UdpSocket shared timer");
+        return shared;
+    }
+
+    /**
+     * Run {@code task} after {@code delayMs}
+     */
+    public Timeout schedule(VoidFunction task, long delayMs){
+        Timeout timeout = new Timeout(this, task, delayMs);
+        add(timeout);
+        return timeout;
+    }
+
+    private synchronized void add(Timeout timeout){
+        if(closed) return;
+        unlink(timeout);
+        long ticks = Math.max(1, (TimeUnit.MILLISECONDS.toNanos(timeout.delayMs) + tickNanos - 1) / tickNanos);
+        timeout.collected = false;
+        timeout.deadlineTick = tick() + ticks;
+        int bucket = (int)(timeout.deadlineTick & mask);
+        timeout.bucket = bucket;
+        timeout.prev = null;
+        timeout.next = wheel[bucket];
+        if(wheel[bucket] != null)
+            wheel[bucket].prev = timeout;
+        wheel[bucket] = timeout;
+        pending++;
+        if(worker == null){
+            start();
+        }else if(timeout.deadlineTick < wakeTick){
+            wakeTick = timeout.deadlineTick;
+            LockSupport.unpark(worker);
+        }
+    }
+
+    private synchronized void remove(Timeout timeout){
+        timeout.collected = false;
+        unlink(timeout);
+    }
+
+    private void unlink(Timeout timeout){
+        if(timeout.bucket == -1) return;
+        if(timeout.prev != null)
+            timeout.prev.next = timeout.next;
+        else wheel[timeout.bucket] = timeout.next;
+        if(timeout.next != null)
+            timeout.next.prev = timeout.prev;
+        timeout.prev = null;
+        timeout.next = null;
+        timeout.bucket = -1;
+        pending--;
+    }
+
+    private long tick(){
+        return (System.nanoTime() - startTime) / tickNanos;
+    }
+
+    private void start(){
+        worker = new Thread(name){
+            @Override
+            public void run(){
+                while(!closed){
+                    collectExpired();
+                    for(int i = 0; i < due.size(); i++){
+                        Timeout timeout = due.get(i);
+                        if(!claim(timeout)) continue;
+                        try{
+                            timeout.task.apply();
+                        }catch(Exception e){
+                            e.printStackTrace();
+                        }
+                    }
+                    due.clear();
+                    waitForNextDeadline();
+                }
+            }
+        };
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    /**
+     * Moves the expired timeouts out of the wheel into {@link #due}
+     */
+    private synchronized void collectExpired(){
+        long now = tick();
+        // Jump over the empty wheel after a long sleep, every bucket is 
+        // visited at most once
+        if(pending == 0) currentTick = now;
+        else currentTick = Math.max(currentTick, now - mask);
+        for(; currentTick <= now; currentTick++){
+            Timeout timeout = wheel[(int)(currentTick & mask)];
+            while(timeout != null){
+                Timeout next = timeout.next;
+                if(timeout.deadlineTick <= now){
+                    unlink(timeout);
+                    timeout.collected = true;
+                    due.add(timeout);
+                }
+                timeout = next;
+            }
+            if(currentTick == now) break;
+        }
+    }
+
+    /**
+     * A collected timeout may have been reset or cancelled while the tasks
+     * before it ran
+     * @return true if the task of {@code timeout} should run now
+     */
+    private synchronized boolean claim(Timeout timeout){
+        if(!timeout.collected) return false;
+        timeout.collected = false;
+        timeout.expired = true;
+        return true;
+    }
+
+    /**
+     * Sleeps until the earliest deadline, add() wakes the thread up if an 
+     * earlier one is scheduled in the meantime
+     */
+    private void waitForNextDeadline(){
+        long deadline;
+        synchronized(this){
+            if(pending == 0) currentTick = tick();
+            wakeTick = pending == 0? Long.MAX_VALUE : nextDeadline();
+            deadline = wakeTick;
+        }
+        if(deadline == Long.MAX_VALUE){
+            // Nothing is scheduled
+            LockSupport.park(this);
+            return;
+        }
+        long sleepNanos = startTime + deadline * tickNanos - System.nanoTime();
+        if(sleepNanos > 0)
+            LockSupport.parkNanos(this, sleepNanos);
+    }
+
+    /**
+     * Walks the buckets from the current tick on. A timeout due within one
+     * turn of the wheel sits in the bucket of its deadline, so the first
+     * one found is the earliest.
+     * @return the earliest deadline tick
+     */
+    private long nextDeadline(){
+        long earliest = Long.MAX_VALUE;
+        for(long tick = currentTick + 1; tick <= currentTick + wheel.length; tick++){
+            for(Timeout timeout = wheel[(int)(tick & mask)]; timeout != null; timeout = timeout.next){
+                if(timeout.deadlineTick <= tick)
+                    return timeout.deadlineTick;
+                earliest = Math.min(earliest, timeout.deadlineTick);
+            }
+        }
+        return earliest;
+    }
+
+    /**
+     * Stops the timer thread, pending tasks never run
+     */
+    @Override
+    public void close(){
+        closed = true;
+        synchronized(this){
+            if(worker != null)
+                LockSupport.unpark(worker);
+        }
+    }
+}
@@ -0,0 +1,288 @@
+package com.vincentcodes.io;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Wraps another transport and makes the network worse on purpose: the
+ * packets sent can be lost (at random or in bursts), delayed, shuffled,
+ * duplicated or held back by a bandwidth cap. It is meant for testing
+ * on a single machine, where loopback never loses anything.
+ * <p>
+ * Only the outgoing packets are impaired, wrap the transports of both
+ * sides to impair both directions. Every decision is drawn from a
+ * {@link Random} with a fixed seed, so the same packets sent in the same
+ * order get the same fate on every run.
+ * <pre>
+ * ImpairedTransport transport = new ImpairedTransport(new DatagramTransport(local, remote), 42);
+ * transport.setLoss(0.02);
+ * transport.setDelay(20, 5);
+ * UdpSocket socket = UdpSocket.create(transport);
+ * // or, for a client and the connections of a server
+ * UdpSocket client = UdpSocket.create(host, port, t -&gt; new ImpairedTransport(t, 1));
+ * server.setTransportWrapper(t -&gt; new ImpairedTransport(t, 2));
+ * </pre>
+ * Everything is off by default. Delayed packets are sent by the thread
+ * "Impairment" once they are due, it flushes the wrapped transport when
+ * no other packet is due.
+ */
+public class ImpairedTransport implements PacketTransport{
+    private final PacketTransport transport;
+    private final Random random;
+    private final DelayQueue<Packet> queue = new DelayQueue<>();
+    private final Thread sender;
+
+    // guarded by this
+    private double loss = 0;
+    private double burstRate = 0;
+    private double burstExit = 1;
+    private boolean inBurst = false;
+    private long delayNanos = 0;
+    private long jitterNanos = 0;
+    private double reorderRate = 0;
+    private long reorderNanos = 0;
+    private double duplicateRate = 0;
+    private long bytesPerSecond = 0;
+    private long maxQueueNanos = 0;
+    private long linkFree = 0; // time the last packet leaves the capped link
+    private long sequence = 0;
+
+    private volatile long sent = 0;
+    private volatile long dropped = 0;
+    private volatile long reordered = 0;
+    private volatile long duplicated = 0;
+
+    private static class Packet implements Delayed{
+        final byte[] data;
+        final long due;
+        final long sequence;
+
+        Packet(byte[] data, long due, long sequence){
+            this.data = data;
+            this.due = due;
+            this.sequence = sequence;
+        }
+
+        @Override
+        public long getDelay(TimeUnit unit){
+            return unit.convert(due - System.nanoTime(), TimeUnit.NANOSECONDS);
+        }
+
+        @Override
+        public int compareTo(Delayed o){
+            Packet other = (Packet)o;
+            int result = Long.compare(due, other.due);
+            return result != 0? result : Long.compare(sequence, other.sequence);
+        }
+    }
+
+    /**
+     * @param seed the same seed gives the same losses, delays, etc.
+     */
+    public ImpairedTransport(PacketTransport transport, long seed){
+        this.transport = transport;
+        this.random = new Random(seed);
+        this.sender = new Thread("Impairment"){
+            @Override
+            public void run(){
+                try{
+                    while(!isClosed()){
+                        transport.send(ByteBuffer.wrap(queue.take().data));
+                        Packet next = queue.peek();
+                        if(next == null || next.getDelay(TimeUnit.NANOSECONDS) > 0)
+                            transport.flush();
+                    }
+                }catch(InterruptedException e){
+                }catch(IOException e){
+                    if(!isClosed())
+                        e.printStackTrace();
+                }
+            }
+        };
+        sender.setDaemon(true);
+        sender.start();
+    }
+
+    /**
+     * Every packet is lost with this probability (0 to 1)
+     */
+    public synchronized void setLoss(double rate){
+        this.loss = rate;
+    }
+
+    /**
+     * Lose packets in bursts (Gilbert-Elliott): before every packet, a
+     * burst starts with the probability {@code rate}, every packet of a
+     * burst is lost. Bursts last {@code meanLength} packets on average.
+     * On top of {@link #setLoss(double)}.
+     */
+    public synchronized void setBurstLoss(double rate, double meanLength){
+        if(meanLength < 1)
+            throw new IllegalArgumentException("A burst is at least 1 packet long");
+        this.burstRate = rate;
+        this.burstExit = 1 / meanLength;
+        this.inBurst = false;
+    }
+
+    /**
+     * Delay every packet by {@code delayMs} plus a random jitter between
+     * 0 and {@code jitterMs} (a jitter larger than the gap between 2
+     * packets re-orders them)
+     */
+    public synchronized void setDelay(double delayMs, double jitterMs){
+        this.delayNanos = (long)(delayMs * 1_000_000);
+        this.jitterNanos = (long)(jitterMs * 1_000_000);
+    }
+
+    /**
+     * Hold back packets with the probability {@code rate} for an extra
+     * {@code delayMs}, so that the packets sent after them overtake them
+     */
+    public synchronized void setReorder(double rate, double delayMs){
+        this.reorderRate = rate;
+        this.reorderNanos = (long)(delayMs * 1_000_000);
+    }
+
+    /**
+     * Send packets twice with this probability
+     */
+    public synchronized void setDuplicate(double rate){
+        this.duplicateRate = rate;
+    }
+
+    /**
+     * Cap the bandwidth, packets queue up behind each other like they
+     * do in front of a slow link. A packet which would wait more than
+     * {@code maxQueueMs} is dropped (tail drop).
+     * @param bytesPerSecond 0 removes the cap
+     */
+    public synchronized void setBandwidth(long bytesPerSecond, double maxQueueMs){
+        this.bytesPerSecond = bytesPerSecond;
+        this.maxQueueNanos = (long)(maxQueueMs * 1_000_000);
+    }
+
+    @Override
+    public void send(ByteBuffer datagram) throws IOException{
+        byte[] data = new byte[datagram.remaining()];
+        datagram.get(data);
+        impair(data);
+    }
+
+    @Override
+    public void send(ByteBuffer header, ByteBuffer payload, ByteBuffer trailer) throws IOException{
+        byte[] data = new byte[header.remaining() + payload.remaining() + trailer.remaining()];
+        ByteBuffer.wrap(data).put(header).put(payload).put(trailer);
+        impair(data);
+    }
+
+    private void impair(byte[] data) throws IOException{
+        if(isClosed())
+            throw new IOException("Socket is closed");
+        long now = System.nanoTime();
+        synchronized(this){
+            sent++;
+            if(isLost()){
+                dropped++;
+                return;
+            }
+            long departure = now;
+            if(bytesPerSecond > 0){
+                long start = Math.max(now, linkFree);
+                if(start - now > maxQueueNanos){
+                    dropped++;
+                    return;
+                }
+                linkFree = start + data.length * 1_000_000_000L / bytesPerSecond;
+                departure = linkFree;
+            }
+            long due = departure + delayNanos;
+            if(jitterNanos > 0)
+                due += (long)(random.nextDouble() * jitterNanos);
+            if(reorderRate > 0 && random.nextDouble() < reorderRate){
+                due += reorderNanos;
+                reordered++;
+            }
+            queue.add(new Packet(data, due, sequence++));
+            if(duplicateRate > 0 && random.nextDouble() < duplicateRate){
+                queue.add(new Packet(data, due, sequence++));
+                duplicated++;
+            }
+        }
+    }
+
+    private boolean isLost(){
+        if(burstRate > 0){
+            if(inBurst){
+                inBurst = random.nextDouble() >= burstExit;
+            }else{
+                inBurst = random.nextDouble() < burstRate;
+            }
+            if(inBurst) return true;
+        }
+        return loss > 0 && random.nextDouble() < loss;
+    }
+
+    /**
+     * Packets arrive as the peer sent them
+     */
+    @Override
+    public void receive(ByteBuffer dst) throws IOException{
+        transport.receive(dst);
+    }
+
+    /**
+     * @return packets passed to send()
+     */
+    public long getSent(){
+        return sent;
+    }
+
+    /**
+     * @return packets lost on purpose (random, burst and tail drops)
+     */
+    public long getDropped(){
+        return dropped;
+    }
+
+    public long getReordered(){
+        return reordered;
+    }
+
+    public long getDuplicated(){
+        return duplicated;
+    }
+
+    public PacketTransport getTransport(){
+        return transport;
+    }
+
+    @Override
+    public InetSocketAddress getRemoteAddress(){
+        return transport.getRemoteAddress();
+    }
+
+    @Override
+    public String getRemoteName(){
+        return transport.getRemoteName();
+    }
+
+    @Override
+    public boolean isClosed(){
+        return transport.isClosed();
+    }
+
+    /**
+     * Packets still delayed are discarded
+     */
+    @Override
+    public void close() throws IOException{
+        transport.close();
+        sender.interrupt();
+        queue.clear();
+    }
+}
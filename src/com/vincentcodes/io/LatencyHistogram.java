@@ -0,0 +1,98 @@
+package com.vincentcodes.io;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Distribution of durations, recorded without locks by any number of
+ * threads.
+ * <p>
+ * Durations are kept in microseconds in log-linear buckets: every
+ * power of 2 is split into 8 buckets of the same width, so a
+ * percentile is off by at most 1/8 of its value (values below 8us are
+ * exact). The buckets cover about 50 days, longer durations fall into
+ * the last one.
+ */
+public class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int MAX_EXPONENT = 41;
+    private static final int BUCKETS = (MAX_EXPONENT - SUB_BUCKET_BITS + 2) * SUB_BUCKETS;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder(); // micros
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * @param nanos negative durations are ignored
+     */
+    public void record(long nanos){
+        if(nanos < 0) return;
+        long micros = TimeUnit.NANOSECONDS.toMicros(nanos);
+        buckets.incrementAndGet(index(micros));
+        count.increment();
+        sum.add(micros);
+        long current = max.get();
+        while(micros > current && !max.compareAndSet(current, micros)){
+            current = max.get();
+        }
+    }
+
+    public long getCount(){
+        return count.sum();
+    }
+
+    /**
+     * @return mean in microseconds, 0 if nothing is recorded
+     */
+    public long getMean(){
+        long n = count.sum();
+        return n == 0? 0 : sum.sum() / n;
+    }
+
+    /**
+     * @return longest duration in microseconds
+     */
+    public long getMax(){
+        return max.get();
+    }
+
+    /**
+     * @param percentile 0 - 100
+     * @return the upper bound (in microseconds) of the bucket holding
+     * the percentile, 0 if nothing is recorded
+     */
+    public long getPercentile(double percentile){
+        if(percentile < 0 || percentile > 100)
+            throw new IllegalArgumentException("Percentile must be within 0 - 100");
+        long n = count.sum();
+        if(n == 0) return 0;
+        long rank = Math.max(1, (long)Math.ceil(n * percentile / 100));
+        long seen = 0;
+        for(int i = 0; i < BUCKETS; i++){
+            seen += buckets.get(i);
+            if(seen >= rank)
+                return Math.min(upperBound(i), max.get());
+        }
+        // recorded while we were counting
+        return max.get();
+    }
+
+    private static int index(long micros){
+        if(micros < SUB_BUCKETS) return (int)micros;
+        int exponent = 63 - Long.numberOfLeadingZeros(micros);
+        if(exponent > MAX_EXPONENT) return BUCKETS - 1;
+        int sub = (int)(micros >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + sub;
+    }
+
+    private static long upperBound(int index){
+        if(index < SUB_BUCKETS) return index;
+        int shift = index / SUB_BUCKETS - 1;
+        long lower = (long)(SUB_BUCKETS + index % SUB_BUCKETS) << shift;
+        return lower + (1L << shift) - 1;
+    }
+}
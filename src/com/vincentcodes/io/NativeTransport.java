@@ -0,0 +1,100 @@
+package com.vincentcodes.io;
+
+import java.io.IOException;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationTargetException;
+import java.net.InetSocketAddress;
+
+/**
+ * Opens a udp transport which batches its system calls where it can:
+ * on Linux with JDK 22 or later, packets are received with
+ * {@code recvmmsg} and sent with {@code sendmmsg}, up to 32 packets per
+ * call, through the Foreign Function &amp; Memory API. Anywhere else it
+ * opens a {@link DatagramTransport}, one call per packet.
+ * <p>
+ * The batching transport is compiled separately (the rest of the
+ * library targets Java 10) and loaded by reflection. If it is missing from
+ * the classpath, the JVM is too old or refuses native access (run with
+ * {@code --enable-native-access=ALL-UNNAMED}), the library falls back
+ * without an error.
+ * <p>
+ * Only sockets created with a transport use it: the sockets of a
+ * {@link UdpServerSocket} share the port of the server, its engine
+ * still makes one system call per packet.
+ * <pre>
+ * UdpSocket socket = UdpSocket.create(NativeTransport.open("localhost", 1234));
+ * </pre>
+ */
+public final class NativeTransport {
+    private static final String IMPLEMENTATION = "com.vincentcodes.io.MmsgTransport";
+    private static final int MIN_FEATURE_VERSION = 22;
+
+    /**
+     * null if the batching transport cannot be used
+     */
+    private static final Constructor<?> CONSTRUCTOR = findConstructor();
+
+    private NativeTransport(){}
+
+    private static Constructor<?> findConstructor(){
+        if(Runtime.version().feature() < MIN_FEATURE_VERSION)
+            return null;
+        if(!System.getProperty("os.name", "").startsWith("Linux"))
+            return null;
+        try{
+            // initializing the class looks up the native functions
+            Class<?> type = Class.forName(IMPLEMENTATION, true, NativeTransport.class.getClassLoader());
+            return type.getDeclaredConstructor(InetSocketAddress.class, InetSocketAddress.class, int.class);
+        }catch(Throwable e){
+            return null;
+        }
+    }
+
+    /**
+     * @return true if {@link #open(InetSocketAddress, InetSocketAddress)}
+     * opens a batching transport
+     */
+    public static boolean isAvailable(){
+        return CONSTRUCTOR != null;
+    }
+
+    /**
+     * Bind to a free port on every interface
+     */
+    public static PacketTransport open(String host, int port) throws IOException{
+        return open(new InetSocketAddress(0), new InetSocketAddress(host, port));
+    }
+
+    /**
+     * Packets up to {@link UdpSocket#MAX_UDP_PACKET_SIZE} bytes, the
+     * batching transport keeps 2 MB of native memory per direction
+     * @param local address to bind to, port 0 picks a free port
+     * @param remote address of the peer
+     */
+    public static PacketTransport open(InetSocketAddress local, InetSocketAddress remote) throws IOException{
+        return open(local, remote, UdpSocket.MAX_UDP_PACKET_SIZE);
+    }
+
+    /**
+     * @param maxPacketLength size of the buffer of each packet of a batch
+     * (the batching transport cuts larger packets when it receives them and
+     * refuses to send them). Reliable sockets send at most
+     * {@link UdpSocket#PACKET_LENGTH} bytes per packet.
+     */
+    public static PacketTransport open(InetSocketAddress local, InetSocketAddress remote, int maxPacketLength) throws IOException{
+        if(maxPacketLength <= 0 || maxPacketLength > UdpSocket.MAX_UDP_PACKET_SIZE)
+            throw new IllegalArgumentException("Packet length out of range: " + maxPacketLength);
+        if(CONSTRUCTOR != null){
+            try{
+                return (PacketTransport)CONSTRUCTOR.newInstance(local, remote, maxPacketLength);
+            }catch(InvocationTargetException e){
+                Throwable cause = e.getCause();
+                if(cause instanceof IOException)
+                    throw (IOException)cause;
+                // eg. native access is denied, fall back
+            }catch(ReflectiveOperationException e){
+            }
+        }
+        return new DatagramTransport(local, remote);
+    }
+}
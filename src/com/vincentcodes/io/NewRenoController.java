@@ -0,0 +1,72 @@
+package com.vincentcodes.io;
+
+/**
+ * Loss based congestion control similar to TCP NewReno (RFC 5681). It
+ * is the default controller.
+ * <p>
+ * The window starts at 10 frames and doubles every round trip (slow
+ * start) until the first loss. Afterwards it grows by 1 frame per round
+ * trip (additive increase) and is halved on every loss event
+ * (multiplicative decrease). A timeout drops the window to 1 frame and
+ * slow start begins again. A loss event which turns out to be spurious
+ * is undone (the window and the threshold from before it are restored,
+ * RFC 4015).
+ */
+public class NewRenoController implements CongestionController{
+    /**
+     * Initial window (same as TCP, RFC 6928)
+     */
+    public static final int INITIAL_WINDOW = 10;
+
+    /**
+     * Window never shrinks below this after a loss event
+     */
+    public static final int MIN_WINDOW = 2;
+
+    private static final int MAX_WINDOW = 1 << 16;
+
+    private double cwnd = INITIAL_WINDOW;
+    private double ssthresh = MAX_WINDOW;
+    private double priorCwnd = INITIAL_WINDOW; // before the last loss event
+    private double priorSsthresh = MAX_WINDOW;
+
+    @Override
+    public synchronized void onAck(int frames, long rttNanos){
+        if(cwnd < ssthresh){
+            cwnd += frames;
+        }else{
+            cwnd += frames / cwnd;
+        }
+        cwnd = Math.min(cwnd, MAX_WINDOW);
+    }
+
+    @Override
+    public synchronized void onLoss(){
+        priorCwnd = cwnd;
+        priorSsthresh = ssthresh;
+        ssthresh = Math.max(cwnd / 2, MIN_WINDOW);
+        cwnd = ssthresh;
+    }
+
+    @Override
+    public synchronized void onSpuriousLoss(){
+        cwnd = Math.max(cwnd, priorCwnd);
+        ssthresh = Math.max(ssthresh, priorSsthresh);
+    }
+
+    @Override
+    public synchronized void onTimeout(){
+        ssthresh = Math.max(cwnd / 2, MIN_WINDOW);
+        cwnd = 1;
+    }
+
+    @Override
+    public synchronized int getWindow(){
+        return Math.max(1, (int)cwnd);
+    }
+
+    @Override
+    public synchronized boolean inSlowStart(){
+        return cwnd < ssthresh;
+    }
+}
@@ -0,0 +1,222 @@
+package com.vincentcodes.io;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.vincentcodes.io.udpframes.Frame;
+
+/**
+ * An event loop built on a non-blocking {@link DatagramChannel} and a
+ * {@link Selector}. Packets are received into pooled frames backed by
+ * direct buffers and handed to the sockets without copying. Frames are
+ * sent straight from their direct buffers.
+ * <p>
+ * A packet which finds the send buffer of the channel full waits in a
+ * queue, the event loop sends it once the channel is writable. The
+ * sending thread never spins. Packets which do not fit into the queue
+ * are dropped and counted in {@link SocketMetrics#getUnsentDatagrams()}.
+ */
+class NioServerEngine extends ServerEngine{
+    /**
+     * Bytes of packets waiting for room in the send buffer of the
+     * channel. Packets beyond it are dropped, which is fine for udp,
+     * reliable sockets will send them again.
+     */
+    private static final int MAX_QUEUED_BYTES = 1 << 20;
+
+    private static final ThreadLocal<ByteBuffer> sendBuffers =
+        ThreadLocal.withInitial(() -> ByteBuffer.allocateDirect(UdpSocket.MAX_UDP_PACKET_SIZE));
+
+    private static class QueuedPacket{
+        final ByteBuffer data;
+        final PeerTransport transport;
+
+        QueuedPacket(ByteBuffer data, PeerTransport transport){
+            this.data = data;
+            this.transport = transport;
+        }
+    }
+
+    private final DatagramChannel channel;
+    private final Selector selector;
+    private final SelectionKey key;
+    private final ConcurrentLinkedQueue<QueuedPacket> sendQueue = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger queuedBytes = new AtomicInteger();
+    private volatile int soTimeout = 0;
+
+    /**
+     * @param reusePort bind with SO_REUSEPORT, so that other engines can 
+     * listen on the same port
+     */
+    public NioServerEngine(UdpServerSocket server, int port, boolean reliable, boolean reusePort) throws IOException{
+        super(server, reliable, true);
+        this.channel = DatagramChannel.open();
+        this.selector = Selector.open();
+
+        channel.setOption(StandardSocketOptions.SO_RCVBUF, 65536);
+        if(reusePort){
+            if(!channel.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT)){
+                channel.close();
+                selector.close();
+                throw new SocketException("SO_REUSEPORT is not supported on this platform");
+            }
+            channel.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+        }
+        channel.bind(new InetSocketAddress(port));
+        channel.configureBlocking(false);
+        key = channel.register(selector, SelectionKey.OP_READ);
+    }
+
+    @Override
+    public void start(){
+        new Thread("UdpServerSocket event loop"){
+            public void run(){
+                try{
+                    long lastReceived = System.currentTimeMillis();
+                    Frame datagram = framePool.acquire();
+                    while(channel.isOpen()){
+                        int timeout = soTimeout;
+                        if(selector.select(timeout) == 0){
+                            if(timeout > 0 && System.currentTimeMillis() - lastReceived >= timeout)
+                                throw new SocketTimeoutException("Receive timed out");
+                            continue;
+                        }
+                        selector.selectedKeys().clear();
+                        if(key.isWritable())
+                            sendQueued();
+                        if(!key.isReadable())
+                            continue;
+                        lastReceived = System.currentTimeMillis();
+
+                        // Drain the channel, one wakeup may carry many packets
+                        SocketAddress remoteAddr;
+                        while((remoteAddr = channel.receive(datagram.getBuffer())) != null){
+                            datagram.getBuffer().flip();
+                            dispatch((InetSocketAddress)remoteAddr, datagram);
+                            datagram = framePool.acquire();
+                        }
+                    }
+                }catch(Exception e){
+                    if(!server.isClosed()) e.printStackTrace();
+                    server.close();
+                }
+                return;
+            }
+        }.start();
+    }
+
+    @Override
+    protected PeerTransport createTransport(InetSocketAddress destAddr){
+        return new PeerTransport(destAddr, true){
+            @Override
+            public void send(ByteBuffer datagram) throws IOException{
+                if(!datagram.isDirect()){
+                    ByteBuffer buffer = sendBuffers.get();
+                    buffer.clear();
+                    buffer.put(datagram).flip();
+                    datagram = buffer;
+                }
+                // packets queued before go first
+                if(sendQueue.isEmpty() && channel.send(datagram, destAddr) > 0) return;
+                queue(datagram, this);
+            }
+        };
+    }
+
+    /**
+     * Keeps a copy of the packet until the channel is writable
+     */
+    private void queue(ByteBuffer datagram, PeerTransport transport) throws IOException{
+        int length = datagram.remaining();
+        if(queuedBytes.addAndGet(length) > MAX_QUEUED_BYTES){
+            queuedBytes.addAndGet(-length);
+            datagram.position(datagram.limit());
+            transport.onUnsent();
+            return;
+        }
+        ByteBuffer copy = ByteBuffer.allocate(length);
+        copy.put(datagram).flip();
+        sendQueue.add(new QueuedPacket(copy, transport));
+        try{
+            key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+        }catch(CancelledKeyException e){
+            throw new SocketException("Socket is closed");
+        }
+        selector.wakeup();
+    }
+
+    /**
+     * Sends the queued packets until the send buffer is full again (event
+     * loop only)
+     */
+    private void sendQueued() throws IOException{
+        QueuedPacket packet;
+        while((packet = sendQueue.peek()) != null){
+            int length = packet.data.remaining();
+            try{
+                if(channel.send(packet.data, packet.transport.destAddr) == 0) return;
+            }catch(IOException e){
+                if(!channel.isOpen()) throw e;
+                // eg. the network of the peer is unreachable
+                packet.transport.onUnsent();
+            }
+            sendQueue.poll();
+            queuedBytes.addAndGet(-length);
+        }
+        key.interestOps(SelectionKey.OP_READ);
+        // a packet queued in the meantime must not wait for the next read
+        if(!sendQueue.isEmpty())
+            key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+    }
+
+    @Override
+    public int getLocalPort(){
+        return channel.socket().getLocalPort();
+    }
+
+    @Override
+    public InetAddress getLocalAddress(){
+        return channel.socket().getLocalAddress();
+    }
+
+    @Override
+    public SocketAddress getLocalSocketAddress(){
+        return channel.socket().getLocalSocketAddress();
+    }
+
+    /**
+     * The server is closed if no packet arrives within {@code timeoutMs}
+     * (same as the blocking engine)
+     */
+    @Override
+    public void setSoTimeout(int timeoutMs) throws IOException{
+        soTimeout = timeoutMs;
+        selector.wakeup();
+    }
+
+    @Override
+    public void setBroadcast(boolean on) throws IOException{
+        channel.setOption(StandardSocketOptions.SO_BROADCAST, on);
+    }
+
+    @Override
+    public void close(){
+        try{
+            channel.close();
+            selector.close();
+        }catch(IOException ignored){}
+        super.close();
+    }
+}
@@ -0,0 +1,64 @@
+package com.vincentcodes.io;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Spaces the frames of a connection evenly over the round trip time,
+ * instead of writing the whole window back-to-back. Bursts overrun the
+ * receive buffer of the peer (and the queues of the routers) and cause
+ * losses which are avoidable.
+ * <p>
+ * The pacer never sleeps, it tells how long to wait and the sender
+ * schedules itself on the timer. The timer ticks every 1ms, so frames
+ * which are due within a tick may be sent back-to-back to catch up with
+ * the rate.
+ * <p>
+ * Guarded by the {@link Sender}.
+ */
+class Pacer {
+    /**
+     * Frames which can be sent back-to-back after being idle
+     */
+    private static final int MAX_BURST = 4;
+
+    /**
+     * Sending may run this much ahead of the schedule (2 ticks of the
+     * timer), otherwise a rate above 1 frame/ms could never be reached
+     */
+    private static final long MIN_BURST_NANOS = TimeUnit.MILLISECONDS.toNanos(2);
+
+    /**
+     * Delays shorter than this are not worth waiting for
+     */
+    private static final long MIN_DELAY_NANOS = 10_000;
+
+    private boolean pacing = false;
+    private long nextSendTime;
+
+    /**
+     * @return nanos to wait until the next frame may be sent, 0 if it can
+     * be sent now
+     */
+    public long getDelay(){
+        if(!pacing) return 0;
+        long delay = nextSendTime - System.nanoTime();
+        return delay > MIN_DELAY_NANOS? delay : 0;
+    }
+
+    /**
+     * @param intervalNanos time between 2 frames, 0 to stop pacing
+     */
+    public void onSent(long intervalNanos){
+        if(intervalNanos <= 0){
+            pacing = false;
+            return;
+        }
+        // nanoTime may be negative, compare differences only
+        long burst = Math.max(MAX_BURST * intervalNanos, MIN_BURST_NANOS);
+        long earliest = System.nanoTime() - burst;
+        if(!pacing || nextSendTime - earliest < 0)
+            nextSendTime = earliest;
+        nextSendTime += intervalNanos;
+        pacing = true;
+    }
+}
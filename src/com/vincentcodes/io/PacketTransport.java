@@ -0,0 +1,66 @@
+package com.vincentcodes.io;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+
+/**
+ * Moves datagrams between a socket and its peer. The reliability
+ * protocol (frames, acks, retransmissions, flow and congestion control)
+ * lives in {@link UdpSocket}, a transport only has to carry packets.
+ * Like udp, a transport may drop, duplicate or re-order packets, it
+ * must not cut or merge them.
+ * <p>
+ * Packets are sent by any thread (the sender, the listener for the
+ * reports, the timer), a transport must allow concurrent sends.
+ * {@link #receive(ByteBuffer)} is only called by the listener thread
+ * of the socket.
+ * @see UdpSocket#create(PacketTransport)
+ * @see SharedMemoryTransport
+ * @see NativeTransport
+ */
+public interface PacketTransport extends Closeable{
+    /**
+     * Sends the datagram from the position to the limit of the buffer,
+     * the position may be moved. A packet which cannot be sent right
+     * now (eg. the buffers are full) may be dropped.
+     */
+    void send(ByteBuffer datagram) throws IOException;
+
+    /**
+     * Sends one datagram made of the header, the payload and the
+     * trailer (each from its position to its limit, any of them may be
+     * empty, the positions may be moved)
+     */
+    void send(ByteBuffer header, ByteBuffer payload, ByteBuffer trailer) throws IOException;
+
+    /**
+     * Sends the packets held back by send(). A transport which batches
+     * its system calls may keep packets until it is flushed, the socket
+     * flushes after every burst it sends. Others send right away and do
+     * nothing here.
+     */
+    default void flush() throws IOException{}
+
+    /**
+     * Blocks until a packet arrives and writes it at the position of
+     * {@code dst}. A packet larger than the remaining room is cut.
+     * @throws IOException if the transport is closed (or the peer is
+     * known to be gone), the socket is closed afterwards
+     */
+    void receive(ByteBuffer dst) throws IOException;
+
+    /**
+     * @return the address of the peer, null if the peer has none (eg.
+     * it is reached through shared memory)
+     */
+    InetSocketAddress getRemoteAddress();
+
+    /**
+     * @return a readable name of the peer
+     */
+    String getRemoteName();
+
+    boolean isClosed();
+}
@@ -0,0 +1,95 @@
+package com.vincentcodes.io;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+
+/**
+ * The transport of a socket accepted by {@link UdpServerSocket}: packets
+ * are sent to one peer from the port of the server. The server decides
+ * how they are sent (ie. which engine is used).
+ * <p>
+ * Packets of the peer are not received through the transport, the
+ * listener of the server receives the packets of every peer and passes
+ * them to their socket. Closing the transport only stops sending, the
+ * port of the server stays open.
+ */
+abstract class PeerTransport implements PacketTransport{
+    /**
+     * Header, payload and trailer are put together here by transports
+     * which cannot send several buffers as one datagram
+     */
+    private static final ThreadLocal<ByteBuffer> directGatherBuffers =
+        ThreadLocal.withInitial(() -> ByteBuffer.allocateDirect(UdpSocket.MAX_UDP_PACKET_SIZE));
+    private static final ThreadLocal<ByteBuffer> heapGatherBuffers =
+        ThreadLocal.withInitial(() -> ByteBuffer.allocate(UdpSocket.MAX_UDP_PACKET_SIZE));
+
+    protected final InetSocketAddress destAddr;
+    private final boolean directBuffers;
+    private volatile boolean closed = false;
+    private volatile SocketMetrics metrics; // of the socket on top
+
+    /**
+     * @param directBuffers whether the buffers put together by 
+     * {@link #send(ByteBuffer, ByteBuffer, ByteBuffer)} are direct
+     */
+    protected PeerTransport(InetSocketAddress destAddr, boolean directBuffers){
+        this.destAddr = destAddr;
+        this.directBuffers = directBuffers;
+    }
+
+    @Override
+    public void send(ByteBuffer header, ByteBuffer payload, ByteBuffer trailer) throws IOException{
+        ByteBuffer buffer = directBuffers? directGatherBuffers.get() : heapGatherBuffers.get();
+        buffer.clear();
+        buffer.put(header).put(payload).put(trailer).flip();
+        send(buffer);
+    }
+
+    /**
+     * @param metrics counters of the socket which sends through this 
+     * transport
+     */
+    void setMetrics(SocketMetrics metrics){
+        this.metrics = metrics;
+    }
+
+    /**
+     * Counts a packet which could not be sent
+     */
+    protected void onUnsent(){
+        SocketMetrics metrics = this.metrics;
+        if(metrics != null)
+            metrics.unsentDatagrams.increment();
+    }
+
+    /**
+     * The packets of the peer are passed in by the server
+     * @throws SocketException always
+     */
+    @Override
+    public void receive(ByteBuffer dst) throws IOException{
+        throw new SocketException("Packets of a server connection are received by the server");
+    }
+
+    @Override
+    public InetSocketAddress getRemoteAddress(){
+        return destAddr;
+    }
+
+    @Override
+    public String getRemoteName(){
+        return destAddr.getAddress().getHostAddress() + ":" + destAddr.getPort();
+    }
+
+    @Override
+    public boolean isClosed(){
+        return closed;
+    }
+
+    @Override
+    public void close(){
+        closed = true;
+    }
+}
@@ -0,0 +1,141 @@
+package com.vincentcodes.io;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Memory a connection may use for data which the application has not
+ * received yet: frames waiting for the frames before them, messages
+ * being put together and complete messages waiting for recv(). Data
+ * which does not fit is dropped, the sender has to send it again.
+ * <p>
+ * Two limits are kept. Bytes limit the payload held in any form. Frames
+ * limit the frames which arrived out of order and are kept in their
+ * pooled buffers (in-order frames are copied into their message and
+ * released straight away).
+ * <p>
+ * The room left is advertised to the sender in every report, as the
+ * number of frames which can still be taken (the receive window). Once
+ * the application frees enough room after a small window was
+ * advertised, a window update is sent so that the sender does not have
+ * to probe.
+ * <p>
+ * Frames are only taken and released by the listener thread, bytes are
+ * released by the threads calling recv().
+ */
+class ReceiveBudget {
+    private volatile int maxBytes;
+    private volatile int maxFrames;
+    private final AtomicLong bytes = new AtomicLong();
+    private volatile int frames = 0;
+    private volatile int lastAdvertised;
+
+    public ReceiveBudget(int maxBytes, int maxFrames){
+        this.maxBytes = maxBytes;
+        this.maxFrames = maxFrames;
+        this.lastAdvertised = getWindow();
+    }
+
+    /**
+     * Take room for a frame which is kept until the frames before it
+     * arrive
+     * @param uncharged do not take its bytes, they are charged later
+     * @return false if there is no room, drop the frame
+     */
+    public boolean tryAcquireFrame(int length, boolean uncharged){
+        if(frames >= maxFrames) return false;
+        if(!uncharged && !tryAcquireBytes(length)) return false;
+        frames++;
+        return true;
+    }
+
+    /**
+     * A frame taken by {@link #tryAcquireFrame(int, boolean)} is copied into its
+     * message, its bytes are still held
+     */
+    public void releaseFrame(){
+        frames--;
+    }
+
+    /**
+     * @return false if there is no room, drop the data
+     */
+    public boolean tryAcquireBytes(int length){
+        long current;
+        do{
+            current = bytes.get();
+            if(current + length > maxBytes) return false;
+        }while(!bytes.compareAndSet(current, current + length));
+        return true;
+    }
+
+    /**
+     * Take bytes even if there is no room
+     */
+    public void charge(int length){
+        bytes.addAndGet(length);
+    }
+
+    /**
+     * The application received the data
+     * @return true if a window update should be sent
+     */
+    public boolean releaseBytes(int length){
+        bytes.addAndGet(-length);
+        int advertised = lastAdvertised;
+        int window = getWindow();
+        // avoid sending an update for every message
+        return window > advertised && (advertised == 0 || window - advertised >= getMaxWindow() / 4);
+    }
+
+    /**
+     * @return number of frames which can still be taken
+     */
+    public int getWindow(){
+        long freeBytes = maxBytes - bytes.get();
+        long window = Math.min(maxFrames - frames, freeBytes / UdpSocket.PAYLOAD_LENGTH);
+        return (int)Math.max(0, window);
+    }
+
+    /**
+     * @return the window to put into a report, it is remembered
+     */
+    public int advertise(){
+        int window = getWindow();
+        lastAdvertised = window;
+        return window;
+    }
+
+    private int getMaxWindow(){
+        return Math.min(maxFrames, maxBytes / UdpSocket.PAYLOAD_LENGTH);
+    }
+
+    /**
+     * @return bytes held
+     */
+    public long getBytes(){
+        return bytes.get();
+    }
+
+    /**
+     * @return frames kept out of order
+     */
+    public int getFrames(){
+        return frames;
+    }
+
+    public void setMaxBytes(int maxBytes){
+        this.maxBytes = maxBytes;
+    }
+
+    public int getMaxBytes(){
+        return maxBytes;
+    }
+
+    public void setMaxFrames(int maxFrames){
+        this.maxFrames = maxFrames;
+    }
+
+    public int getMaxFrames(){
+        return maxFrames;
+    }
+}
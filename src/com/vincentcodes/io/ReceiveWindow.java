@@ -0,0 +1,678 @@
+package com.vincentcodes.io;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.vincentcodes.io.udpframes.Frame;
+import com.vincentcodes.io.udpframes.FramePool;
+import com.vincentcodes.io.udpframes.SackReport;
+
+/**
+ * Receiver side state of one stream. Frames are re-ordered
+ * as they arrive and reports are generated for the sender, so that
+ * the sender window keeps sliding while the message is still being
+ * transferred.
+ * <p>
+ * Several messages can arrive at the same time, each of them is
+ * reassembled on its own. Frames which arrive in order are copied into
+ * their message straight away, only the frames after a gap are kept.
+ * Complete messages are handed to the application in the order they
+ * were sent (by msgId).
+ * <p>
+ * A message of one frame which is the next to be delivered skips all
+ * of this: its payload is copied out and delivered straight away. Its
+ * ack may be delayed (see {@link #isReportDelayable()}).
+ * <p>
+ * A BUNDLE frame is a message of one frame like an END frame, it is
+ * split into its messages when it is delivered.
+ * <p>
+ * In streaming mode, the in-order prefix of the next message is handed
+ * out as soon as it arrives (in pieces), so a message never has to be
+ * held as a whole.
+ * <p>
+ * A PARITY frame rebuilds the single missing frame of its group from
+ * the frames which arrived (see {@link Frame#groupShift}). If more
+ * frames of the group are missing, it waits until all but one have
+ * arrived (it counts as a kept frame). The rebuilt frame is received
+ * like any other frame. In streaming mode, the frames of the group
+ * being received are not handed out yet, the parity may need them.
+ * <p>
+ * With a {@link Sink}, messages are written into the buffers given by
+ * the sink instead (eg. a mapped file): every frame is written at the
+ * offset of its seq as soon as it arrives, in order or not, nothing is
+ * held or charged to the budget.
+ * <p>
+ * Everything held counts against the {@link ReceiveBudget} of the
+ * connection, frames which do not fit are dropped. The next message to
+ * be delivered is the exception while the application keeps up with
+ * the stream: its bytes are only charged once it is complete (and about
+ * to be received), so a message larger than the budget still gets
+ * through at full speed.
+ * <p>
+ * Duplicated, dropped and rebuilt frames are counted in the
+ * {@link SocketMetrics} of the connection.
+ * <p>
+ * This class is only used by the thread which receives the udp packets.
+ * Frames passed in are owned by this class, they are released once they
+ * are copied into the message (or turn out to be useless).
+ */
+class ReceiveWindow {
+    /**
+     * Messages after the next message to be delivered which are accepted.
+     * Frames of the messages above are dropped (the sender does not send
+     * that far ahead).
+     */
+    public static final int MAX_MESSAGES_AHEAD = 1024;
+
+    /**
+     * Send a report after receiving this number of frames of a message.
+     * Reports are sent immediately for END frames, duplicated frames,
+     * frames which fill a gap, dropped frames, frames which request a
+     * report and frames which reveal a loss (see
+     * {@link #revealsLoss(PartialMessage, int)}).
+     */
+    private static final int REPORT_FREQUENCY = 8;
+
+    private static final byte[] EMPTY = new byte[0];
+
+    // results of missingFrame()
+    private static final int NONE_MISSING = -1;
+    private static final int SEVERAL_MISSING = -2;
+
+    /**
+     * Gives the buffers messages are written into
+     * @see ReceiveWindow#setSink(Sink)
+     */
+    interface Sink{
+        /**
+         * Called by the listener thread when the first frame of a
+         * message arrives
+         * @param index number of the message since the sink was set
+         * @return the buffer the message is written into (it fills the
+         * buffer from 0 to its capacity), null to receive the message
+         * as usual
+         */
+        ByteBuffer open(int index);
+    }
+
+    /**
+     * A message which is being received
+     */
+    private static class PartialMessage implements SackReport.ReceivedFrames{
+        final List<Frame> frames = new ArrayList<>(); // frames after a gap by seq, otherwise null
+        int cumulative = 0; // frames [0, cumulative) have arrived
+        int endSeq = -1;
+        int totalLength = -1; // known once the END frame arrives
+        int unreported = 0;
+        byte[] data = EMPTY; // payload of the frames [0, cumulative)
+        int length = 0;
+        int handedOut = 0; // bytes before data[0] (streaming mode)
+        int uncharged = 0; // bytes held but not charged to the budget yet
+        byte[] completed; // waiting for the messages before it
+        ByteBuffer target; // given by the sink, the payload is written here
+        BitSet written; // frames written to the target
+        int lossScan = 0; // frames before it are received or reported as lost
+        int gapSeq = -1; // first missing frame seen by revealsLoss()
+        long gapSince; // nanos, when it was seen missing
+        int groupShift = 0; // parity groups of the message
+        Map<Integer, Frame> parities; // by first seq of their group, waiting for more frames
+        boolean bundle = false; // made of several messages
+
+        @Override
+        public boolean contains(int seq){
+            if(target != null)
+                return seq < cumulative || written.get(seq);
+            return seq < cumulative || (seq < frames.size() && frames.get(seq) != null);
+        }
+
+        int highestSeq(){
+            if(target != null)
+                return written.length()-1;
+            return frames.size()-1;
+        }
+    }
+
+    private final FramePool pool;
+    private final int streamId;
+    private final ReceiveBudget budget;
+    private final SocketMetrics metrics;
+    private final RttEstimator rtt;
+    private final Map<Integer, PartialMessage> messages = new HashMap<>();
+    private final ArrayDeque<byte[]> ready = new ArrayDeque<>();
+    private int nextDelivery = 0; // msgId of the next message to hand out
+    private volatile boolean streaming = false;
+    private volatile Sink sink;
+    private int sinkBase; // msgId of the first message of the sink
+    private boolean reportDelayable = false; // set by onFrame()
+
+    /**
+     * @param rtt estimator of the connection, gives the reorder window
+     */
+    public ReceiveWindow(FramePool pool, int streamId, ReceiveBudget budget, SocketMetrics metrics, RttEstimator rtt){
+        this.pool = pool;
+        this.streamId = streamId;
+        this.budget = budget;
+        this.metrics = metrics;
+        this.rtt = rtt;
+    }
+
+    /**
+     * @param keepingUp true if the application has received every
+     * message delivered so far, the next message may exceed the budget
+     * @return a (pooled) report which should be sent back to the sender,
+     * null if it is not the time to send a report.
+     */
+    public Frame onFrame(Frame frame, boolean keepingUp){
+        reportDelayable = false;
+        int msgId = frame.msgId;
+        int seq = frame.seq;
+        int groupShift = frame.groupShift;
+        boolean data = frame.type != Frame.PARITY;
+        Frame report = receive(frame, keepingUp);
+        if(data && groupShift != 0){
+            // the frame may let its parity rebuild the last missing frame
+            PartialMessage message = messages.get(msgId);
+            if(message != null && message.parities != null){
+                Frame rebuiltReport = retryParity(msgId, message, seq & -(1 << groupShift), keepingUp);
+                if(rebuiltReport != null){
+                    if(report != null)
+                        report.release();
+                    report = rebuiltReport;
+                }
+            }
+        }
+        return report;
+    }
+
+    private Frame receive(Frame frame, boolean keepingUp){
+        int msgId = frame.msgId;
+        int ahead = msgId - nextDelivery; // may wrap around
+        if(ahead < 0){
+            // A frame of a delivered message, our last report was lost
+            if(frame.type != Frame.PARITY)
+                metrics.duplicateFrames.increment();
+            frame.release();
+            return createCompleteReport(msgId);
+        }
+        if(ahead >= MAX_MESSAGES_AHEAD){
+            metrics.droppedFrames.increment();
+            frame.release();
+            return null;
+        }
+        PartialMessage message = messages.get(msgId);
+        boolean endFrame = frame.type == Frame.END || frame.type == Frame.BUNDLE;
+        if(message == null && ahead == 0 && endFrame && frame.seq == 0 && sink == null)
+            return receiveSingle(frame, keepingUp);
+        if(message == null){
+            message = new PartialMessage();
+            messages.put(msgId, message);
+            Sink currentSink = sink;
+            if(currentSink != null && (message.target = currentSink.open(msgId - sinkBase)) != null)
+                message.written = new BitSet();
+        }else if(message.completed != null){
+            if(frame.type != Frame.PARITY)
+                metrics.duplicateFrames.increment();
+            frame.release();
+            return frame.type == Frame.PARITY? null : createCompleteReport(msgId);
+        }
+        if(frame.type == Frame.PARITY)
+            return onParity(msgId, message, frame, keepingUp);
+        if(frame.groupShift != 0)
+            message.groupShift = frame.groupShift;
+        if(frame.type == Frame.BUNDLE)
+            message.bundle = true;
+
+        // the frame may be released below
+        boolean reportRequested = frame.reportRequested;
+        int seq = frame.seq;
+        int payloadLength = frame.getPayloadLength();
+        boolean duplicated = message.contains(seq);
+        boolean gapFilled = false;
+        boolean dropped = false;
+        boolean head = ahead == 0 && keepingUp;
+        if(duplicated){
+            metrics.duplicateFrames.increment();
+            frame.release();
+        }else if(message.target != null){
+            if(writeToTarget(message, frame)){
+                frame.release();
+                if(endFrame)
+                    setEnd(message, seq, payloadLength);
+                int cumulative = message.cumulative;
+                while(message.written.get(message.cumulative)){
+                    message.cumulative++;
+                }
+                gapFilled = seq == cumulative && message.cumulative > seq + 1;
+            }else dropped = true;
+        }else if(seq == message.cumulative){
+            if(takeBytes(message, payloadLength, head)){
+                if(endFrame)
+                    setEnd(message, seq, payloadLength);
+                append(message, frame);
+                message.cumulative++;
+                // the frames kept after the gap are in order now
+                List<Frame> frames = message.frames;
+                while(message.cumulative < frames.size() && frames.get(message.cumulative) != null){
+                    append(message, frames.set(message.cumulative, null));
+                    budget.releaseFrame();
+                    message.cumulative++;
+                }
+                gapFilled = message.cumulative > seq + 1;
+            }else dropped = true;
+        }else{
+            // a frame far ahead would grow the list of frames for nothing
+            boolean uncharged = head && !streaming;
+            if(seq - message.cumulative <= budget.getMaxFrames() && budget.tryAcquireFrame(payloadLength, uncharged)){
+                if(uncharged)
+                    message.uncharged += payloadLength;
+                if(endFrame)
+                    setEnd(message, seq, payloadLength);
+                List<Frame> frames = message.frames;
+                while(frames.size() <= seq){
+                    frames.add(null);
+                }
+                frames.set(seq, frame);
+            }else dropped = true;
+        }
+        if(dropped){
+            metrics.droppedFrames.increment();
+            frame.release();
+            if(message.cumulative == 0 && message.highestSeq() == -1 && message.parities == null)
+                messages.remove(msgId);
+            return createReport(msgId, message);
+        }
+
+        if(message.endSeq != -1 && message.cumulative == message.endSeq+1){
+            Frame report = createReport(msgId, message);
+            completeMessage(message);
+            deliverMessages();
+            return report;
+        }
+        if(streaming && ahead == 0 && message.length > 0)
+            deliverMessages();
+        boolean lossRevealed = !duplicated && seq > message.cumulative && revealsLoss(message, seq);
+        if(duplicated || gapFilled || reportRequested || endFrame || lossRevealed || ++message.unreported >= REPORT_FREQUENCY){
+            return createReport(msgId, message);
+        }
+        return null;
+    }
+
+    /**
+     * A whole message in one frame, it is the next one to be delivered
+     * @return the report acknowledging it
+     */
+    private Frame receiveSingle(Frame frame, boolean keepingUp){
+        int msgId = frame.msgId;
+        int length = frame.getPayloadLength();
+        if(keepingUp){
+            budget.charge(length);
+        }else if(!budget.tryAcquireBytes(length)){
+            metrics.droppedFrames.increment();
+            frame.release();
+            return createReport(msgId, new PartialMessage());
+        }
+        byte[] data = new byte[length];
+        frame.copyPayload(data, 0);
+        reportDelayable = !frame.reportRequested;
+        boolean bundle = frame.type == Frame.BUNDLE;
+        frame.release();
+        deliver(data, bundle);
+        nextDelivery++;
+        // the next messages may be complete already
+        deliverMessages();
+        return createCompleteReport(msgId);
+    }
+
+    /**
+     * @return true if the report returned by the last call to 
+     * {@link #onFrame(Frame, boolean)} acknowledges a message of one 
+     * frame which did not request a report. It may be held back for a 
+     * little while, to be attached to a frame going back to the sender.
+     */
+    public boolean isReportDelayable(){
+        return reportDelayable;
+    }
+
+    /**
+     * @return the next message in order (a piece of it in streaming 
+     * mode), null if none is ready. Its bytes are still held in the 
+     * budget.
+     */
+    public byte[] pollMessage(){
+        return ready.pollFirst();
+    }
+
+    /**
+     * Hand out the next message in pieces as it arrives, pieces are
+     * never empty. It cannot be turned off.
+     */
+    public void setStreaming(){
+        streaming = true;
+    }
+
+    /**
+     * Write the next messages into the buffers given by the sink instead
+     * of receiving them in memory, they are delivered as empty messages
+     * once complete. The messages after the ones delivered so far go to
+     * the sink, so call it only while nothing is being received on the
+     * stream (the last message delivered must have been received by the
+     * calling thread).
+     * @param sink null receives the messages in memory again
+     */
+    public void setSink(Sink sink){
+        sinkBase = nextDelivery;
+        this.sink = sink;
+    }
+
+    /**
+     * Take room for an in-order frame
+     * @param head the frame belongs to the next message and the
+     * application keeps up
+     * @return false if there is no room
+     */
+    private boolean takeBytes(PartialMessage message, int length, boolean head){
+        if(!head) return budget.tryAcquireBytes(length);
+        // the next message is charged once it is handed out
+        if(streaming)
+            budget.charge(length);
+        else message.uncharged += length;
+        return true;
+    }
+
+    private void setEnd(PartialMessage message, int seq, int payloadLength){
+        message.endSeq = seq;
+        // every frame but the last one is full
+        long totalLength = (long)seq * UdpSocket.PAYLOAD_LENGTH + payloadLength;
+        message.totalLength = totalLength <= Integer.MAX_VALUE? (int)totalLength : -1;
+    }
+
+    /**
+     * Copy an in-order frame into its message and release it
+     */
+    private void append(PartialMessage message, Frame frame){
+        int payloadLength = frame.getPayloadLength();
+        int required = message.length + payloadLength;
+        if(required > message.data.length){
+            // a streamed message only needs room until the next hand out
+            int remaining = message.totalLength - message.handedOut;
+            int capacity = !streaming && message.totalLength >= 0 && remaining >= required? remaining : Math.max(required, message.data.length * 2);
+            message.data = Arrays.copyOf(message.data, capacity);
+        }
+        frame.copyPayload(message.data, message.length);
+        message.length = required;
+        frame.release();
+    }
+
+    /**
+     * The sender considers a frame lost once {@link Sender#REORDER_THRESHOLD}
+     * frames after it are acknowledged. A report is sent as soon as an
+     * out-of-order frame makes a missing frame count as lost, so that it
+     * is re-sent while the rest of the message is still flowing instead
+     * of after the next regular report. At most one such report is sent
+     * every {@link Sender#REORDER_THRESHOLD} frames.
+     * <p>
+     * Like the sender, a frame only counts as lost once it has been 
+     * missing for the reorder window (a quarter of the lowest rtt), so 
+     * a frame which is merely late does not trigger a report.
+     */
+    private boolean revealsLoss(PartialMessage message, int seq){
+        // skip the frames which are received or reported already
+        int missing = Math.max(message.lossScan, message.cumulative);
+        while(missing < seq && message.contains(missing)){
+            missing++;
+        }
+        message.lossScan = missing;
+        long now = System.nanoTime();
+        if(missing != message.gapSeq){
+            message.gapSeq = missing;
+            message.gapSince = now;
+        }
+        if(message.unreported + 1 < Sender.REORDER_THRESHOLD) return false;
+        return seq - missing >= Sender.REORDER_THRESHOLD && now - message.gapSince >= rtt.getReorderWindow();
+    }
+
+    private Frame onParity(int msgId, PartialMessage message, Frame parity, boolean keepingUp){
+        if(parity.groupShift == 0 || parity.getPayloadLength() != UdpSocket.PAYLOAD_LENGTH){
+            parity.release();
+            return null;
+        }
+        message.groupShift = parity.groupShift;
+        int start = parity.seq & -(1 << parity.groupShift);
+        int missing = missingFrame(message, start, parity.seq);
+        if(missing == NONE_MISSING){
+            parity.release();
+            return null;
+        }
+        if(missing == SEVERAL_MISSING){
+            if(message.parities == null)
+                message.parities = new HashMap<>();
+            if(!message.parities.containsKey(start) && budget.tryAcquireFrame(0, true))
+                message.parities.put(start, parity);
+            else parity.release();
+            return null;
+        }
+        return rebuild(msgId, message, parity, start, missing, keepingUp);
+    }
+
+    /**
+     * Use the parity kept for a group once enough frames of the group
+     * have arrived
+     */
+    private Frame retryParity(int msgId, PartialMessage message, int start, boolean keepingUp){
+        Frame parity = message.parities.get(start);
+        if(parity == null) return null;
+        int missing = missingFrame(message, start, parity.seq);
+        if(missing == SEVERAL_MISSING) return null;
+        message.parities.remove(start);
+        budget.releaseFrame();
+        if(missing == NONE_MISSING){
+            parity.release();
+            return null;
+        }
+        return rebuild(msgId, message, parity, start, missing, keepingUp);
+    }
+
+    /**
+     * @return the only missing frame of the group, {@link #NONE_MISSING}
+     * or {@link #SEVERAL_MISSING}
+     */
+    private static int missingFrame(PartialMessage message, int start, int end){
+        int missing = NONE_MISSING;
+        for(int seq = start; seq <= end; seq++){
+            if(!message.contains(seq)){
+                if(missing != NONE_MISSING) return SEVERAL_MISSING;
+                missing = seq;
+            }
+        }
+        return missing;
+    }
+
+    /**
+     * XOR the parity with the other frames of the group and receive the
+     * result as the missing frame. The parity is released.
+     * @return the report of the rebuilt frame
+     */
+    private Frame rebuild(int msgId, PartialMessage message, Frame parity, int start, int missing, boolean keepingUp){
+        Frame frame = pool.acquire();
+        ByteBuffer buffer = frame.beginPayload();
+        parity.copyPayload(buffer);
+        int end = parity.seq;
+        int groupShift = parity.groupShift;
+        parity.release();
+        for(int seq = start; seq <= end; seq++){
+            if(seq != missing && !xorPayload(message, seq, buffer)){
+                // handed out already, wait for the retransmission
+                frame.release();
+                return null;
+            }
+        }
+        frame.type = missing == 0? Frame.START : Frame.DATA;
+        frame.groupShift = groupShift;
+        frame.streamId = streamId;
+        frame.msgId = msgId;
+        frame.seq = missing;
+        frame.encode();
+        metrics.repairedFrames.increment();
+        return receive(frame, keepingUp);
+    }
+
+    /**
+     * XOR the payload of a received frame (always a full one) into the
+     * payload of {@code dst}
+     * @return false if the frame is not held anymore
+     */
+    private static boolean xorPayload(PartialMessage message, int seq, ByteBuffer dst){
+        int length = UdpSocket.PAYLOAD_LENGTH;
+        long offset = (long)seq * length;
+        if(message.target != null){
+            for(int i = 0; i < length; i++){
+                xor(dst, i, message.target.get((int)offset + i));
+            }
+        }else if(seq < message.cumulative){
+            offset -= message.handedOut;
+            if(offset < 0 || offset + length > message.length) return false;
+            for(int i = 0; i < length; i++){
+                xor(dst, i, message.data[(int)offset + i]);
+            }
+        }else{
+            ByteBuffer payload = message.frames.get(seq).getBuffer();
+            for(int i = 0; i < length; i++){
+                xor(dst, i, payload.get(Frame.HEADER_LENGTH + i));
+            }
+        }
+        return true;
+    }
+
+    private static void xor(ByteBuffer dst, int payloadIndex, byte value){
+        int index = Frame.HEADER_LENGTH + payloadIndex;
+        dst.put(index, (byte)(dst.get(index) ^ value));
+    }
+
+    /**
+     * Write a frame at its place in the target of its message
+     * @return false if it does not fit into the target
+     */
+    private boolean writeToTarget(PartialMessage message, Frame frame){
+        long offset = (long)frame.seq * UdpSocket.PAYLOAD_LENGTH;
+        boolean fits = offset + frame.getPayloadLength() <= message.target.capacity();
+        if(fits){
+            message.target.position((int)offset);
+            frame.copyPayload(message.target);
+            message.written.set(frame.seq);
+        }
+        return fits;
+    }
+
+    private Frame createReport(int msgId, PartialMessage message){
+        message.unreported = 0;
+        // the sender sees the losses below it now
+        message.lossScan = Math.max(message.lossScan, message.highestSeq() - Sender.REORDER_THRESHOLD + 1);
+        Frame report = pool.acquire();
+        report.type = Frame.REPORT;
+        report.streamId = streamId;
+        report.msgId = msgId;
+        report.seq = message.cumulative;
+        ByteBuffer buffer = report.beginPayload();
+        buffer.putInt(budget.advertise());
+        int length = SackReport.encode(message.cumulative, message.highestSeq(), message, buffer, buffer.position(), buffer.remaining());
+        buffer.position(buffer.position() + length);
+        return report;
+    }
+
+    /**
+     * @return a report acknowledging the whole message
+     */
+    private Frame createCompleteReport(int msgId){
+        Frame report = pool.acquire();
+        report.type = Frame.REPORT;
+        report.streamId = streamId;
+        report.msgId = msgId;
+        report.seq = Frame.WHOLE_MESSAGE;
+        report.beginPayload().putInt(budget.advertise()).put((byte)SackReport.NONE);
+        return report;
+    }
+
+    private void completeMessage(PartialMessage message){
+        byte[] data = message.data;
+        if(data.length != message.length)
+            data = Arrays.copyOf(data, message.length);
+        message.data = EMPTY;
+        message.frames.clear();
+        message.target = null;
+        message.written = null;
+        if(message.parities != null){
+            for(Frame parity : message.parities.values()){
+                parity.release();
+                budget.releaseFrame();
+            }
+            message.parities = null;
+        }
+        message.completed = data;
+        budget.charge(message.uncharged);
+    }
+
+    private void deliverMessages(){
+        PartialMessage message;
+        while((message = messages.get(nextDelivery)) != null){
+            if(message.completed == null){
+                if(streaming && message.length > 0)
+                    handOutPrefix(message);
+                return;
+            }
+            deliver(message.completed, message.bundle);
+            messages.remove(nextDelivery);
+            nextDelivery++;
+        }
+    }
+
+    /**
+     * Hand a complete message to the application. A bundle is split into
+     * its messages, the bytes of their lengths are released.
+     */
+    private void deliver(byte[] data, boolean bundle){
+        if(!bundle){
+            if(!streaming || data.length > 0)
+                ready.add(data);
+            return;
+        }
+        int offset = 0;
+        int delivered = 0;
+        while(offset + Frame.BUNDLE_PREFIX_LENGTH <= data.length){
+            int length = (data[offset] & 0xff) << 8 | (data[offset+1] & 0xff);
+            offset += Frame.BUNDLE_PREFIX_LENGTH;
+            if(offset + length > data.length) break; // broken bundle, drop the rest
+            if(!streaming || length > 0)
+                ready.add(Arrays.copyOfRange(data, offset, offset + length));
+            offset += length;
+            delivered += length;
+        }
+        budget.releaseBytes(data.length - delivered);
+    }
+
+    /**
+     * Hand out the in-order bytes of an incomplete message, its buffer
+     * is reused for the following frames
+     */
+    private void handOutPrefix(PartialMessage message){
+        // keep the frames of the current group for its parity
+        int kept = 0;
+        if(message.groupShift != 0){
+            int groupStart = message.cumulative & -(1 << message.groupShift);
+            kept = Math.min(message.length, (message.cumulative - groupStart) * UdpSocket.PAYLOAD_LENGTH);
+        }
+        int length = message.length - kept;
+        if(length <= 0) return;
+        budget.charge(message.uncharged);
+        message.uncharged = 0;
+        ready.add(Arrays.copyOf(message.data, length));
+        System.arraycopy(message.data, length, message.data, 0, kept);
+        message.handedOut += length;
+        message.length = kept;
+    }
+}
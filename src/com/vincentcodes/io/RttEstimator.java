@@ -0,0 +1,141 @@
+package com.vincentcodes.io;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Estimates the round trip time of a connection and computes the
+ * retransmission timeout (RTO) from it, the same way as TCP does
+ * (RFC 6298):
+ * <pre>
+ * first sample: SRTT = R, RTTVAR = R/2
+ * afterwards:   RTTVAR = 3/4 RTTVAR + 1/4 |SRTT - R|
+ *               SRTT   = 7/8 SRTT   + 1/8 R
+ * RTO = SRTT + max(G, 4 RTTVAR)
+ * </pre>
+ * G is the tick of the timer (1ms). Every timeout doubles the RTO
+ * until a new sample arrives. Samples must only be taken from frames
+ * which were sent once (Karn's algorithm), otherwise it is unknown
+ * which transmission the report belongs to.
+ * <p>
+ * One estimator is kept per connection, so it is shared by all the
+ * messages sent through it.
+ * <p>
+ * The lowest sample is kept as well, it bounds how much re-ordering is
+ * tolerated before a frame counts as lost (a quarter of it, like RACK,
+ * RFC 8985).
+ */
+class RttEstimator {
+    /**
+     * Used until the first sample is taken
+     */
+    public static final long INITIAL_RTO_MS = 1000;
+
+    /**
+     * TCP uses 200ms+, but the reports here are sent without delay
+     * (at most 8 frames later) so a lower bound is fine on a LAN
+     */
+    public static final long MIN_RTO_MS = 20;
+
+    /**
+     * Backoff stops growing here, so that send() gives up in a sane
+     * amount of time
+     */
+    public static final long MAX_RTO_MS = 3000;
+
+    /**
+     * Lower bound of the probe timeout (2 ticks of the timer)
+     */
+    public static final long MIN_PROBE_TIMEOUT_MS = 2;
+
+    private static final long GRANULARITY_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    private long srtt = -1; // nanos, -1 if no sample yet
+    private long minRtt = -1; // nanos, -1 if no sample yet
+    private long rttvar = 0;
+    private long rto = TimeUnit.MILLISECONDS.toNanos(INITIAL_RTO_MS);
+    private int backoff = 0;
+
+    /**
+     * @param rttNanos time between sending a frame and receiving the
+     * report acknowledging it
+     */
+    public synchronized void onSample(long rttNanos){
+        if(rttNanos < 0) return;
+        if(minRtt == -1 || rttNanos < minRtt)
+            minRtt = rttNanos;
+        if(srtt == -1){
+            srtt = rttNanos;
+            rttvar = rttNanos / 2;
+        }else{
+            rttvar = (3 * rttvar + Math.abs(srtt - rttNanos)) / 4;
+            srtt = (7 * srtt + rttNanos) / 8;
+        }
+        rto = srtt + Math.max(GRANULARITY_NANOS, 4 * rttvar);
+        backoff = 0;
+    }
+
+    /**
+     * New data is acknowledged. Re-sent frames give no sample, without
+     * this the backoff would keep growing during a long recovery.
+     */
+    public synchronized void resetBackoff(){
+        backoff = 0;
+    }
+
+    /**
+     * A timeout happened, wait twice as long next time
+     */
+    public synchronized void onTimeout(){
+        if(backoff < 16) backoff++;
+    }
+
+    /**
+     * @return the retransmission timeout in ms (with backoff)
+     */
+    public synchronized long getRto(){
+        long ms = (rto + GRANULARITY_NANOS - 1) / GRANULARITY_NANOS;
+        ms = Math.max(MIN_RTO_MS, Math.min(MAX_RTO_MS, ms));
+        return Math.min(MAX_RTO_MS, ms << backoff);
+    }
+
+    /**
+     * @return time to wait for a report before a probe is sent (2 SRTT, 
+     * like the tail loss probe of TCP), never longer than the RTO
+     */
+    public synchronized long getProbeTimeout(){
+        long rtoMs = getRto();
+        if(srtt == -1) return rtoMs;
+        long ms = (2 * srtt + GRANULARITY_NANOS - 1) / GRANULARITY_NANOS;
+        return Math.min(rtoMs, Math.max(MIN_PROBE_TIMEOUT_MS, ms));
+    }
+
+    /**
+     * @return smoothed rtt in nanos, -1 if no sample is taken yet
+     */
+    public synchronized long getSmoothedRtt(){
+        return srtt;
+    }
+
+    /**
+     * @return lowest rtt in nanos, -1 if no sample is taken yet
+     */
+    public synchronized long getMinRtt(){
+        return minRtt;
+    }
+
+    /**
+     * @return time (nanos) a frame may arrive later than the frames sent
+     * after it before it counts as lost: a quarter of the lowest rtt, 0 
+     * if no sample is taken yet
+     */
+    public synchronized long getReorderWindow(){
+        return minRtt == -1? 0 : minRtt / 4;
+    }
+
+    /**
+     * @return rtt variation in nanos
+     */
+    public synchronized long getRttVariation(){
+        return rttvar;
+    }
+}
@@ -0,0 +1,141 @@
+package com.vincentcodes.io;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.CompletableFuture;
+
+import com.vincentcodes.io.udpframes.Frame;
+
+/**
+ * Sender side state of one reliable message. At most {@code size}
+ * frames of the message are unacknowledged, the window slides forward
+ * whenever a report acknowledges the oldest frames.
+ * <p>
+ * Frames are created on demand from the message, so only the frames
+ * inside the window are tracked (in rings indexed by seq % size). The
+ * payload of a frame is a view of the bytes of the message, it is never
+ * copied (retransmissions read the same bytes again).
+ * <p>
+ * This class only holds the state, the logic is inside {@link Sender}
+ * which also guards it.
+ */
+class SendWindow {
+    final int streamId;
+    final int msgId;
+    final int totalFrames;
+    final int groupShift; // parity groups, 0 without parity frames
+    final boolean ackDelayable; // the receiver may hold back the ack (see UdpSocket.ACK_DELAY_MS)
+    final boolean bundle; // made of several small messages (one frame)
+    final CompletableFuture<Void> future;
+
+    private final ByteBuffer data;
+    private final ByteBuffer payloadView; // used by the thread sending frames
+    private final int size;
+
+    // indexed by seq % size
+    final boolean[] acked;
+    final boolean[] lost;
+    final boolean[] retransmitted;
+    final long[] sentOrder; // transmission number within the connection
+    final long[] sentTime; // nanos
+    final long[] lossEvent; // loss event which marked it lost (to undo it), 0 if none
+
+    int base = 0; // oldest frame which is not acked yet
+    int nextSeq = 0; // next frame which is never sent
+    int lostCount = 0; // frames marked as lost and not re-sent yet
+
+    /**
+     * @param data the bytes from its position to its limit are sent, it
+     * is not modified
+     * @param maxSize maximum number of frames which are not acked
+     * @param groupShift see {@link Frame#groupShift}
+     * @param urgent someone waits for the ack
+     */
+    public SendWindow(int streamId, int msgId, ByteBuffer data, int maxSize, int groupShift, boolean urgent){
+        this(streamId, msgId, data, maxSize, groupShift, urgent, new CompletableFuture<>(), false);
+    }
+
+    /**
+     * @param future completed once the message is acknowledged
+     * @param bundle the data is made of several messages (see 
+     * {@link Frame#BUNDLE}), it fits into one frame
+     */
+    public SendWindow(int streamId, int msgId, ByteBuffer data, int maxSize, int groupShift, boolean urgent,
+            CompletableFuture<Void> future, boolean bundle){
+        this.streamId = streamId;
+        this.msgId = msgId;
+        this.groupShift = groupShift;
+        this.future = future;
+        this.bundle = bundle;
+        this.data = data.slice();
+        this.payloadView = this.data.duplicate();
+        this.totalFrames = Math.max(1, (int)Math.ceil(this.data.capacity() / (UdpSocket.PAYLOAD_LENGTH * 1.0)));
+        this.ackDelayable = totalFrames == 1 && !urgent;
+        this.size = Math.min(maxSize, totalFrames);
+        this.acked = new boolean[size];
+        this.lost = new boolean[size];
+        this.retransmitted = new boolean[size];
+        this.sentOrder = new long[size];
+        this.sentTime = new long[size];
+        this.lossEvent = new long[size];
+    }
+
+    public int slot(int seq){
+        return seq % size;
+    }
+
+    /**
+     * @return true if a frame which is never sent fits into the window
+     */
+    public boolean hasNewFrames(){
+        return nextSeq < totalFrames && nextSeq < base + size;
+    }
+
+    public boolean isComplete(){
+        return base >= totalFrames;
+    }
+
+    /**
+     * @return true if some frames are never sent
+     */
+    public boolean hasUnsentFrames(){
+        return nextSeq < totalFrames;
+    }
+
+    /**
+     * @return a key which identifies the message within the connection
+     */
+    public static long key(int streamId, int msgId){
+        return ((long)streamId << 32) | (msgId & 0xffffffffL);
+    }
+
+    public int frameType(int seq){
+        if(bundle)
+            return Frame.BUNDLE;
+        if(seq == totalFrames-1)
+            return Frame.END;
+        if(seq == 0)
+            return Frame.START;
+        return Frame.DATA;
+    }
+
+    /**
+     * @return true if a parity frame is sent after the frame
+     */
+    public boolean endsGroup(int seq){
+        if(groupShift == 0 || seq >= totalFrames-1) return false;
+        return seq == totalFrames-2 || ((seq + 1) & ((1 << groupShift) - 1)) == 0;
+    }
+
+    /**
+     * The same buffer is returned every time, only the thread sending
+     * the frames may use it.
+     * @return a view of the payload of a frame
+     */
+    public ByteBuffer payload(int seq){
+        int from = seq * UdpSocket.PAYLOAD_LENGTH;
+        int to = Math.min(data.capacity(), from + UdpSocket.PAYLOAD_LENGTH);
+        payloadView.limit(to);
+        payloadView.position(from);
+        return payloadView;
+    }
+}
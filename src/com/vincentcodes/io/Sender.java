@@ -0,0 +1,1040 @@
+package com.vincentcodes.io;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import com.vincentcodes.io.udpframes.Frame;
+import com.vincentcodes.io.udpframes.SackReport;
+
+/**
+ * Sender side state of a reliable connection. Messages are queued and
+ * sent one after another without waiting for the previous ones to be
+ * acknowledged, so many messages can be in flight at the same time.
+ * Each message has its own {@link SendWindow}, while the congestion
+ * window, the loss detection and the timers belong to the connection.
+ * <p>
+ * Messages are queued per stream. Within a stream, the frames of a
+ * message are sent before the frames of the next one. The streams take
+ * turns frame by frame, so a small message does not wait behind a large
+ * message of another stream. Lost frames are sent before new frames,
+ * whichever stream they belong to.
+ * <p>
+ * Nothing blocks here. Frames are pumped out by whichever thread
+ * changes the state: the thread queueing a message, the listener thread
+ * applying a report and the timer thread (timeouts and pacing). One
+ * thread pumps at a time.
+ * <p>
+ * Loss detection: a frame is considered lost once a frame sent
+ * {@link #REORDER_THRESHOLD} transmissions after it has been acknowledged
+ * and it is overdue by the reorder window (RACK, RFC 8985): a quarter of
+ * the lowest rtt later than the frame sent last which was acknowledged.
+ * A frame which is overdue by count but not by time is checked again
+ * by the timer once the window is over. With fewer frames outstanding,
+ * the threshold is lowered so that a small window still detects losses
+ * (early retransmit, RFC 5827), but never below
+ * {@link #MIN_REORDER_THRESHOLD}.
+ * <p>
+ * A loss event is undone when every frame it marked as lost turns out to
+ * be acknowledged the first time it was sent (the ack arrives before the
+ * frame is re-sent, or faster than any round trip after it is re-sent):
+ * the congestion window is restored and the reorder window is widened
+ * for the next {@link #REORDER_WINDOW_PERSISTENCE} loss events. The receiver reports as
+ * soon as a frame reveals a loss, so lost frames are re-sent while the
+ * rest of the message is still flowing. If no report arrives within
+ * 2 SRTT of the last frame sent (frames are paced over the rtt, their
+ * reports arrive up to 1 rtt after the previous report), the oldest
+ * frame in flight is sent again as a probe. If still nothing arrives
+ * within the RTO, every frame in flight is sent again.
+ * <p>
+ * The receiver may hold back the ack of a small message sent without
+ * waiting for it, so that the reply of the peer carries it (see
+ * {@link UdpSocket#ACK_DELAY_MS}). Its frame does not request a report
+ * and the probe timeout is longer by the delay. Acks attached to
+ * incoming frames are applied like reports.
+ * <p>
+ * With batching, small messages of a stream are copied into a bundle
+ * instead of being queued one by one. The bundle is queued as one
+ * message (see {@link Frame#BUNDLE}) once it is full, once the batch
+ * delay is over or right before a message which is not bundled, so the
+ * order of the stream is kept. Its messages share its future.
+ * <p>
+ * Every report which acknowledges a frame sent only once gives a rtt
+ * sample to the {@link RttEstimator} of the connection. The frames in
+ * flight are limited by the window size, by the
+ * {@link CongestionController} and by the receive window advertised in
+ * the reports, whichever is smaller. While the receive window is 0, one
+ * frame is sent every RTO to probe it (the window update sent by the
+ * receiver may be lost).
+ * <p>
+ * With forward error correction, a PARITY frame is sent after every
+ * group of new frames and the END frame is sent twice, so the receiver
+ * can rebuild a lost frame without waiting for a retransmission. The
+ * parity and the copy of the END frame are sent right after the frame
+ * which completes the group, they are neither tracked nor re-sent. In
+ * adaptive mode, the groups get smaller as the losses the receiver
+ * could not repair go up.
+ * <p>
+ * Transmissions, losses, timeouts and rtt samples are counted in the
+ * {@link SocketMetrics} of the connection.
+ */
+class Sender {
+    static final int REORDER_THRESHOLD = 3;
+
+    /**
+     * Lowest threshold of early retransmit, a single re-ordered frame
+     * never counts as a loss
+     */
+    static final int MIN_REORDER_THRESHOLD = 2;
+
+    /**
+     * The reorder window grows up to this many times a quarter of the
+     * lowest rtt (never beyond the smoothed rtt) after spurious losses
+     */
+    private static final int MAX_REORDER_WINDOW_MULTIPLIER = 4;
+
+    /**
+     * Loss events after which a widened reorder window goes back to a
+     * quarter of the lowest rtt
+     */
+    private static final int REORDER_WINDOW_PERSISTENCE = 16;
+
+    /**
+     * Transmissions per sample of the loss rate (adaptive forward error
+     * correction)
+     */
+    private static final int LOSS_SAMPLE = 128;
+
+    // what is sent after a frame
+    private static final int NO_REDUNDANCY = 0;
+    private static final int PARITY = 1;
+    private static final int DUPLICATE = 2;
+
+    /**
+     * Give up after this number of timeouts in a row
+     */
+    private static final int MAX_TIMEOUTS = 10;
+
+    /**
+     * Longest time the receiver holds back an ack
+     */
+    private static final long MAX_ACK_DELAY_MS = UdpSocket.ACK_DELAY_MS + HashedWheelTimer.DEFAULT_TICK_MS;
+
+    /**
+     * Payload of a bundle, room is left for an attached ack
+     */
+    private static final int BUNDLE_CAPACITY = UdpSocket.PAYLOAD_LENGTH - Frame.ACK_LENGTH;
+
+    /**
+     * Small messages waiting to be sent together
+     */
+    private static class Bundle{
+        final ByteBuffer buffer = ByteBuffer.allocate(BUNDLE_CAPACITY);
+        final CompletableFuture<Void> future = new CompletableFuture<>();
+        boolean urgent = false;
+    }
+
+    /**
+     * Messages of one stream
+     */
+    private static class StreamQueue{
+        final int id;
+        final ArrayDeque<SendWindow> queued = new ArrayDeque<>(); // not started yet
+        final ArrayDeque<SendWindow> started = new ArrayDeque<>(); // started and not acked, by msgId
+        SendWindow current; // latest started message
+        Bundle bundle; // not queued yet
+        int nextMsgId = 0;
+        boolean active = false; // inside Sender.active
+
+        StreamQueue(int id){
+            this.id = id;
+        }
+
+        boolean hasUnsentFrames(){
+            return (current != null && current.hasUnsentFrames()) || !queued.isEmpty();
+        }
+
+        /**
+         * @return true if a frame which is never sent can be sent now
+         */
+        boolean canSendNewFrame(){
+            if(current != null && current.hasNewFrames()) return true;
+            if(current != null && current.hasUnsentFrames()) return false; // wait for its window
+            SendWindow next = queued.peekFirst();
+            if(next == null) return false;
+            // do not run too far ahead of the receiver
+            int oldest = started.isEmpty()? next.msgId : started.peekFirst().msgId;
+            return next.msgId - oldest < ReceiveWindow.MAX_MESSAGES_AHEAD;
+        }
+
+        /**
+         * Forget the acked messages at the front
+         */
+        void retireCompleted(){
+            while(!started.isEmpty() && started.peekFirst().isComplete()){
+                started.pollFirst();
+            }
+        }
+    }
+
+    private final UdpSocket socket;
+    private final HashedWheelTimer timer;
+    private final Signal signal;
+    private final RttEstimator rtt;
+    private final SocketMetrics metrics;
+    private final Pacer pacer = new Pacer();
+    private final SackReport reportReader = new SackReport();
+    private CongestionController congestion;
+    private int windowSize;
+    private int fecGroupSize = UdpSocket.FEC_OFF;
+    private int batchDelayMs = 0;
+    private HashedWheelTimer.Timeout batchTimeout;
+    private double lossRate = 0; // moving average, frames which had to be re-sent
+    private int sampleTransmissions = 0;
+    private int sampleLosses = 0;
+
+    private final HashMap<Integer, StreamQueue> streams = new HashMap<>();
+    private final ArrayDeque<StreamQueue> active = new ArrayDeque<>(); // streams with unsent frames, in turn
+    private final LinkedHashMap<Long, SendWindow> outstanding = new LinkedHashMap<>(); // started, by SendWindow.key()
+    private int queuedMessages = 0; // not started yet
+    private IOException failure;
+
+    private int peerWindow = Integer.MAX_VALUE; // receive window advertised by the peer
+    private boolean windowProbe = false; // a frame may be sent into a zero window
+    private HashedWheelTimer.Timeout persistTimeout;
+    private int inFlight = 0; // sent, not acked and not lost
+    private int lostTotal = 0; // marked as lost, not re-sent yet
+    private long transmissions = 0;
+    private long highestAckedOrder = -1; // latest transmission known to be acked
+    private long highestAckedTime = -1; // when it was sent (nanos)
+    private long highestAckedRtt = 0; // time between sending it and its ack
+    private int reorderMultiplier = 1;
+    private int reorderPersistence = 0; // loss events before the multiplier is reset
+    private HashedWheelTimer.Timeout reorderTimeout;
+    private long lossEvents = 0;
+    private boolean undoPossible = false; // the last loss event may still be spurious
+    private int undoPending = 0; // frames of the last loss event not acked as spurious yet
+    private long recoveryPoint = 0; // losses sent before it belong to the last loss event
+    private long timeoutPoint = 0; // frames sent before the last timeout give no rtt sample
+    private int timeouts = 0;
+    private boolean probeSent = false; // since the last progress
+    private boolean timerArmed = false;
+    private long lastSendTime; // nanos
+    private boolean ackMayBeDelayed = false; // for the last frame sent
+    private HashedWheelTimer.Timeout reportTimeout;
+    private HashedWheelTimer.Timeout pacingTimeout;
+
+    // rtt sample of the report being applied
+    private long sampleOrder;
+    private long sampleTime;
+    private int newlyAcked;
+
+    private final AtomicBoolean pumping = new AtomicBoolean(false);
+    private volatile boolean pumpRequested = false;
+
+    // the frame picked by nextFrame(), used by the pumping thread
+    private final ByteBuffer header = ByteBuffer.allocateDirect(Frame.HEADER_LENGTH);
+    private final ByteBuffer trailer = ByteBuffer.allocateDirect(Frame.ACK_LENGTH); // attached ack
+    private int frameSeq;
+    private boolean frameReportRequested;
+    private int frameRedundancy;
+    private final ByteBuffer parity = ByteBuffer.allocateDirect(UdpSocket.PAYLOAD_LENGTH);
+
+    /**
+     * @param signal signalled when a message is acknowledged or fails
+     */
+    public Sender(UdpSocket socket, HashedWheelTimer timer, Signal signal, RttEstimator rtt, CongestionController congestion, int windowSize, SocketMetrics metrics){
+        this.socket = socket;
+        this.timer = timer;
+        this.signal = signal;
+        this.rtt = rtt;
+        this.metrics = metrics;
+        this.congestion = congestion;
+        this.windowSize = windowSize;
+    }
+
+    /**
+     * Queue a message on a stream. The bytes from the position to the
+     * limit of {@code data} are sent straight from the buffer, they must
+     * not change until the message is acknowledged.
+     * @param urgent the caller waits for the ack, the receiver should
+     * not hold it back
+     * @return completes when the whole message is acknowledged
+     */
+    public CompletableFuture<Void> send(int streamId, ByteBuffer data, boolean urgent){
+        CompletableFuture<Void> future;
+        synchronized(this){
+            if(failure != null){
+                future = new CompletableFuture<>();
+                future.completeExceptionally(failure);
+                return future;
+            }
+            StreamQueue stream = streams.get(streamId);
+            if(stream == null){
+                stream = new StreamQueue(streamId);
+                streams.put(streamId, stream);
+            }
+            if(batchDelayMs > 0 && data.remaining() <= UdpSocket.MAX_BATCHED_MESSAGE){
+                future = addToBundle(stream, data, urgent);
+            }else{
+                closeBundle(stream);
+                SendWindow window = new SendWindow(streamId, stream.nextMsgId++, data, windowSize, getGroupShift(), urgent);
+                queue(stream, window);
+                future = window.future;
+            }
+        }
+        pump();
+        return future;
+    }
+
+    private void queue(StreamQueue stream, SendWindow window){
+        stream.queued.add(window);
+        queuedMessages++;
+        if(!stream.active){
+            stream.active = true;
+            active.add(stream);
+        }
+    }
+
+    /**
+     * Copy a small message into the bundle of its stream. A caller
+     * waiting for the ack does not wait for the batch delay, the bundle
+     * is queued straight away.
+     * @return the future of the bundle
+     */
+    private CompletableFuture<Void> addToBundle(StreamQueue stream, ByteBuffer data, boolean urgent){
+        Bundle bundle = stream.bundle;
+        if(bundle != null && bundle.buffer.remaining() < Frame.BUNDLE_PREFIX_LENGTH + data.remaining()){
+            closeBundle(stream);
+            bundle = null;
+        }
+        if(bundle == null){
+            bundle = stream.bundle = new Bundle();
+            if(batchTimeout == null)
+                batchTimeout = timer.schedule(this::onBatchTimeout, batchDelayMs);
+            else if(batchTimeout.isExpired())
+                batchTimeout.reset(batchDelayMs);
+        }
+        bundle.buffer.putShort((short)data.remaining()).put(data.duplicate());
+        if(urgent || bundle.buffer.remaining() <= Frame.BUNDLE_PREFIX_LENGTH){
+            bundle.urgent = urgent;
+            closeBundle(stream);
+        }
+        return bundle.future;
+    }
+
+    /**
+     * Queue the bundle of a stream (if any) as a message
+     */
+    private void closeBundle(StreamQueue stream){
+        Bundle bundle = stream.bundle;
+        if(bundle == null) return;
+        stream.bundle = null;
+        bundle.buffer.flip();
+        queue(stream, new SendWindow(stream.id, stream.nextMsgId++, bundle.buffer, windowSize, getGroupShift(), bundle.urgent, bundle.future, true));
+    }
+
+    private void onBatchTimeout(){
+        synchronized(this){
+            for(StreamQueue stream : streams.values()){
+                closeBundle(stream);
+            }
+        }
+        pump();
+    }
+
+    /**
+     * Apply a report frame sent by the receiver
+     */
+    public void onReport(Frame report){
+        if(report.getPayloadLength() < Frame.WINDOW_LENGTH) return;
+        onReport(report.streamId, report.msgId, report.seq, report.getBuffer().getInt(Frame.HEADER_LENGTH), report);
+    }
+
+    /**
+     * Apply an ack attached to a frame sent by the receiver, it
+     * acknowledges the whole message
+     * @see Frame#ACK_ATTACHED
+     */
+    public void onAck(int streamId, int msgId, int receiveWindow){
+        onReport(streamId, msgId, Frame.WHOLE_MESSAGE, receiveWindow, null);
+    }
+
+    /**
+     * @param cumulative frames before it are acknowledged
+     * @param report holds the selective acks, null if there are none
+     */
+    private void onReport(int streamId, int msgId, int cumulative, int receiveWindow, Frame report){
+        SendWindow completed = null;
+        synchronized(this){
+            updatePeerWindow(receiveWindow);
+            SendWindow window = outstanding.get(SendWindow.key(streamId, msgId));
+            if(window == null) return; // late report of a finished message
+            applyReport(window, cumulative, report);
+            if(window.isComplete()){
+                outstanding.remove(SendWindow.key(window.streamId, window.msgId));
+                streams.get(window.streamId).retireCompleted();
+                completed = window;
+            }
+            if(outstanding.isEmpty() && queuedMessages == 0)
+                stopTimer();
+        }
+        if(completed != null){
+            metrics.messagesSent.increment();
+            completed.future.complete(null);
+            signal.signal();
+        }
+        pump();
+    }
+
+    /**
+     * Apply a window update frame sent by the receiver
+     */
+    public void onWindowUpdate(Frame update){
+        synchronized(this){
+            if(update.getPayloadLength() < Frame.WINDOW_LENGTH) return;
+            updatePeerWindow(update.getBuffer().getInt(Frame.HEADER_LENGTH));
+        }
+        pump();
+    }
+
+    private void updatePeerWindow(int receiveWindow){
+        peerWindow = receiveWindow;
+        // the receiver is alive, it just has no room
+        if(peerWindow == 0)
+            timeouts = 0;
+    }
+
+    private void applyReport(SendWindow window, int cumulativeAck, Frame report){
+        long now = System.nanoTime();
+        long previousAckedTime = highestAckedTime;
+        // the latest transmission acked by this report gives the sample
+        sampleOrder = -1;
+        newlyAcked = 0;
+        int cumulative = Math.min(cumulativeAck, window.nextSeq);
+        boolean progress = cumulative > window.base;
+        if(progress){
+            for(int seq = window.base; seq < cumulative; seq++){
+                int i = window.slot(seq);
+                if(!window.acked[i])
+                    onAcked(window, i, now);
+                window.acked[i] = false;
+            }
+            window.base = cumulative;
+            timeouts = 0;
+            probeSent = false;
+            rtt.resetBackoff();
+        }
+
+        if(report != null)
+            reportReader.wrap(report.seq, report.getBuffer(), Frame.HEADER_LENGTH + Frame.WINDOW_LENGTH, report.getPayloadLength() - Frame.WINDOW_LENGTH);
+        while(report != null && reportReader.nextRange()){
+            int start = Math.max(window.base, reportReader.getRangeStart());
+            int end = Math.min(window.nextSeq, reportReader.getRangeEnd());
+            for(int seq = start; seq < end; seq++){
+                int i = window.slot(seq);
+                if(!window.acked[i]){
+                    onAcked(window, i, now);
+                    window.acked[i] = true;
+                }
+            }
+        }
+        if(highestAckedTime != previousAckedTime)
+            highestAckedRtt = now - highestAckedTime;
+        long sample = -1;
+        if(sampleOrder != -1){
+            sample = now - sampleTime;
+            rtt.onSample(sample);
+            metrics.recordRtt(sample);
+        }
+        if(newlyAcked > 0)
+            congestion.onAck(newlyAcked, sample);
+        if(progress && timerArmed)
+            reportTimeout.reset(rtt.getProbeTimeout());
+
+        detectLosses(now);
+    }
+
+    /**
+     * Frames sent before the acknowledged ones are missing, send them
+     * again once they are overdue by count and by time. A re-sent frame
+     * gets a new order, so it can be detected as lost again.
+     */
+    private void detectLosses(long now){
+        if(highestAckedOrder == -1) return;
+        int threshold = REORDER_THRESHOLD;
+        if(!canSend())
+            threshold = Math.max(MIN_REORDER_THRESHOLD, Math.min(REORDER_THRESHOLD, inFlight - 1));
+        long srtt = rtt.getSmoothedRtt();
+        long reorderWindow = Math.min(rtt.getReorderWindow() * reorderMultiplier, Math.max(0, srtt));
+        // a frame is overdue once it is sent this long ago
+        long overdue = highestAckedRtt + reorderWindow;
+        long nextCheck = Long.MAX_VALUE;
+
+        for(SendWindow w : outstanding.values()){
+            for(int seq = w.base; seq < w.nextSeq; seq++){
+                int i = w.slot(seq);
+                if(w.acked[i] || w.lost[i] || w.sentOrder[i] + threshold > highestAckedOrder) continue;
+                long wait = w.sentTime[i] + overdue - now;
+                if(wait > 0){
+                    nextCheck = Math.min(nextCheck, wait);
+                    continue;
+                }
+                if(w.sentOrder[i] >= recoveryPoint)
+                    onLossEvent();
+                markLost(w, i);
+                if(w.retransmitted[i]){
+                    // the first copy is gone as well
+                    undoPossible = false;
+                }else if(undoPossible){
+                    w.lossEvent[i] = lossEvents;
+                    undoPending++;
+                }
+            }
+        }
+        if(nextCheck != Long.MAX_VALUE){
+            long ms = Math.max(1, TimeUnit.NANOSECONDS.toMillis(nextCheck + TimeUnit.MILLISECONDS.toNanos(1) - 1));
+            if(reorderTimeout == null)
+                reorderTimeout = timer.schedule(this::onReorderTimeout, ms);
+            else reorderTimeout.reset(ms);
+        }
+    }
+
+    /**
+     * The window is reduced once for all frames in flight now
+     */
+    private void onLossEvent(){
+        congestion.onLoss();
+        recoveryPoint = transmissions;
+        lossEvents++;
+        undoPossible = true;
+        undoPending = 0;
+        if(reorderPersistence > 0 && --reorderPersistence == 0)
+            reorderMultiplier = 1;
+    }
+
+    /**
+     * Every frame of the last loss event was acknowledged the first time
+     * it was sent, the frames were re-ordered instead of lost
+     */
+    private void undoLossEvent(){
+        undoPossible = false;
+        congestion.onSpuriousLoss();
+        reorderMultiplier = Math.min(reorderMultiplier + 1, MAX_REORDER_WINDOW_MULTIPLIER);
+        reorderPersistence = REORDER_WINDOW_PERSISTENCE;
+    }
+
+    private void onReorderTimeout(){
+        synchronized(this){
+            if(failure != null) return;
+            detectLosses(System.nanoTime());
+        }
+        pump();
+    }
+
+    /**
+     * A frame is acknowledged for the first time
+     */
+    private void onAcked(SendWindow window, int i, long now){
+        newlyAcked++;
+        boolean spurious = window.lost[i];
+        if(window.lost[i]){
+            // it was not lost after all
+            window.lost[i] = false;
+            window.lostCount--;
+            lostTotal--;
+        }else inFlight--;
+        // no round trip is that fast, the first copy is acknowledged
+        long minRtt = rtt.getMinRtt();
+        boolean firstCopy = window.retransmitted[i] && minRtt > 0 && now - window.sentTime[i] < minRtt;
+        spurious |= firstCopy;
+        if(window.lossEvent[i] != 0){
+            if(window.lossEvent[i] == lossEvents && undoPossible){
+                if(!spurious)
+                    undoPossible = false;
+                else if(--undoPending == 0)
+                    undoLossEvent();
+            }
+            window.lossEvent[i] = 0;
+        }
+        // the order and the time are those of the last copy
+        if(firstCopy) return;
+        if(window.sentOrder[i] > highestAckedOrder){
+            highestAckedOrder = window.sentOrder[i];
+            highestAckedTime = window.sentTime[i];
+        }
+        // A frame sent before the timeout may be acked late because its
+        // report was lost, the sample would be too large
+        if(!window.retransmitted[i] && window.sentOrder[i] >= timeoutPoint && window.sentOrder[i] > sampleOrder){
+            sampleOrder = window.sentOrder[i];
+            sampleTime = window.sentTime[i];
+        }
+    }
+
+    private void markLost(SendWindow window, int i){
+        sampleLosses++;
+        window.lost[i] = true;
+        window.lostCount++;
+        lostTotal++;
+        inFlight--;
+    }
+
+    /**
+     * No report arrived in time. The first time a probe is sent, then
+     * every frame which is in flight and not acknowledged is sent again.
+     */
+    private void onTimeout(){
+        boolean failed = false;
+        synchronized(this){
+            if(!timerArmed || failure != null) return;
+            if(outstanding.isEmpty()){
+                stopTimer();
+                return;
+            }
+            long timeoutMs = probeSent || rtt.getSmoothedRtt() == -1? rtt.getRto() : rtt.getProbeTimeout();
+            if(ackMayBeDelayed)
+                timeoutMs += MAX_ACK_DELAY_MS;
+            long quietMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - lastSendTime);
+            if(quietMs < timeoutMs){
+                // frames were sent since the timer started (paced over
+                // the rtt), their reports are still on the way
+                reportTimeout.reset(timeoutMs - quietMs);
+                return;
+            }
+            if(!probeSent && rtt.getSmoothedRtt() != -1 && markProbe()){
+                probeSent = true;
+                metrics.probes.increment();
+                reportTimeout.reset(rtt.getRto());
+            }else if(++timeouts >= MAX_TIMEOUTS){
+                failure = new IOException("No report from the receiver");
+                failed = true;
+            }else onRetransmissionTimeout();
+        }
+        if(failed){
+            fail();
+            try{
+                socket.close();
+            }catch(IOException ignored){}
+            return;
+        }
+        pump();
+    }
+
+    /**
+     * Re-send the oldest frame in flight, the receiver reports as soon as
+     * it gets it (a duplicate or the missing frame). The window is kept.
+     * @return false if no frame is in flight
+     */
+    private boolean markProbe(){
+        for(SendWindow w : outstanding.values()){
+            for(int seq = w.base; seq < w.nextSeq; seq++){
+                int i = w.slot(seq);
+                if(!w.acked[i] && !w.lost[i]){
+                    markLost(w, i);
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private void onRetransmissionTimeout(){
+        for(SendWindow w : outstanding.values()){
+            for(int seq = w.base; seq < w.nextSeq; seq++){
+                int i = w.slot(seq);
+                if(!w.acked[i] && !w.lost[i])
+                    markLost(w, i);
+            }
+        }
+        recoveryPoint = transmissions;
+        timeoutPoint = transmissions;
+        undoPossible = false;
+        metrics.timeouts.increment();
+        rtt.onTimeout();
+        congestion.onTimeout();
+        reportTimeout.reset(rtt.getRto());
+    }
+
+    /**
+     * Send frames until the window is full. Returns straight away if
+     * another thread is sending, that thread sends our frames as well.
+     */
+    public void pump(){
+        pumpRequested = true;
+        while(pumpRequested && pumping.compareAndSet(false, true)){
+            try{
+                pumpRequested = false;
+                SendWindow window;
+                while((window = nextPacedFrame()) != null){
+                    try{
+                        sendFrame(window, frameSeq, frameReportRequested);
+                        if(frameRedundancy == PARITY){
+                            sendParity(window, frameSeq);
+                            metrics.redundantFramesSent.increment();
+                        }else if(frameRedundancy == DUPLICATE){
+                            sendFrame(window, frameSeq, false);
+                            metrics.redundantFramesSent.increment();
+                        }
+                    }catch(IOException e){
+                        // the frame is treated as lost
+                        if(socket.isClosed()){
+                            close();
+                            return;
+                        }
+                    }
+                }
+                try{
+                    socket.flushDatagrams();
+                }catch(IOException e){
+                    // the burst is treated as lost
+                    if(socket.isClosed()){
+                        close();
+                        return;
+                    }
+                }
+            }finally{
+                pumping.set(false);
+            }
+        }
+    }
+
+    /**
+     * The header is written into its own buffer, the payload is a view
+     * of the message. Both are handed to the socket as they are, sockets
+     * which can send several buffers as one datagram never copy the
+     * payload. If the payload leaves room for it, an ack held back by
+     * the socket is attached after the payload.
+     */
+    private void sendFrame(SendWindow window, int seq, boolean reportRequested) throws IOException{
+        int type = Frame.typeByte(window.frameType(seq), reportRequested, window.groupShift);
+        ByteBuffer payload = window.payload(seq);
+        trailer.clear();
+        if(payload.remaining() <= UdpSocket.PAYLOAD_LENGTH - Frame.ACK_LENGTH){
+            Frame ack = socket.takeDelayedAck();
+            if(ack != null){
+                Frame.encodeAck(trailer, ack.streamId, ack.msgId, ack.getBuffer().getInt(Frame.HEADER_LENGTH));
+                ack.release();
+                type |= Frame.ACK_ATTACHED;
+                metrics.acksAttached.increment();
+            }
+        }
+        trailer.flip();
+        header.clear();
+        Frame.encodeHeader(header, 0, type, window.streamId, window.msgId, seq);
+        socket.sendDatagram(header, payload, trailer);
+    }
+
+    /**
+     * Send the XOR of the frames of the group which ends with
+     * {@code lastSeq}. Every frame of a group is full.
+     */
+    private void sendParity(SendWindow window, int lastSeq) throws IOException{
+        int start = lastSeq & -(1 << window.groupShift);
+        parity.clear();
+        parity.put(window.payload(start));
+        for(int seq = start + 1; seq <= lastSeq; seq++){
+            ByteBuffer payload = window.payload(seq);
+            int offset = payload.position();
+            int i = 0;
+            for(; i + Long.BYTES <= UdpSocket.PAYLOAD_LENGTH; i += Long.BYTES){
+                parity.putLong(i, parity.getLong(i) ^ payload.getLong(offset + i));
+            }
+            for(; i < UdpSocket.PAYLOAD_LENGTH; i++){
+                parity.put(i, (byte)(parity.get(i) ^ payload.get(offset + i)));
+            }
+        }
+        parity.flip();
+        header.clear();
+        Frame.encodeHeader(header, 0, Frame.typeByte(Frame.PARITY, false, window.groupShift), window.streamId, window.msgId, lastSeq);
+        trailer.clear().limit(0);
+        socket.sendDatagram(header, parity, trailer);
+    }
+
+    /**
+     * @return the message of the next frame to send ({@link #frameSeq}),
+     * null if none can be sent now
+     */
+    private synchronized SendWindow nextPacedFrame(){
+        if(failure != null) return null;
+        if(!canSend()){
+            if(inFlight == 0 && peerWindow == 0 && hasFramesToSend()){
+                // nothing will arrive to open the window, probe it later
+                if(persistTimeout == null)
+                    persistTimeout = timer.schedule(this::onPersistTimeout, rtt.getRto());
+                else if(persistTimeout.isExpired())
+                    persistTimeout.reset(rtt.getRto());
+            }
+            return null;
+        }
+        long delay = pacer.getDelay();
+        if(delay > 0){
+            // come back later
+            long ms = Math.max(1, TimeUnit.NANOSECONDS.toMillis(delay));
+            if(pacingTimeout == null)
+                pacingTimeout = timer.schedule(this::pump, ms);
+            else pacingTimeout.reset(ms);
+            return null;
+        }
+        SendWindow window = nextFrame();
+        windowProbe = false;
+        pacer.onSent(getPacingInterval());
+        return window;
+    }
+
+    private void onPersistTimeout(){
+        synchronized(this){
+            if(peerWindow > 0 || inFlight > 0) return;
+            windowProbe = true;
+        }
+        pump();
+    }
+
+    /**
+     * Pick a lost frame or a new frame, call it only if
+     * {@link #canSend()}
+     * @return the message of the frame, its seq is put into
+     * {@link #frameSeq}
+     */
+    private SendWindow nextFrame(){
+        SendWindow frame = null;
+        if(lostTotal > 0){
+            for(SendWindow w : outstanding.values()){
+                if(w.lostCount == 0) continue;
+                for(int seq = w.base; seq < w.nextSeq; seq++){
+                    int i = w.slot(seq);
+                    if(w.lost[i]){
+                        w.lost[i] = false;
+                        w.lostCount--;
+                        lostTotal--;
+                        w.retransmitted[i] = true;
+                        metrics.framesRetransmitted.increment();
+                        frameRedundancy = NO_REDUNDANCY;
+                        frame = transmit(w, seq);
+                        break;
+                    }
+                }
+                if(frame != null) break;
+            }
+        }else{
+            StreamQueue stream = nextStream();
+            if(stream.current == null || !stream.current.hasNewFrames()){
+                SendWindow window = stream.queued.pollFirst();
+                queuedMessages--;
+                stream.current = window;
+                stream.started.add(window);
+                outstanding.put(SendWindow.key(window.streamId, window.msgId), window);
+            }
+            SendWindow window = stream.current;
+            int seq = window.nextSeq++;
+            window.retransmitted[window.slot(seq)] = false;
+            window.lossEvent[window.slot(seq)] = 0;
+            if(window.endsGroup(seq))
+                frameRedundancy = PARITY;
+            else if(window.groupShift != 0 && seq == window.totalFrames-1)
+                frameRedundancy = DUPLICATE;
+            else frameRedundancy = NO_REDUNDANCY;
+            frame = transmit(window, seq);
+        }
+        // nothing more can be sent, ask for a report so that we do not
+        // wait for the timeout. The ack of a small message may be held
+        // back unless we wait for it to send more.
+        frameReportRequested = !canSend() && (!frame.ackDelayable || hasFramesToSend());
+        ackMayBeDelayed = frame.ackDelayable && !frameReportRequested;
+        return frame;
+    }
+
+    private SendWindow transmit(SendWindow window, int seq){
+        int i = window.slot(seq);
+        inFlight++;
+        metrics.framesSent.increment();
+        window.sentOrder[i] = transmissions++;
+        window.sentTime[i] = lastSendTime = System.nanoTime();
+        if(!timerArmed){
+            timerArmed = true;
+            if(reportTimeout == null)
+                reportTimeout = timer.schedule(this::onTimeout, rtt.getProbeTimeout());
+            else reportTimeout.reset(rtt.getProbeTimeout());
+        }
+        if(++sampleTransmissions == LOSS_SAMPLE){
+            lossRate += (sampleLosses / (double)LOSS_SAMPLE - lossRate) / 8;
+            sampleTransmissions = 0;
+            sampleLosses = 0;
+        }
+        frameSeq = seq;
+        return window;
+    }
+
+    /**
+     * The streams take turns, the returned stream goes to the back of
+     * the line. Streams with nothing left to send leave the line.
+     * @return the next stream which can send a new frame, null if none
+     */
+    private StreamQueue nextStream(){
+        for(int i = active.size(); i > 0; i--){
+            StreamQueue stream = active.pollFirst();
+            if(!stream.hasUnsentFrames()){
+                stream.active = false;
+                continue;
+            }
+            active.addLast(stream);
+            if(stream.canSendNewFrame()) return stream;
+        }
+        return null;
+    }
+
+    /**
+     * @return true if a frame can be sent right now (ignoring pacing)
+     */
+    private boolean canSend(){
+        int window = Math.min(congestion.getWindow(), windowSize);
+        window = Math.min(window, windowProbe? Math.max(1, peerWindow) : peerWindow);
+        if(inFlight >= window) return false;
+        return hasFramesToSend();
+    }
+
+    /**
+     * @return true if a lost frame or a new frame is waiting (ignoring
+     * the windows)
+     */
+    private boolean hasFramesToSend(){
+        if(lostTotal > 0) return true;
+        for(StreamQueue stream : active){
+            if(stream.canSendNewFrame()) return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return time between 2 frames to spread the congestion window over
+     * the round trip time, 0 if the rtt is unknown
+     */
+    private long getPacingInterval(){
+        long srtt = rtt.getSmoothedRtt();
+        if(srtt == -1) return 0;
+        // pace a bit faster than cwnd/rtt, so the window can still grow
+        double gain = congestion.inSlowStart()? 2 : 1.25;
+        return (long)(srtt / (congestion.getWindow() * gain));
+    }
+
+    private void stopTimer(){
+        timerArmed = false;
+        if(reportTimeout != null)
+            reportTimeout.cancel();
+    }
+
+    /**
+     * Fail every message which is not acknowledged yet
+     */
+    public void close(){
+        synchronized(this){
+            if(failure == null)
+                failure = new IOException("Socket is closed");
+        }
+        fail();
+    }
+
+    private void fail(){
+        List<CompletableFuture<Void>> failed = new ArrayList<>();
+        IOException cause;
+        synchronized(this){
+            cause = failure;
+            for(SendWindow window : outstanding.values()){
+                failed.add(window.future);
+            }
+            for(StreamQueue stream : streams.values()){
+                for(SendWindow window : stream.queued){
+                    failed.add(window.future);
+                }
+                if(stream.bundle != null)
+                    failed.add(stream.bundle.future);
+            }
+            outstanding.clear();
+            streams.clear();
+            active.clear();
+            queuedMessages = 0;
+            stopTimer();
+            if(pacingTimeout != null)
+                pacingTimeout.cancel();
+            if(persistTimeout != null)
+                persistTimeout.cancel();
+            if(reorderTimeout != null)
+                reorderTimeout.cancel();
+            if(batchTimeout != null)
+                batchTimeout.cancel();
+        }
+        for(CompletableFuture<Void> future : failed){
+            future.completeExceptionally(cause);
+        }
+        signal.signal();
+    }
+
+    /**
+     * @return frames sent and not acknowledged (lost frames waiting to
+     * be sent again included)
+     */
+    public synchronized int getFramesInFlight(){
+        return inFlight + lostTotal;
+    }
+
+    /**
+     * @return messages queued or sent and not acknowledged yet
+     */
+    public synchronized int getPendingMessages(){
+        return queuedMessages + outstanding.size();
+    }
+
+    public synchronized void setWindowSize(int frames){
+        windowSize = frames;
+    }
+
+    /**
+     * @param frames see {@link UdpSocket#setFecGroupSize(int)}
+     */
+    public synchronized void setFecGroupSize(int frames){
+        fecGroupSize = frames;
+    }
+
+    /**
+     * @return {@link Frame#groupShift} of the next message
+     */
+    private int getGroupShift(){
+        if(fecGroupSize == UdpSocket.FEC_OFF) return 0;
+        if(fecGroupSize != UdpSocket.FEC_ADAPTIVE)
+            return Integer.numberOfTrailingZeros(fecGroupSize);
+        // about one loss in 8 groups, so that 2 losses in a group
+        // (which cannot be rebuilt) are rare
+        double groupSize = lossRate > 0? 1 / (8 * lossRate) : Double.MAX_VALUE;
+        int shift = 31 - Integer.numberOfLeadingZeros((int)Math.min(groupSize, 1 << Frame.MAX_GROUP_SHIFT));
+        return Math.max(1, shift);
+    }
+
+    /**
+     * @param delayMs see {@link UdpSocket#setBatchDelay(int)}
+     */
+    public void setBatchDelay(int delayMs){
+        synchronized(this){
+            batchDelayMs = delayMs;
+            if(delayMs == 0){
+                for(StreamQueue stream : streams.values()){
+                    closeBundle(stream);
+                }
+            }
+        }
+        pump();
+    }
+
+    public synchronized void setCongestionController(CongestionController controller){
+        congestion = controller;
+    }
+
+    public synchronized CongestionController getCongestionController(){
+        return congestion;
+    }
+}
@@ -0,0 +1,139 @@
+package com.vincentcodes.io;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.SocketException;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.vincentcodes.io.udpframes.Frame;
+import com.vincentcodes.io.udpframes.FramePool;
+
+/**
+ * Receives udp packets for a {@link UdpServerSocket} and passes them
+ * to the socket of the peer. A socket is created (and handed to
+ * {@link UdpServerSocket#accept()}) when a new peer appears.
+ * <p>
+ * Subclasses decide how the packets are received and sent.
+ */
+abstract class ServerEngine implements Closeable{
+    protected final UdpServerSocket server;
+    protected final boolean reliable;
+
+    /**
+     * Packets are received into frames of this pool, the sockets of this 
+     * engine send with the same pool
+     */
+    protected final FramePool framePool;
+
+    /**
+     * One timer thread serves the timeouts of every socket of this engine
+     */
+    protected final HashedWheelTimer timer;
+
+    /**
+     * Sockets of the peers of this engine
+     */
+    private final ConnectionTable connections;
+
+    private final LongAdder datagramsReceived = new LongAdder();
+
+    /**
+     * @param directBuffers whether frames use direct buffers
+     */
+    protected ServerEngine(UdpServerSocket server, boolean reliable, boolean directBuffers){
+        this.server = server;
+        this.reliable = reliable;
+        this.framePool = new FramePool(reliable? UdpSocket.PACKET_LENGTH : UdpSocket.MAX_UDP_PACKET_SIZE, directBuffers);
+        this.timer = new HashedWheelTimer("UdpServerSocket timer");
+        this.connections = new ConnectionTable(timer, server.getConnectionCounter());
+        connections.setMaxConnections(server.getMaxConnections());
+        connections.setIdleTimeout(server.getIdleTimeout());
+        connections.setEvictionHandler(server.getEvictionHandler());
+    }
+
+    /**
+     * Starts the listener thread
+     */
+    public abstract void start();
+
+    /**
+     * @return a transport which sends packets to {@code destAddr} from 
+     * the port of this engine (packets of the peer are dispatched by the
+     * engine)
+     */
+    protected abstract PeerTransport createTransport(InetSocketAddress destAddr);
+
+    /**
+     * Pass the data to the socket of the peer (creates it if needed). 
+     * The datagram is dropped if the server has too many connections, 
+     * nothing is allocated for it. It is dropped as well if the socket of
+     * a new peer cannot be built, the server keeps serving.
+     * @param datagram a frame of {@link #framePool} holding the packet, 
+     * it is owned by the socket afterwards
+     */
+    protected void dispatch(InetSocketAddress remoteAddr, Frame datagram) throws SocketException{
+        datagramsReceived.increment();
+        // Find / Create a proper socket
+        UdpSocketServerImpl client = connections.get(remoteAddr);
+        if(client == null){
+            // Turn the peer away before anything is built for it
+            if(!connections.tryReserve()){
+                datagram.release();
+                return;
+            }
+            // Create a UdpSocket (pass back the data into the connection socket)
+            // Server socket is shared
+            try{
+                PeerTransport transport = createTransport(remoteAddr);
+                client = new UdpSocketServerImpl(server.wrapTransport(transport), framePool, timer, reliable, server.getMetrics().getTotals());
+                transport.setMetrics(client.getMetrics());
+            }catch(RuntimeException e){
+                // One peer the server cannot take must not stop the others
+                connections.cancelReservation();
+                connections.countRejection();
+                datagram.release();
+                e.printStackTrace();
+                return;
+            }
+            connections.add(client);
+            server.addConnection(client);
+        }
+
+        // Add data to the proper socket
+        if(!client.addData(datagram))
+            connections.remove(client);
+    }
+
+    ConnectionTable getConnectionTable(){
+        return connections;
+    }
+
+    /**
+     * @return datagrams received by the listener of this engine
+     */
+    public long getDatagramsReceived(){
+        return datagramsReceived.sum();
+    }
+
+    public abstract int getLocalPort();
+
+    public abstract InetAddress getLocalAddress();
+
+    public abstract SocketAddress getLocalSocketAddress();
+
+    public abstract void setSoTimeout(int timeoutMs) throws IOException;
+
+    public abstract void setBroadcast(boolean on) throws IOException;
+
+    /**
+     * Subclasses should close their socket and call super.close()
+     */
+    @Override
+    public void close(){
+        connections.close();
+        timer.close();
+    }
+}
@@ -0,0 +1,330 @@
+package com.vincentcodes.io;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters of a {@link UdpServerSocket}: the connections, the datagrams
+ * received by the listener of every shard and the counters of every
+ * socket added up (those of the closed sockets included). Queue depths
+ * are added up from the open connections when they are asked for.
+ * <p>
+ * A listener which receives a lot more than the others (or whose
+ * connections pile up a backlog) is overloaded, the peers losing the
+ * most frames are found with {@link #getLossiestConnections(int)}.
+ * @see UdpServerSocket#getMetrics()
+ */
+public class ServerMetrics implements ServerMetricsMXBean{
+    /**
+     * Peers listed by {@link #getLossiestPeers()} and
+     * {@link #getBackloggedPeers()}
+     */
+    public static final int TOP_PEERS = 10;
+
+    /**
+     * Connections which sent fewer frames are not ranked by their loss
+     */
+    private static final int MIN_FRAMES_RANKED = 128;
+
+    private final UdpServerSocket server;
+    private final SocketMetrics totals = new SocketMetrics(null, null);
+    private final LongAdder connectionsOpened = new LongAdder();
+
+    ServerMetrics(UdpServerSocket server){
+        this.server = server;
+    }
+
+    /**
+     * Counters of the sockets of the server add up here
+     */
+    SocketMetrics getTotals(){
+        return totals;
+    }
+
+    void onConnectionOpened(){
+        connectionsOpened.increment();
+    }
+
+    /**
+     * @return open connections
+     */
+    @Override
+    public int getConnections(){
+        return server.getConnectionCount();
+    }
+
+    /**
+     * @return connections waiting for accept()
+     */
+    @Override
+    public int getPendingAccepts(){
+        return server.getPendingAccepts();
+    }
+
+    @Override
+    public long getConnectionsOpened(){
+        return connectionsOpened.sum();
+    }
+
+    /**
+     * @return new peers turned away by the connection limit or because
+     * their socket could not be built
+     * @see UdpServerSocket#setMaxConnections(int)
+     */
+    @Override
+    public long getConnectionsRejected(){
+        return server.getConnectionsRejected();
+    }
+
+    /**
+     * @see UdpServerSocket#setIdleTimeout(long)
+     */
+    @Override
+    public long getConnectionsEvicted(){
+        return server.getConnectionsEvicted();
+    }
+
+    /**
+     * @return datagrams received by the listener of every shard, the
+     * datagrams of rejected peers included
+     */
+    @Override
+    public long[] getDatagramsReceivedPerShard(){
+        return server.getDatagramsReceivedPerShard();
+    }
+
+    /**
+     * @return datagrams handed to the sockets
+     */
+    @Override
+    public long getDatagramsReceived(){
+        return totals.getDatagramsReceived();
+    }
+
+    @Override
+    public long getFramesSent(){
+        return totals.getFramesSent();
+    }
+
+    @Override
+    public long getFramesRetransmitted(){
+        return totals.getFramesRetransmitted();
+    }
+
+    @Override
+    public long getRedundantFramesSent(){
+        return totals.getRedundantFramesSent();
+    }
+
+    @Override
+    public long getFramesReceived(){
+        return totals.getFramesReceived();
+    }
+
+    @Override
+    public long getDuplicateFrames(){
+        return totals.getDuplicateFrames();
+    }
+
+    @Override
+    public long getDroppedFrames(){
+        return totals.getDroppedFrames();
+    }
+
+    /**
+     * @return datagrams dropped because the send queue of a shard was 
+     * full
+     */
+    @Override
+    public long getUnsentDatagrams(){
+        return totals.getUnsentDatagrams();
+    }
+
+    @Override
+    public long getRepairedFrames(){
+        return totals.getRepairedFrames();
+    }
+
+    @Override
+    public long getReportsSent(){
+        return totals.getReportsSent();
+    }
+
+    @Override
+    public long getAcksAttached(){
+        return totals.getAcksAttached();
+    }
+
+    @Override
+    public long getReportsReceived(){
+        return totals.getReportsReceived();
+    }
+
+    @Override
+    public long getProbes(){
+        return totals.getProbes();
+    }
+
+    @Override
+    public long getTimeouts(){
+        return totals.getTimeouts();
+    }
+
+    @Override
+    public long getMessagesSent(){
+        return totals.getMessagesSent();
+    }
+
+    @Override
+    public long getMessagesReceived(){
+        return totals.getMessagesReceived();
+    }
+
+    /**
+     * @return round trip times measured by every connection
+     */
+    public LatencyHistogram getRttHistogram(){
+        return totals.getRttHistogram();
+    }
+
+    @Override
+    public long getRttSamples(){
+        return totals.getRttSamples();
+    }
+
+    @Override
+    public long getRttMeanMicros(){
+        return totals.getRttMeanMicros();
+    }
+
+    @Override
+    public long getRttP50Micros(){
+        return totals.getRttP50Micros();
+    }
+
+    @Override
+    public long getRttP99Micros(){
+        return totals.getRttP99Micros();
+    }
+
+    @Override
+    public long getRttMaxMicros(){
+        return totals.getRttMaxMicros();
+    }
+
+    @Override
+    public long getFramesInFlight(){
+        long[] sum = new long[1];
+        server.forEachConnection(socket -> sum[0] += socket.getMetrics().getFramesInFlight());
+        return sum[0];
+    }
+
+    @Override
+    public long getPendingMessages(){
+        long[] sum = new long[1];
+        server.forEachConnection(socket -> sum[0] += socket.getMetrics().getPendingMessages());
+        return sum[0];
+    }
+
+    @Override
+    public long getReceiveBacklogBytes(){
+        long[] sum = new long[1];
+        server.forEachConnection(socket -> sum[0] += socket.getMetrics().getReceiveBacklogBytes());
+        return sum[0];
+    }
+
+    @Override
+    public long getReceiveBacklogFrames(){
+        long[] sum = new long[1];
+        server.forEachConnection(socket -> sum[0] += socket.getMetrics().getReceiveBacklogFrames());
+        return sum[0];
+    }
+
+    /**
+     * @return the open connections which had to re-send the largest
+     * share of their frames, the worst first
+     */
+    public List<SocketMetrics> getLossiestConnections(int count){
+        List<Ranked> ranked = new ArrayList<>();
+        server.forEachConnection(socket ->{
+            SocketMetrics metrics = socket.getMetrics();
+            if(metrics.getFramesSent() >= MIN_FRAMES_RANKED)
+                ranked.add(new Ranked(metrics, lossRate(metrics)));
+        });
+        return top(ranked, count);
+    }
+
+    /**
+     * @return the open connections holding the most bytes which the
+     * application has not received yet, the largest first
+     */
+    public List<SocketMetrics> getBackloggedConnections(int count){
+        List<Ranked> ranked = new ArrayList<>();
+        server.forEachConnection(socket ->{
+            long backlog = socket.getMetrics().getReceiveBacklogBytes();
+            if(backlog > 0)
+                ranked.add(new Ranked(socket.getMetrics(), backlog));
+        });
+        return top(ranked, count);
+    }
+
+    /**
+     * Counters keep changing, they are read once before sorting
+     */
+    private static class Ranked{
+        final SocketMetrics metrics;
+        final double value;
+
+        Ranked(SocketMetrics metrics, double value){
+            this.metrics = metrics;
+            this.value = value;
+        }
+    }
+
+    private static List<SocketMetrics> top(List<Ranked> ranked, int count){
+        ranked.sort(Comparator.comparingDouble((Ranked r) -> r.value).reversed());
+        List<SocketMetrics> result = new ArrayList<>();
+        for(int i = 0; i < Math.min(count, ranked.size()); i++){
+            result.add(ranked.get(i).metrics);
+        }
+        return result;
+    }
+
+    /**
+     * @return "address: retransmitted/sent (rate)" of the
+     * {@link #TOP_PEERS} lossiest connections
+     */
+    @Override
+    public String[] getLossiestPeers(){
+        List<SocketMetrics> peers = getLossiestConnections(TOP_PEERS);
+        String[] result = new String[peers.size()];
+        for(int i = 0; i < result.length; i++){
+            SocketMetrics metrics = peers.get(i);
+            result[i] = String.format("%s: %d/%d (%.2f%%)", metrics.getSocket().getRemoteFullAddr(),
+                metrics.getFramesRetransmitted(), metrics.getFramesSent(), lossRate(metrics) * 100);
+        }
+        return result;
+    }
+
+    /**
+     * @return "address: bytes" of the {@link #TOP_PEERS} connections
+     * with the largest receive backlog
+     */
+    @Override
+    public String[] getBackloggedPeers(){
+        List<SocketMetrics> peers = getBackloggedConnections(TOP_PEERS);
+        String[] result = new String[peers.size()];
+        for(int i = 0; i < result.length; i++){
+            SocketMetrics metrics = peers.get(i);
+            result[i] = metrics.getSocket().getRemoteFullAddr() + ": " + metrics.getReceiveBacklogBytes();
+        }
+        return result;
+    }
+
+    private static double lossRate(SocketMetrics metrics){
+        long sent = metrics.getFramesSent();
+        return sent == 0? 0 : metrics.getFramesRetransmitted() / (double)sent;
+    }
+}
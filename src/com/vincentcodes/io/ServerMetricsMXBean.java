@@ -0,0 +1,73 @@
+package com.vincentcodes.io;
+
+/**
+ * Attributes of a {@link ServerMetrics} seen through JMX
+ * @see UdpServerSocket#registerMetrics()
+ */
+public interface ServerMetricsMXBean {
+    int getConnections();
+
+    int getPendingAccepts();
+
+    long getConnectionsOpened();
+
+    long getConnectionsRejected();
+
+    long getConnectionsEvicted();
+
+    long[] getDatagramsReceivedPerShard();
+
+    long getDatagramsReceived();
+
+    long getFramesSent();
+
+    long getFramesRetransmitted();
+
+    long getRedundantFramesSent();
+
+    long getFramesReceived();
+
+    long getDuplicateFrames();
+
+    long getDroppedFrames();
+
+    long getUnsentDatagrams();
+
+    long getRepairedFrames();
+
+    long getReportsSent();
+
+    long getAcksAttached();
+
+    long getReportsReceived();
+
+    long getProbes();
+
+    long getTimeouts();
+
+    long getMessagesSent();
+
+    long getMessagesReceived();
+
+    long getRttSamples();
+
+    long getRttMeanMicros();
+
+    long getRttP50Micros();
+
+    long getRttP99Micros();
+
+    long getRttMaxMicros();
+
+    long getFramesInFlight();
+
+    long getPendingMessages();
+
+    long getReceiveBacklogBytes();
+
+    long getReceiveBacklogFrames();
+
+    String[] getLossiestPeers();
+
+    String[] getBackloggedPeers();
+}
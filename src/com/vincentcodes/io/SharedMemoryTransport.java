@@ -0,0 +1,374 @@
+package com.vincentcodes.io;
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * A transport between two sockets on the same machine (in the same
+ * process or not) through a memory-mapped file. Packets never go
+ * through the udp stack of the kernel: sending copies the packet into a
+ * ring inside the file, the listener of the peer copies it out.
+ * <p>
+ * The file holds one ring per direction. Each ring has one writer (the
+ * side which sends into it) and one reader, their positions are
+ * published with release / acquire semantics so that no lock is shared
+ * between the processes. A packet which does not fit into the ring is
+ * dropped, like a full socket buffer drops it (a reliable socket sends
+ * it again).
+ * <p>
+ * One side creates the file with {@link #create(Path, int)}, the other
+ * side opens it with {@link #open(Path)}. Packets sent before the peer
+ * opens the file wait in the ring. Once one side is closed, the
+ * listener of the other side closes its socket as well. The file is
+ * not deleted.
+ * <p>
+ * How the listener waits for packets follows the {@link WaitStrategy}.
+ * BUSY_SPIN and YIELDING poll the ring, a packet is picked up at once
+ * but the listener keeps a core busy. BLOCKING polls for a short
+ * while, then raises a flag in the file and sleeps on a loopback udp
+ * socket (the doorbell). The sender rings it only while the flag is up,
+ * so a packet which ends an idle period costs as much as a udp packet
+ * over loopback. Packets which follow each other closely are polled
+ * and never enter the kernel.
+ * <pre>
+ * // process 1
+ * UdpSocket socket = UdpSocket.create(SharedMemoryTransport.create(path, SharedMemoryTransport.DEFAULT_CAPACITY));
+ * // process 2
+ * UdpSocket socket = UdpSocket.create(SharedMemoryTransport.open(path));
+ * </pre>
+ */
+public class SharedMemoryTransport implements PacketTransport{
+    /**
+     * Default size of a ring (bytes of packets waiting per direction)
+     */
+    public static final int DEFAULT_CAPACITY = 4 * 1024 * 1024;
+
+    /**
+     * A ring holds at least 2 of the largest packets
+     */
+    public static final int MIN_CAPACITY = 1 << 17;
+
+    private static final int MAGIC = 0x52415544; // "RAUD"
+    private static final int VERSION = 2;
+
+    // layout of the file, fields written by different sides are on
+    // different cache lines
+    private static final int MAGIC_OFFSET = 0;
+    private static final int VERSION_OFFSET = 4;
+    private static final int CAPACITY_OFFSET = 8;
+    private static final int RING_HEADER_LENGTH = 128; // per ring
+    private static final int WRITE_OFFSET = 64; // + RING_HEADER_LENGTH * ring
+    private static final int READ_OFFSET = 128; // + RING_HEADER_LENGTH * ring
+    private static final int SIDE_OFFSET = 320; // + 64 * side
+    private static final int CLOSED = 0; // + SIDE_OFFSET
+    private static final int SLEEPING = 4; // + SIDE_OFFSET
+    private static final int DOORBELL_PORT = 8; // + SIDE_OFFSET
+    private static final int DATA_OFFSET = 448; // + capacity * ring
+
+    // a packet is stored as its length (4 bytes) followed by its bytes,
+    // aligned on 8 bytes
+    private static final int RECORD_HEADER_LENGTH = 4;
+    private static final int ALIGNMENT = 8;
+
+    /**
+     * Length of a record which skips the rest of the ring, a packet is
+     * never split at the end of the ring
+     */
+    private static final int PADDING = -1;
+
+    private static final int YIELDS = 100;
+
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+    private static final VarHandle LONGS = MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.nativeOrder());
+    private static final VarHandle INTS = MethodHandles.byteBufferViewVarHandle(int[].class, ByteOrder.nativeOrder());
+
+    private final Path path;
+    private final MappedByteBuffer map;
+    private final int capacity;
+
+    // absolute offsets of the ring we write into and the one we read
+    private final int outData;
+    private final int outWrite;
+    private final int outRead;
+    private final int inData;
+    private final int inWrite;
+    private final int inRead;
+    private final int ownSide;
+    private final int peerSide;
+
+    private final DatagramChannel doorbell; // the listener sleeps on it
+    private final ByteBuffer bell = ByteBuffer.allocateDirect(1); // listener thread only
+    private final ByteBuffer ring = ByteBuffer.allocateDirect(1); // guarded by writeLock
+    private DatagramChannel ringChannel; // connected to the doorbell of the peer, guarded by writeLock
+    private int ringPort; // guarded by writeLock
+
+    private final Object writeLock = new Object();
+    private final ByteBuffer outView; // guarded by writeLock
+    private long writeIndex; // bytes written into the ring since it was created, guarded by writeLock
+    private long peerReadIndex; // last seen, guarded by writeLock
+
+    private final ByteBuffer inView; // listener thread only
+    private long readIndex; // listener thread only
+
+    private volatile boolean closed = false;
+    private volatile WaitStrategy strategy = WaitStrategy.BLOCKING;
+
+    /**
+     * @param side 0 created the file, 1 opened it
+     */
+    private SharedMemoryTransport(Path path, MappedByteBuffer map, int capacity, int side) throws IOException{
+        this.path = path;
+        this.map = map;
+        this.capacity = capacity;
+        int out = side;
+        int in = 1 - side;
+        outData = DATA_OFFSET + out * capacity;
+        outWrite = WRITE_OFFSET + out * RING_HEADER_LENGTH;
+        outRead = READ_OFFSET + out * RING_HEADER_LENGTH;
+        inData = DATA_OFFSET + in * capacity;
+        inWrite = WRITE_OFFSET + in * RING_HEADER_LENGTH;
+        inRead = READ_OFFSET + in * RING_HEADER_LENGTH;
+        ownSide = SIDE_OFFSET + side * 64;
+        peerSide = SIDE_OFFSET + in * 64;
+        outView = map.duplicate();
+        inView = map.duplicate();
+        writeIndex = (long)LONGS.getAcquire(map, outWrite);
+        peerReadIndex = (long)LONGS.getAcquire(map, outRead);
+        readIndex = (long)LONGS.getAcquire(map, inRead);
+        doorbell = DatagramChannel.open().bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        INTS.setRelease(map, ownSide + SLEEPING, 0);
+        INTS.setRelease(map, ownSide + DOORBELL_PORT, ((InetSocketAddress)doorbell.getLocalAddress()).getPort());
+        INTS.setRelease(map, ownSide + CLOSED, 0);
+    }
+
+    /**
+     * Create (or replace) the file shared with the peer
+     * @param capacity bytes of each ring, a power of 2 of at least
+     * {@link #MIN_CAPACITY}
+     */
+    public static SharedMemoryTransport create(Path path, int capacity) throws IOException{
+        if(capacity < MIN_CAPACITY || Integer.bitCount(capacity) != 1)
+            throw new IllegalArgumentException("Capacity must be a power of 2 of at least " + MIN_CAPACITY + " bytes");
+        try(FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.READ, StandardOpenOption.WRITE)){
+            // the mapping stays valid once the channel is closed
+            MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_WRITE, 0, DATA_OFFSET + 2L * capacity);
+            map.putInt(VERSION_OFFSET, VERSION);
+            map.putInt(CAPACITY_OFFSET, capacity);
+            INTS.setRelease(map, MAGIC_OFFSET, MAGIC);
+            return new SharedMemoryTransport(path, map, capacity, 0);
+        }
+    }
+
+    /**
+     * Open the file created by the peer with {@link #create(Path, int)}
+     * @throws IOException if the file does not exist or is not a
+     * shared memory transport
+     */
+    public static SharedMemoryTransport open(Path path) throws IOException{
+        try(FileChannel channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE)){
+            long size = channel.size();
+            if(size < DATA_OFFSET)
+                throw new IOException("Not a shared memory transport: " + path);
+            MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+            if((int)INTS.getAcquire(map, MAGIC_OFFSET) != MAGIC || map.getInt(VERSION_OFFSET) != VERSION)
+                throw new IOException("Not a shared memory transport: " + path);
+            int capacity = map.getInt(CAPACITY_OFFSET);
+            if(size != DATA_OFFSET + 2L * capacity)
+                throw new IOException("Broken shared memory transport: " + path);
+            return new SharedMemoryTransport(path, map, capacity, 1);
+        }
+    }
+
+    @Override
+    public void send(ByteBuffer datagram) throws IOException{
+        send(datagram, EMPTY, EMPTY);
+    }
+
+    @Override
+    public void send(ByteBuffer header, ByteBuffer payload, ByteBuffer trailer) throws IOException{
+        int length = header.remaining() + payload.remaining() + trailer.remaining();
+        if(length > capacity / 2)
+            throw new IOException("Packet is too large: " + length + " bytes");
+        int size = align(RECORD_HEADER_LENGTH + length);
+        synchronized(writeLock){
+            if(closed)
+                throw new SocketException("Socket is closed");
+            int position = (int)(writeIndex & (capacity - 1));
+            int tail = capacity - position;
+            int needed = tail < size? tail + size : size;
+            if(writeIndex + needed - peerReadIndex > capacity){
+                peerReadIndex = (long)LONGS.getAcquire(map, outRead);
+                if(writeIndex + needed - peerReadIndex > capacity) return; // full, drop it
+            }
+            if(tail < size){
+                map.putInt(outData + position, PADDING);
+                writeIndex += tail;
+                position = 0;
+            }
+            int start = outData + position + RECORD_HEADER_LENGTH;
+            outView.limit(start + length).position(start);
+            outView.put(header).put(payload).put(trailer);
+            map.putInt(outData + position, length);
+            writeIndex += size;
+            // the record is visible to the reader from now on. A volatile
+            // write, the reader may raise its flag at the same time.
+            LONGS.setVolatile(map, outWrite, writeIndex);
+            wakeUpPeer();
+        }
+    }
+
+    /**
+     * Rings the doorbell of the peer if its listener sleeps (once per
+     * sleep, whoever clears the flag rings). Called with writeLock held.
+     */
+    private void wakeUpPeer(){
+        if((int)INTS.getVolatile(map, peerSide + SLEEPING) == 0
+                || !INTS.compareAndSet(map, peerSide + SLEEPING, 1, 0))
+            return;
+        int port = (int)INTS.getAcquire(map, peerSide + DOORBELL_PORT);
+        try{
+            if(ringChannel == null || ringPort != port){
+                // the peer may have opened the file again
+                if(ringChannel != null) ringChannel.close();
+                ringChannel = null;
+                ringChannel = DatagramChannel.open();
+                ringChannel.connect(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+                ringPort = port;
+            }
+            ring.clear();
+            ringChannel.write(ring);
+        }catch(IOException e){
+            // ring with the next packet
+            INTS.setVolatile(map, peerSide + SLEEPING, 1);
+        }
+    }
+
+    @Override
+    public void receive(ByteBuffer dst) throws IOException{
+        int idle = 0;
+        while(true){
+            if(closed)
+                throw new SocketException("Socket is closed");
+            long written = (long)LONGS.getAcquire(map, inWrite);
+            if(written != readIndex){
+                int position = (int)(readIndex & (capacity - 1));
+                int length = map.getInt(inData + position);
+                if(length == PADDING){
+                    // the packet is at the start of the ring
+                    readIndex += capacity - position;
+                    continue;
+                }
+                int start = inData + position + RECORD_HEADER_LENGTH;
+                inView.limit(start + Math.min(length, dst.remaining())).position(start);
+                dst.put(inView);
+                readIndex += align(RECORD_HEADER_LENGTH + length);
+                LONGS.setRelease(map, inRead, readIndex);
+                return;
+            }
+            if((int)INTS.getAcquire(map, peerSide + CLOSED) != 0){
+                close();
+                throw new SocketException("The peer closed the transport");
+            }
+            idle(idle++);
+        }
+    }
+
+    private void idle(int idle){
+        switch(strategy){
+            case BUSY_SPIN:
+                Thread.onSpinWait();
+                return;
+            case YIELDING:
+                Thread.yield();
+                return;
+            default:
+                if(idle < YIELDS){
+                    Thread.yield();
+                    return;
+                }
+                sleep();
+        }
+    }
+
+    /**
+     * Sleeps on the doorbell until the peer sends a packet or closes
+     */
+    private void sleep(){
+        INTS.setVolatile(map, ownSide + SLEEPING, 1);
+        // the peer does not ring for a packet published before it saw the flag
+        if((long)LONGS.getVolatile(map, inWrite) == readIndex && (int)INTS.getVolatile(map, peerSide + CLOSED) == 0){
+            try{
+                bell.clear();
+                doorbell.receive(bell);
+            }catch(IOException e){
+                // closed, receive() throws
+            }
+        }
+        INTS.setVolatile(map, ownSide + SLEEPING, 0);
+    }
+
+    private static int align(int length){
+        return (length + ALIGNMENT - 1) & -ALIGNMENT;
+    }
+
+    /**
+     * How the listener waits for packets, default: BLOCKING
+     */
+    public void setWaitStrategy(WaitStrategy strategy){
+        this.strategy = strategy;
+    }
+
+    public WaitStrategy getWaitStrategy(){
+        return strategy;
+    }
+
+    public Path getPath(){
+        return path;
+    }
+
+    @Override
+    public InetSocketAddress getRemoteAddress(){
+        return null;
+    }
+
+    @Override
+    public String getRemoteName(){
+        return "shm:" + path;
+    }
+
+    @Override
+    public boolean isClosed(){
+        return closed;
+    }
+
+    /**
+     * The peer sees it once it has received every packet sent before
+     */
+    @Override
+    public void close(){
+        synchronized(writeLock){
+            if(closed) return;
+            closed = true;
+            INTS.setVolatile(map, ownSide + CLOSED, 1);
+            wakeUpPeer();
+            try{
+                if(ringChannel != null) ringChannel.close();
+                // wakes up our own listener
+                doorbell.close();
+            }catch(IOException ignored){}
+        }
+    }
+}
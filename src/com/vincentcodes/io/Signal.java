@@ -0,0 +1,93 @@
+package com.vincentcodes.io;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Hands events from the listener thread over to the threads waiting in
+ * send() / recv(). The waiting thread checks a condition, the listener
+ * changes the state behind the condition and then calls
+ * {@link #signal()}.
+ * <p>
+ * A signal is never lost: a blocked thread re-checks its condition
+ * whenever the generation changes, and {@link #signal()} skips the lock
+ * entirely when nobody is blocked. The condition is checked without
+ * holding any lock of this object, so it may take other locks.
+ */
+class Signal {
+    /**
+     * Spins before YIELDING falls back to Thread.yield()
+     */
+    private static final int SPIN_TRIES = 100;
+
+    private volatile WaitStrategy strategy;
+    private final AtomicInteger blockedThreads = new AtomicInteger();
+    private volatile long generation = 0;
+
+    public Signal(WaitStrategy strategy){
+        this.strategy = strategy;
+    }
+
+    /**
+     * Blocks until {@code condition} is true
+     */
+    public void await(BooleanSupplier condition) throws InterruptedException{
+        if(condition.getAsBoolean()) return;
+        switch(strategy){
+            case BUSY_SPIN:
+                while(!condition.getAsBoolean()){
+                    if(Thread.interrupted()) throw new InterruptedException();
+                    Thread.onSpinWait();
+                }
+                return;
+            case YIELDING:
+                for(int tries = 0; !condition.getAsBoolean(); tries++){
+                    if(Thread.interrupted()) throw new InterruptedException();
+                    if(tries < SPIN_TRIES)
+                        Thread.onSpinWait();
+                    else Thread.yield();
+                }
+                return;
+            default:
+                awaitBlocking(condition);
+        }
+    }
+
+    private void awaitBlocking(BooleanSupplier condition) throws InterruptedException{
+        blockedThreads.incrementAndGet();
+        try{
+            while(true){
+                // read the generation before the condition, so a signal
+                // sent in between is not missed
+                long lastGeneration = generation;
+                if(condition.getAsBoolean()) return;
+                synchronized(this){
+                    while(generation == lastGeneration)
+                        wait();
+                }
+            }
+        }finally{
+            blockedThreads.decrementAndGet();
+        }
+    }
+
+    /**
+     * Wake up the waiting threads, call it after the state is changed
+     */
+    public void signal(){
+        if(blockedThreads.get() == 0) return;
+        synchronized(this){
+            generation++;
+            notifyAll();
+        }
+    }
+
+    public void setStrategy(WaitStrategy strategy){
+        this.strategy = strategy;
+        // blocked threads keep blocking until the next signal
+    }
+
+    public WaitStrategy getStrategy(){
+        return strategy;
+    }
+}
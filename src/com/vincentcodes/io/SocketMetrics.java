@@ -0,0 +1,333 @@
+package com.vincentcodes.io;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters of a connection, to find out why a transfer is slow without
+ * attaching a profiler. Counters are updated without locks by the
+ * threads which send, the listener and the timer, reading them never
+ * blocks these threads. Gauges (queue depths, windows) are read from
+ * the socket when they are asked for.
+ * <p>
+ * Counters of the sockets of a {@link UdpServerSocket} are added up in
+ * the {@link ServerMetrics} of the server as well.
+ * <p>
+ * Frames are the frames of the reliable protocol (a datagram each),
+ * raw sockets only count datagrams and messages.
+ * @see UdpSocket#getMetrics()
+ */
+public class SocketMetrics implements SocketMetricsMXBean{
+    /**
+     * A counter which adds to the counter of the server as well
+     */
+    static class Counter{
+        private final LongAdder value = new LongAdder();
+        private final Counter parent;
+
+        Counter(Counter parent){
+            this.parent = parent;
+        }
+
+        void increment(){
+            value.increment();
+            if(parent != null)
+                parent.value.increment();
+        }
+
+        long get(){
+            return value.sum();
+        }
+    }
+
+    private final UdpSocket socket; // null for the totals of a server
+    private final SocketMetrics parent;
+
+    final Counter datagramsReceived;
+    final Counter framesSent;
+    final Counter framesRetransmitted;
+    final Counter redundantFramesSent;
+    final Counter framesReceived;
+    final Counter duplicateFrames;
+    final Counter droppedFrames;
+    final Counter unsentDatagrams;
+    final Counter repairedFrames;
+    final Counter reportsSent;
+    final Counter acksAttached;
+    final Counter reportsReceived;
+    final Counter probes;
+    final Counter timeouts;
+    final Counter messagesSent;
+    final Counter messagesReceived;
+    private final LatencyHistogram rtt = new LatencyHistogram();
+
+    /**
+     * @param parent totals of the server, null if there is none
+     */
+    SocketMetrics(UdpSocket socket, SocketMetrics parent){
+        this.socket = socket;
+        this.parent = parent;
+        datagramsReceived = new Counter(parent == null? null : parent.datagramsReceived);
+        framesSent = new Counter(parent == null? null : parent.framesSent);
+        framesRetransmitted = new Counter(parent == null? null : parent.framesRetransmitted);
+        redundantFramesSent = new Counter(parent == null? null : parent.redundantFramesSent);
+        framesReceived = new Counter(parent == null? null : parent.framesReceived);
+        duplicateFrames = new Counter(parent == null? null : parent.duplicateFrames);
+        droppedFrames = new Counter(parent == null? null : parent.droppedFrames);
+        unsentDatagrams = new Counter(parent == null? null : parent.unsentDatagrams);
+        repairedFrames = new Counter(parent == null? null : parent.repairedFrames);
+        reportsSent = new Counter(parent == null? null : parent.reportsSent);
+        acksAttached = new Counter(parent == null? null : parent.acksAttached);
+        reportsReceived = new Counter(parent == null? null : parent.reportsReceived);
+        probes = new Counter(parent == null? null : parent.probes);
+        timeouts = new Counter(parent == null? null : parent.timeouts);
+        messagesSent = new Counter(parent == null? null : parent.messagesSent);
+        messagesReceived = new Counter(parent == null? null : parent.messagesReceived);
+    }
+
+    /**
+     * A report acknowledged a frame sent once
+     */
+    void recordRtt(long nanos){
+        rtt.record(nanos);
+        if(parent != null)
+            parent.recordRtt(nanos);
+    }
+
+    /**
+     * @return the socket, null for the totals of a server
+     */
+    public UdpSocket getSocket(){
+        return socket;
+    }
+
+    /**
+     * @return datagrams handed to the socket by its listener
+     */
+    @Override
+    public long getDatagramsReceived(){
+        return datagramsReceived.get();
+    }
+
+    /**
+     * @return data frames sent (raw sockets: datagrams), retransmissions
+     * included
+     */
+    @Override
+    public long getFramesSent(){
+        return framesSent.get();
+    }
+
+    /**
+     * @return frames sent again because they were lost (or their report
+     * was), probes included
+     */
+    @Override
+    public long getFramesRetransmitted(){
+        return framesRetransmitted.get();
+    }
+
+    /**
+     * @return parity frames and copies of END frames sent by forward
+     * error correction
+     */
+    @Override
+    public long getRedundantFramesSent(){
+        return redundantFramesSent.get();
+    }
+
+    /**
+     * @return data frames received, duplicates and dropped frames
+     * included
+     */
+    @Override
+    public long getFramesReceived(){
+        return framesReceived.get();
+    }
+
+    /**
+     * @return frames received more than once (a retransmission after a
+     * lost report, the copy of an END frame sent by forward error 
+     * correction, or the network duplicated it)
+     */
+    @Override
+    public long getDuplicateFrames(){
+        return duplicateFrames.get();
+    }
+
+    /**
+     * @return datagrams thrown away: the receive buffer was full, they
+     * were too far ahead or they could not be decoded
+     */
+    @Override
+    public long getDroppedFrames(){
+        return droppedFrames.get();
+    }
+
+    /**
+     * @return datagrams dropped before they left because the send queue 
+     * was full (they are lost like on the network, reliable sockets send
+     * them again)
+     */
+    @Override
+    public long getUnsentDatagrams(){
+        return unsentDatagrams.get();
+    }
+
+    /**
+     * @return lost frames rebuilt from a parity frame
+     */
+    @Override
+    public long getRepairedFrames(){
+        return repairedFrames.get();
+    }
+
+    /**
+     * @return reports sent on their own
+     */
+    @Override
+    public long getReportsSent(){
+        return reportsSent.get();
+    }
+
+    /**
+     * @return acks which were held back and sent on a data frame
+     */
+    @Override
+    public long getAcksAttached(){
+        return acksAttached.get();
+    }
+
+    /**
+     * @return reports and attached acks received
+     */
+    @Override
+    public long getReportsReceived(){
+        return reportsReceived.get();
+    }
+
+    /**
+     * @return probes sent because no report arrived in time
+     */
+    @Override
+    public long getProbes(){
+        return probes.get();
+    }
+
+    /**
+     * @return retransmission timeouts (every frame in flight was sent
+     * again)
+     */
+    @Override
+    public long getTimeouts(){
+        return timeouts.get();
+    }
+
+    /**
+     * @return messages acknowledged by the peer, a bundle counts as one 
+     * (raw sockets: messages sent)
+     */
+    @Override
+    public long getMessagesSent(){
+        return messagesSent.get();
+    }
+
+    /**
+     * @return messages taken by recv() (pieces in streaming mode)
+     */
+    @Override
+    public long getMessagesReceived(){
+        return messagesReceived.get();
+    }
+
+    /**
+     * @return round trip times measured by the reports
+     */
+    public LatencyHistogram getRttHistogram(){
+        return rtt;
+    }
+
+    @Override
+    public long getRttSamples(){
+        return rtt.getCount();
+    }
+
+    @Override
+    public long getRttMeanMicros(){
+        return rtt.getMean();
+    }
+
+    @Override
+    public long getRttP50Micros(){
+        return rtt.getPercentile(50);
+    }
+
+    @Override
+    public long getRttP99Micros(){
+        return rtt.getPercentile(99);
+    }
+
+    @Override
+    public long getRttMaxMicros(){
+        return rtt.getMax();
+    }
+
+    /**
+     * @return -1 if nothing is measured yet
+     * @see UdpSocket#getSmoothedRtt()
+     */
+    @Override
+    public long getSmoothedRttMicros(){
+        return socket == null? -1 : socket.getSmoothedRtt();
+    }
+
+    /**
+     * @return congestion window in frames
+     */
+    @Override
+    public int getCongestionWindow(){
+        return socket == null? 0 : socket.getCongestionController().getWindow();
+    }
+
+    /**
+     * @return frames sent and not acknowledged yet
+     */
+    @Override
+    public int getFramesInFlight(){
+        return socket == null? 0 : socket.getSender().getFramesInFlight();
+    }
+
+    /**
+     * @return messages (and bundles) waiting to be sent or to be
+     * acknowledged
+     */
+    @Override
+    public int getPendingMessages(){
+        return socket == null? 0 : socket.getSender().getPendingMessages();
+    }
+
+    /**
+     * @return bytes received and not taken by recv() yet, the messages
+     * being put together included
+     * @see UdpSocket#setReceiveBufferSize(int)
+     */
+    @Override
+    public long getReceiveBacklogBytes(){
+        return socket == null? 0 : socket.getReceiveBudget().getBytes();
+    }
+
+    /**
+     * @return frames kept because the frames before them are missing
+     * @see UdpSocket#setMaxReceiveFrames(int)
+     */
+    @Override
+    public int getReceiveBacklogFrames(){
+        return socket == null? 0 : socket.getReceiveBudget().getFrames();
+    }
+
+    @Override
+    public String toString(){
+        return "sent=" + getFramesSent() + " retransmitted=" + getFramesRetransmitted()
+            + " received=" + getFramesReceived() + " duplicate=" + getDuplicateFrames()
+            + " dropped=" + getDroppedFrames() + " rtt(p50/p99)=" + getRttP50Micros() + "/" + getRttP99Micros() + "us";
+    }
+}
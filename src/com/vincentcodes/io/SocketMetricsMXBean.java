@@ -0,0 +1,61 @@
+package com.vincentcodes.io;
+
+/**
+ * Attributes of a {@link SocketMetrics} seen through JMX
+ * @see UdpSocket#registerMetrics()
+ */
+public interface SocketMetricsMXBean {
+    long getDatagramsReceived();
+
+    long getFramesSent();
+
+    long getFramesRetransmitted();
+
+    long getRedundantFramesSent();
+
+    long getFramesReceived();
+
+    long getDuplicateFrames();
+
+    long getDroppedFrames();
+
+    long getUnsentDatagrams();
+
+    long getRepairedFrames();
+
+    long getReportsSent();
+
+    long getAcksAttached();
+
+    long getReportsReceived();
+
+    long getProbes();
+
+    long getTimeouts();
+
+    long getMessagesSent();
+
+    long getMessagesReceived();
+
+    long getRttSamples();
+
+    long getRttMeanMicros();
+
+    long getRttP50Micros();
+
+    long getRttP99Micros();
+
+    long getRttMaxMicros();
+
+    long getSmoothedRttMicros();
+
+    int getCongestionWindow();
+
+    int getFramesInFlight();
+
+    int getPendingMessages();
+
+    long getReceiveBacklogBytes();
+
+    int getReceiveBacklogFrames();
+}
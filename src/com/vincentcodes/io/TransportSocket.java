@@ -0,0 +1,69 @@
+package com.vincentcodes.io;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import com.vincentcodes.io.udpframes.Frame;
+import com.vincentcodes.io.udpframes.FramePool;
+
+/**
+ * A socket which sends and receives its packets through a
+ * {@link PacketTransport}. The socket runs the protocol on top of the
+ * transport exactly like it does on top of udp.
+ * <p>
+ * Packets are received straight into pooled frames backed by direct 
+ * buffers, so a channel writes them without another copy.
+ * <p>
+ * The listener thread is started by {@link #start()} once the socket is
+ * fully constructed (the factories of {@link UdpSocket} do it), so it
+ * never sees the fields of a subclass before they are assigned.
+ * @see UdpSocket#create(PacketTransport)
+ */
+public class TransportSocket extends UdpSocket{
+    /**
+     * @param reliable if false, packets will not be re-ordered and
+     * re-requested (same as {@link UdpSocket#createRaw(String, int)})
+     */
+    protected TransportSocket(PacketTransport transport, boolean reliable){
+        super(transport, new FramePool(reliable? PACKET_LENGTH : MAX_UDP_PACKET_SIZE, true));
+        super.reliable = reliable;
+    }
+
+    /**
+     * Starts receiving packets, call it once after construction
+     * @return this socket
+     */
+    protected TransportSocket start(){
+        new Thread("Transport listener"){
+            @Override
+            public void run(){
+                try{
+                    while(!isClosed()){
+                        // receive straight into the buffer of a pooled frame
+                        Frame datagram = framePool.acquire();
+                        ByteBuffer buffer = datagram.getBuffer();
+                        buffer.clear();
+                        try{
+                            transport.receive(buffer);
+                        }catch(IOException | RuntimeException e){
+                            datagram.release();
+                            throw e;
+                        }
+                        buffer.flip();
+                        addData(datagram);
+                    }
+                }catch(Exception e){
+                    if(!isClosed())
+                        e.printStackTrace();
+                    try{
+                        close();
+                    }catch(IOException ex){
+                        e.printStackTrace();
+                    }
+                }
+                return;
+            }
+        }.start();
+        return this;
+    }
+}
@@ -0,0 +1,86 @@
+package com.vincentcodes.io;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Objects;
+
+/**
+ * Reads the bytes of a {@link UdpStream} in pieces, as they are handed
+ * out by the listener thread.
+ * @see UdpStream#getInputStream()
+ */
+class UdpInputStream extends InputStream {
+    private static final byte[] EMPTY = new byte[0];
+
+    private final UdpStream stream;
+    private byte[] piece = EMPTY;
+    private int position = 0;
+    private boolean closed = false;
+
+    public UdpInputStream(UdpStream stream){
+        this.stream = stream;
+    }
+
+    @Override
+    public int read() throws IOException{
+        if(!fill()) return -1;
+        return piece[position++] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException{
+        Objects.checkFromIndexSize(off, len, b.length);
+        if(len == 0) return 0;
+        if(!fill()) return -1;
+        int total = 0;
+        do{
+            int n = Math.min(len - total, piece.length - position);
+            System.arraycopy(piece, position, b, off + total, n);
+            position += n;
+            total += n;
+            // take what has already arrived, without blocking
+        }while(total < len && (position < piece.length || poll()));
+        return total;
+    }
+
+    @Override
+    public int available() throws IOException{
+        if(closed) return 0;
+        return piece.length - position;
+    }
+
+    /**
+     * The socket stays open
+     */
+    @Override
+    public void close(){
+        closed = true;
+    }
+
+    /**
+     * Blocks until some bytes are ready
+     * @return false if the socket is closed
+     */
+    private boolean fill() throws IOException{
+        if(closed)
+            throw new IOException("Stream closed");
+        while(position >= piece.length){
+            byte[] next = stream.take();
+            if(next == null) return false;
+            piece = next;
+            position = 0;
+        }
+        return true;
+    }
+
+    /**
+     * @return false if nothing is ready
+     */
+    private boolean poll(){
+        byte[] next = stream.poll();
+        if(next == null) return false;
+        piece = next;
+        position = 0;
+        return true;
+    }
+}
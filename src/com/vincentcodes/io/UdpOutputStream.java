@@ -0,0 +1,105 @@
+package com.vincentcodes.io;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Sends the written bytes on a {@link UdpStream} in messages of
+ * {@link #CHUNK_SIZE} bytes. Messages are sent without waiting for the
+ * previous ones, at most {@link #MAX_UNACKED_CHUNKS} of them are waiting
+ * for an ack. Afterwards a write waits for the oldest one.
+ * @see UdpStream#getOutputStream()
+ */
+class UdpOutputStream extends OutputStream {
+    /**
+     * 64 full frames
+     */
+    public static final int CHUNK_SIZE = 64 * UdpSocket.PAYLOAD_LENGTH;
+
+    /**
+     * Around 3MB
+     */
+    public static final int MAX_UNACKED_CHUNKS = 32;
+
+    private final UdpStream stream;
+    private final ArrayDeque<CompletableFuture<Void>> unacked = new ArrayDeque<>();
+    private byte[] buffer = new byte[CHUNK_SIZE];
+    private int count = 0;
+    private boolean closed = false;
+
+    public UdpOutputStream(UdpStream stream){
+        this.stream = stream;
+    }
+
+    @Override
+    public synchronized void write(int b) throws IOException{
+        ensureOpen();
+        buffer[count++] = (byte)b;
+        if(count == buffer.length)
+            sendBuffer();
+    }
+
+    @Override
+    public synchronized void write(byte[] b, int off, int len) throws IOException{
+        Objects.checkFromIndexSize(off, len, b.length);
+        ensureOpen();
+        while(len > 0){
+            int n = Math.min(len, buffer.length - count);
+            System.arraycopy(b, off, buffer, count, n);
+            count += n;
+            off += n;
+            len -= n;
+            if(count == buffer.length)
+                sendBuffer();
+        }
+    }
+
+    /**
+     * Sends the buffered bytes, it does not wait for the ack
+     */
+    @Override
+    public synchronized void flush() throws IOException{
+        ensureOpen();
+        if(count > 0)
+            sendBuffer();
+    }
+
+    /**
+     * Sends the buffered bytes and waits until every byte is 
+     * acknowledged. The socket stays open.
+     */
+    @Override
+    public synchronized void close() throws IOException{
+        if(closed) return;
+        flush();
+        closed = true;
+        while(!unacked.isEmpty()){
+            stream.getSocket().awaitAcked(unacked.pollFirst());
+        }
+    }
+
+    private void sendBuffer() throws IOException{
+        byte[] chunk;
+        if(count == buffer.length){
+            // hand the buffer over, the sender reads it until it is acked
+            chunk = buffer;
+            buffer = new byte[CHUNK_SIZE];
+        }else chunk = Arrays.copyOf(buffer, count);
+        count = 0;
+        unacked.add(stream.sendAsync(chunk));
+
+        // report failures early and keep the number of chunks in flight down
+        while(!unacked.isEmpty() && (unacked.peekFirst().isDone() || unacked.size() > MAX_UNACKED_CHUNKS)){
+            stream.getSocket().awaitAcked(unacked.pollFirst());
+        }
+    }
+
+    private void ensureOpen() throws IOException{
+        if(closed)
+            throw new IOException("Stream closed");
+    }
+}
@@ -2,43 +2,111 @@ package com.vincentcodes.io;
 
 import java.io.Closeable;
 import java.io.IOException;
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
+import java.lang.management.ManagementFactory;
 import java.net.InetAddress;
-import java.net.InetSocketAddress;
 import java.net.SocketAddress;
 import java.net.SocketException;
-import java.util.Arrays;
-import java.util.HashMap;
-import java.util.Map;
 import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.function.UnaryOperator;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
 
 // TODO: packet loss problem. Resend if needed
 public class UdpServerSocket implements Closeable{
-    private DatagramSocket serverSocket;
-    private DatagramPacket packetIn;
+    /**
+     * How the server receives and sends udp packets
+     */
+    public enum Engine{
+        /**
+         * One thread calling the blocking DatagramSocket.receive()
+         */
+        BLOCKING,
+        /**
+         * One event loop on a non-blocking DatagramChannel with a 
+         * Selector. Packets are received and sent with direct buffers.
+         */
+        NIO
+    }
+
+    /**
+     * One engine per shard, all of them listen on the same port
+     */
+    private final ServerEngine[] engines;
 
     private volatile boolean isServerClosed = false;
-    private Map<String, UdpSocketServerImpl> ongoingConnections;
-    private boolean reliable = false;
+
+    /**
+     * Connections of all shards (every shard keeps its own table), the 
+     * connection limit applies to it
+     */
+    private final AtomicInteger connectionCount = new AtomicInteger();
+    private volatile int maxConnections = Integer.MAX_VALUE;
+    private volatile long idleTimeoutMs = 0;
+    private volatile ConnectionEvictionHandler evictionHandler;
+
+    private volatile UnaryOperator<PacketTransport> transportWrapper = UnaryOperator.identity();
+
+    private final ServerMetrics metrics = new ServerMetrics(this);
+    private ObjectName mbeanName; // guarded by metrics
 
     // How to implement a blocking function call in Java
     // https://stackoverflow.com/questions/7735328/implement-a-blocking-function-call-in-java
     private ConcurrentLinkedDeque<UdpSocketServerImpl> untouchedConnections;
 
+    /**
+     * @param port to be listened on
+     * @param reliable create a udp socket with the ability to re-order and re-request packets
+     * @param engine how packets are received and sent
+     * @throws SocketException
+     */
+    public UdpServerSocket(int port, boolean reliable, Engine engine) throws IOException{
+        untouchedConnections = new ConcurrentLinkedDeque<>();
+        this.engines = new ServerEngine[]{createEngine(engine, port, reliable, false)};
+    }
+    /**
+     * Creates a sharded server. {@code shards} sockets are bound to the 
+     * same port with SO_REUSEPORT, each of them has its own listener and 
+     * its own connections. The kernel spreads the peers across the 
+     * shards (by hashing the address and port of the peer), so a peer 
+     * always talks to the same shard.
+     * <p>
+     * {@link #accept()} returns the sockets of all shards.
+     * @param shards number of sockets (usually the number of cores)
+     * @throws SocketException if SO_REUSEPORT is not supported
+     */
+    public UdpServerSocket(int port, boolean reliable, Engine engine, int shards) throws IOException{
+        if(shards < 1)
+            throw new IllegalArgumentException("At least 1 shard is needed");
+        untouchedConnections = new ConcurrentLinkedDeque<>();
+        this.engines = new ServerEngine[shards];
+        try{
+            for(int i = 0; i < shards; i++){
+                engines[i] = createEngine(engine, port, reliable, shards > 1);
+                // port 0 picks a random port, the other shards use the same one
+                port = engines[i].getLocalPort();
+            }
+        }catch(IOException e){
+            close();
+            throw e;
+        }
+    }
     /**
      * @param port to be listened on
      * @param reliable create a udp socket with the ability to re-order and re-request packets
      * @throws SocketException
      */
     public UdpServerSocket(int port, boolean reliable) throws SocketException{
-        this.serverSocket = new DatagramSocket(port);
-        packetIn = new DatagramPacket(new byte[UdpSocket.MAX_UDP_PACKET_SIZE], UdpSocket.MAX_UDP_PACKET_SIZE);
-        ongoingConnections = new HashMap<>();
         untouchedConnections = new ConcurrentLinkedDeque<>();
-        this.reliable = reliable;
-        
-        serverSocket.setReceiveBufferSize(65536);
+        try{
+            this.engines = new ServerEngine[]{createEngine(Engine.BLOCKING, port, reliable, false)};
+        }catch(SocketException e){
+            throw e;
+        }catch(IOException e){
+            throw new SocketException(e.getMessage());
+        }
     }
     /**
      * Enables rawSocket by default
@@ -47,77 +115,232 @@ public class UdpServerSocket implements Closeable{
         this(port, true);
     }
 
+    private ServerEngine createEngine(Engine engine, int port, boolean reliable, boolean reusePort) throws IOException{
+        if(engine == Engine.NIO)
+            return new NioServerEngine(this, port, reliable, reusePort);
+        return new BlockingServerEngine(this, port, reliable, reusePort);
+    }
+
     public void startListening(){
-        new Thread("UdpServerSocket connection and data listener"){
-            public void run(){
-                try{
-                    while(!isServerClosed){
-                        // Receive a connection (with data, necessary)
-                        serverSocket.receive(packetIn);
-                        // packetIn.setLength(UdpSocket.PACKET_LENGTH);
-                        
-                        byte[] payload = Arrays.copyOfRange(packetIn.getData(), 0, packetIn.getLength());
-                        
-                        // Find / Create a proper socket
-                        InetSocketAddress remoteAddr = (InetSocketAddress)packetIn.getSocketAddress();
-                        String remoteFullAddr = remoteAddr.getAddress().getHostAddress() + ":" + remoteAddr.getPort();
-                        UdpSocketServerImpl client;
-                        if(!ongoingConnections.containsKey(remoteFullAddr)){
-                            // Create a UdpSocket (pass back the data into the connection socket)
-                            // Server socket is shared
-                            client = new UdpSocketServerImpl(serverSocket, remoteAddr, reliable);
-                            ongoingConnections.put(remoteFullAddr, client);
-
-                            synchronized(untouchedConnections){
-                                untouchedConnections.notify();
-                                untouchedConnections.add(client);
-                            }
-                        }else
-                            client = ongoingConnections.get(remoteFullAddr);
-                        
-                        // Add data to the proper socket
-                        if(!client.addData(payload))
-                            ongoingConnections.remove(remoteFullAddr);
-                    }
-                }catch(Exception e){
-                    e.printStackTrace();
-                    close();
-                }
-                return;
-            }
-        }.start();
+        for(ServerEngine engine : engines){
+            engine.start();
+        }
+    }
+
+    /**
+     * Called by the engine when a new peer appears
+     */
+    void addConnection(UdpSocketServerImpl client){
+        // engines of every shard share the same queue
+        metrics.onConnectionOpened();
+        synchronized(untouchedConnections){
+            untouchedConnections.notify();
+            untouchedConnections.add(client);
+        }
+    }
+
+    /**
+     * Wrap the transport of every new connection (eg. in an 
+     * {@link ImpairedTransport}), their packets are sent through what it
+     * returns. Connections opened before keep their transport. Only the
+     * packets sent by the server go through the wrapper, the packets of
+     * the peers are received by the listener of the server.
+     * @param wrapper null to send through the port of the server again
+     * @see UdpSocket#create(String, int, UnaryOperator)
+     */
+    public void setTransportWrapper(UnaryOperator<PacketTransport> wrapper){
+        this.transportWrapper = wrapper == null? UnaryOperator.identity() : wrapper;
+    }
+
+    /**
+     * Called by the engine for every new peer
+     */
+    PacketTransport wrapTransport(PacketTransport transport){
+        return transportWrapper.apply(transport);
+    }
+
+    /**
+     * @return connections waiting for {@link #accept()}
+     */
+    int getPendingAccepts(){
+        return untouchedConnections.size();
+    }
+
+    long[] getDatagramsReceivedPerShard(){
+        long[] datagrams = new long[engines.length];
+        for(int i = 0; i < engines.length; i++){
+            if(engines[i] != null)
+                datagrams[i] = engines[i].getDatagramsReceived();
+        }
+        return datagrams;
+    }
+
+    AtomicInteger getConnectionCounter(){
+        return connectionCount;
+    }
+
+    /**
+     * Run the action for the connections of every shard
+     * @see ConnectionTable#forEach(Consumer)
+     */
+    void forEachConnection(Consumer<UdpSocketServerImpl> action){
+        for(ServerEngine engine : engines){
+            if(engine != null)
+                engine.getConnectionTable().forEach(action);
+        }
+    }
+
+    /**
+     * @return new peers turned away by the connection limit or because
+     * their socket could not be built (all shards)
+     */
+    long getConnectionsRejected(){
+        long rejected = 0;
+        for(ServerEngine engine : engines){
+            if(engine != null)
+                rejected += engine.getConnectionTable().getRejections();
+        }
+        return rejected;
+    }
+
+    /**
+     * @return idle connections closed (all shards)
+     */
+    long getConnectionsEvicted(){
+        long evicted = 0;
+        for(ServerEngine engine : engines){
+            if(engine != null)
+                evicted += engine.getConnectionTable().getEvictions();
+        }
+        return evicted;
     }
 
     /**
      * Accepts an incoming connection, before this, you need to invoke
-     * {@link #startListening()}
+     * {@link #startListening()}. Connections which are evicted before 
+     * being accepted are skipped.
      * @return a connected UdpSocket, null if the server is closed
      */
     public UdpSocket accept() throws IOException{
         if(isServerClosed) return null;
-        synchronized(untouchedConnections){
-            try{
-                while(untouchedConnections.peekLast() == null){
-                    untouchedConnections.wait();
-                }
-            }catch(InterruptedException ignored){}
+        UdpSocket socket;
+        do{
+            synchronized(untouchedConnections){
+                try{
+                    while(untouchedConnections.peekLast() == null){
+                        untouchedConnections.wait();
+                    }
+                }catch(InterruptedException ignored){}
+            }
+            socket = untouchedConnections.pollLast();
+        }while(socket != null && socket.isClosed());
+        return socket;
+    }
+
+    /**
+     * Close and forget connections which receive nothing for 
+     * {@code timeoutMs}, so that peers which are gone (eg. behind a NAT 
+     * which changed their port) do not pile up. Closed sockets are 
+     * always forgotten. Default: 0 (never)
+     * @see #setEvictionHandler(ConnectionEvictionHandler)
+     */
+    public void setIdleTimeout(long timeoutMs){
+        if(timeoutMs < 0)
+            throw new IllegalArgumentException("Timeout must not be negative");
+        idleTimeoutMs = timeoutMs;
+        for(ServerEngine engine : engines){
+            if(engine != null)
+                engine.getConnectionTable().setIdleTimeout(timeoutMs);
+        }
+    }
+
+    public long getIdleTimeout(){
+        return idleTimeoutMs;
+    }
+
+    /**
+     * Limit the number of connections (of all shards). Packets from new 
+     * peers are dropped while the limit is reached. Default: unlimited
+     */
+    public void setMaxConnections(int connections){
+        if(connections < 1)
+            throw new IllegalArgumentException("Max connections must be positive");
+        maxConnections = connections;
+        for(ServerEngine engine : engines){
+            if(engine != null)
+                engine.getConnectionTable().setMaxConnections(connections);
+        }
+    }
+
+    public int getMaxConnections(){
+        return maxConnections;
+    }
+
+    /**
+     * @param handler called (on a timer thread) after an idle connection 
+     * is closed, null to remove it
+     */
+    public void setEvictionHandler(ConnectionEvictionHandler handler){
+        evictionHandler = handler;
+        for(ServerEngine engine : engines){
+            if(engine != null)
+                engine.getConnectionTable().setEvictionHandler(handler);
+        }
+    }
+
+    ConnectionEvictionHandler getEvictionHandler(){
+        return evictionHandler;
+    }
+
+    /**
+     * @return number of connections known to the server (all shards)
+     */
+    public int getConnectionCount(){
+        return connectionCount.get();
+    }
+
+    /**
+     * @return the counters of the server and of all its connections
+     * @see #registerMetrics()
+     * @see UdpSocket#getMetrics()
+     */
+    public ServerMetrics getMetrics(){
+        return metrics;
+    }
+
+    /**
+     * Make the metrics of this server visible through JMX (under 
+     * {@code com.vincentcodes.io:type=UdpServerSocket,port=<port>}), 
+     * they are removed once the server is closed. The connections are 
+     * not registered one by one, see {@link UdpSocket#registerMetrics()}.
+     * @return the name of the MBean
+     * @throws JMException if the MBean cannot be registered (eg. another 
+     * server on the same port registered it)
+     */
+    public ObjectName registerMetrics() throws JMException{
+        synchronized(metrics){
+            if(mbeanName == null){
+                ObjectName name = new ObjectName("com.vincentcodes.io:type=UdpServerSocket,port=" + getLocalPort());
+                ManagementFactory.getPlatformMBeanServer().registerMBean(metrics, name);
+                mbeanName = name;
+            }
+            return mbeanName;
         }
-        return untouchedConnections.pollLast();
     }
 
     /**
      * @return the port which this server socket listens on
      */
     public int getLocalPort(){
-        return serverSocket.getLocalPort();
+        return engines[0].getLocalPort();
     }
 
     public InetAddress getLocalAddress(){
-        return serverSocket.getLocalAddress();
+        return engines[0].getLocalAddress();
     }
 
     public SocketAddress getLocalSocketAddress(){
-        return serverSocket.getLocalSocketAddress();
+        return engines[0].getLocalSocketAddress();
     }
 
     public boolean isClosed(){
@@ -129,14 +352,18 @@ public class UdpServerSocket implements Closeable{
      * @throws IOException
      */
     public void setSoTimeout(int timeoutMs) throws IOException{
-        serverSocket.setSoTimeout(timeoutMs);
+        for(ServerEngine engine : engines){
+            engine.setSoTimeout(timeoutMs);
+        }
     }
 
     /**
      * Enable/disable SO_BROADCAST
      */
     public void setBroadcast(boolean on) throws IOException{
-        serverSocket.setBroadcast(on);
+        for(ServerEngine engine : engines){
+            engine.setBroadcast(on);
+        }
     }
 
     /**
@@ -145,7 +372,18 @@ public class UdpServerSocket implements Closeable{
     @Override
     public void close(){
         isServerClosed = true;
-        serverSocket.close();
+        synchronized(metrics){
+            if(mbeanName != null){
+                try{
+                    ManagementFactory.getPlatformMBeanServer().unregisterMBean(mbeanName);
+                }catch(JMException ignored){}
+                mbeanName = null;
+            }
+        }
+        for(ServerEngine engine : engines){
+            if(engine != null)
+                engine.close();
+        }
     }
 
 }
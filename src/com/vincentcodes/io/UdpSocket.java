@@ -1,22 +1,34 @@
 package com.vincentcodes.io;
 
-import java.io.ByteArrayOutputStream;
 import java.io.Closeable;
 import java.io.IOException;
-import java.io.UncheckedIOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
 import java.net.Inet4Address;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.SocketException;
-import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.List;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.UnaryOperator;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
 
 import com.vincentcodes.io.udpframes.Frame;
+import com.vincentcodes.io.udpframes.FramePool;
 
 /**
  * This abstract class implements the most basic send/receive functions
- * for UdpSocketImpl and UdpServerSocketImpl.
+ * for UdpSocketImpl, TransportSocket and UdpSocketServerImpl. Every 
+ * packet goes through the {@link PacketTransport} of the socket.
  */
 public abstract class UdpSocket implements Closeable{
     // Maximum length of a datagram packet is specified in a IETF document
@@ -28,21 +40,142 @@ public abstract class UdpSocket implements Closeable{
      * default: 1472 (optimal udp size without pppoe. Optimal means that 
      * packet loss occurs less)
      * <p>
-     * 5 bytes are used on my reliable udp implementation. Udp frames.
+     * 11 bytes are used on my reliable udp implementation. Udp frames.
      * @see Frame
      */
-    public static final int PAYLOAD_LENGTH = 1472 - 5;
+    public static final int PAYLOAD_LENGTH = 1472 - Frame.HEADER_LENGTH;
     // public static final int PAYLOAD_LENGTH = 3072;
-    public static final int PACKET_LENGTH = 5 + PAYLOAD_LENGTH;
+    public static final int PACKET_LENGTH = Frame.HEADER_LENGTH + PAYLOAD_LENGTH;
+
+    /**
+     * Default number of frames which can be sent without being acknowledged
+     */
+    public static final int DEFAULT_WINDOW_SIZE = 64;
+
+    /**
+     * recv() throws if no frame arrives for this long. The sender goes
+     * quiet for a whole RTO when the tail of a message is lost, and
+     * twice as long if the re-sent frames are lost too.
+     * @see RttEstimator
+     */
+    public static final int DEFAULT_READ_TIMEOUT = 3000;
+
+    /**
+     * Default limit of the bytes received but not yet taken by recv() 
+     * (including the messages being put together)
+     * @see #setReceiveBufferSize(int)
+     */
+    public static final int DEFAULT_RECEIVE_BUFFER_SIZE = 16 * 1024 * 1024;
+
+    /**
+     * Default limit of the frames kept because they arrived out of order
+     * @see #setMaxReceiveFrames(int)
+     */
+    public static final int DEFAULT_MAX_RECEIVE_FRAMES = 2048;
+
+    /**
+     * No forward error correction
+     * @see #setFecGroupSize(int)
+     */
+    public static final int FEC_OFF = 0;
+
+    /**
+     * Forward error correction with a group size following the losses
+     * @see #setFecGroupSize(int)
+     */
+    public static final int FEC_ADAPTIVE = -1;
+
+    /**
+     * Stream used by {@link #send(byte[])} and {@link #recv()}
+     */
+    public static final int DEFAULT_STREAM = 0;
+
+    /**
+     * The ack of a small message sent with sendAsync() waits this long
+     * for a frame going back to the sender (plus up to one tick of the
+     * timer), it is sent on its own afterwards
+     */
+    static final int ACK_DELAY_MS = 1;
+
+    /**
+     * Messages up to this size are bundled when batching is on
+     * @see #setBatchDelay(int)
+     */
+    public static final int MAX_BATCHED_MESSAGE = 256;
+
+    private static final AtomicInteger mbeanIds = new AtomicInteger();
     
+    /**
+     * Raw packets (complete messages are kept by the streams)
+     */
     protected ConcurrentLinkedDeque<byte[]> inputData;
-    protected ConcurrentLinkedDeque<Frame> inputDataFrames;
     
     protected boolean reliable = true;
 
-    protected UdpSocket(){
+    /**
+     * Every packet of this socket is sent through it
+     */
+    protected final PacketTransport transport;
+
+    /**
+     * Frames (and their buffers) used to send and receive
+     */
+    protected final FramePool framePool;
+
+    /**
+     * Runs report and read timeouts
+     */
+    protected final HashedWheelTimer timer;
+
+    private volatile int windowSize = DEFAULT_WINDOW_SIZE;
+    private volatile int fecGroupSize = FEC_OFF;
+    private volatile int batchDelayMs = 0;
+    private volatile int readTimeoutMs = DEFAULT_READ_TIMEOUT;
+    private final RttEstimator rttEstimator = new RttEstimator();
+    private final SocketMetrics metrics;
+    private volatile ObjectName mbeanName;
+    private final ReceiveBudget receiveBudget = new ReceiveBudget(DEFAULT_RECEIVE_BUFFER_SIZE, DEFAULT_MAX_RECEIVE_FRAMES);
+    private final Sender sender;
+    private final ConcurrentHashMap<Integer, UdpStream> streams = new ConcurrentHashMap<>();
+    private final UdpStream defaultStream;
+    private volatile WaitStrategy waitStrategy = WaitStrategy.BLOCKING;
+    private final AtomicReference<Frame> delayedAck = new AtomicReference<>();
+    private volatile HashedWheelTimer.Timeout ackTimeout;
+
+    // wake up recvRaw() and send() respectively
+    private final Signal messageSignal = new Signal(WaitStrategy.BLOCKING);
+    private final Signal reportSignal = new Signal(WaitStrategy.BLOCKING);
+
+    /**
+     * @param transport packets of this socket are sent (and usually 
+     * received) through it
+     * @param framePool frames are taken from this pool to send and 
+     * receive, the pool may be shared with other sockets
+     */
+    protected UdpSocket(PacketTransport transport, FramePool framePool){
+        this(transport, framePool, HashedWheelTimer.getShared());
+    }
+
+    /**
+     * @param timer runs the timeouts of this socket, the timer may be 
+     * shared with other sockets
+     */
+    protected UdpSocket(PacketTransport transport, FramePool framePool, HashedWheelTimer timer){
+        this(transport, framePool, timer, null);
+    }
+
+    /**
+     * @param serverMetrics the counters of this socket are added to 
+     * them as well, null if there are none
+     */
+    UdpSocket(PacketTransport transport, FramePool framePool, HashedWheelTimer timer, SocketMetrics serverMetrics){
         inputData = new ConcurrentLinkedDeque<>();
-        inputDataFrames = new ConcurrentLinkedDeque<>();
+        this.transport = transport;
+        this.framePool = framePool;
+        this.timer = timer;
+        metrics = new SocketMetrics(this, serverMetrics);
+        sender = new Sender(this, timer, reportSignal, rttEstimator, new NewRenoController(), windowSize, metrics);
+        defaultStream = getOrCreateStream(DEFAULT_STREAM);
     }
 
     /**
@@ -63,6 +196,30 @@ public abstract class UdpSocket implements Closeable{
     public static UdpSocket createRaw(Inet4Address dest, int port) throws SocketException{
         return new UdpSocketImpl(dest, port, false);
     }
+    /**
+     * Creates a normal udp socket whose transport is wrapped first, eg.
+     * {@code UdpSocket.create(host, port, t -> new ImpairedTransport(t, 42))}
+     * @see UdpServerSocket#setTransportWrapper(UnaryOperator)
+     */
+    public static UdpSocket create(String dest, int port, UnaryOperator<PacketTransport> wrapper) throws SocketException{
+        return new UdpSocketImpl(new InetSocketAddress(dest, port), true, wrapper);
+    }
+    public static UdpSocket createRaw(String dest, int port, UnaryOperator<PacketTransport> wrapper) throws SocketException{
+        return new UdpSocketImpl(new InetSocketAddress(dest, port), false, wrapper);
+    }
+    /**
+     * Creates a normal socket on top of another transport than udp
+     * @see SharedMemoryTransport
+     */
+    public static UdpSocket create(PacketTransport transport){
+        return new TransportSocket(transport, true).start();
+    }
+    /**
+     * Creates a "raw" socket on top of another transport than udp
+     */
+    public static UdpSocket createRaw(PacketTransport transport){
+        return new TransportSocket(transport, false).start();
+    }
 
     /**
      * @param data
@@ -70,31 +227,146 @@ public abstract class UdpSocket implements Closeable{
      * operation is successful.
      */
     protected boolean addData(byte[] bytes){
-        if(isClosed()) return false;
+        return addData(new Frame(ByteBuffer.wrap(bytes)));
+    }
+
+    /**
+     * @param datagram a (not decoded) frame holding the whole packet 
+     * from index 0 to its limit. The socket takes the ownership of the 
+     * frame and releases it when it is consumed.
+     * @return If false, it indicates this socket is closed, otherwise, 
+     * operation is successful.
+     */
+    protected boolean addData(Frame datagram){
+        if(isClosed()){
+            datagram.release();
+            return false;
+        }
+        metrics.datagramsReceived.increment();
         
         if(!reliable){
-            inputData.add(bytes);
-            synchronized(inputData){
-                inputData.notify();
+            ByteBuffer buffer = datagram.getBuffer();
+            if(!receiveBudget.tryAcquireBytes(buffer.remaining())){
+                // nobody reads, drop it like a full socket buffer does
+                metrics.droppedFrames.increment();
+                datagram.release();
+                return true;
             }
+            byte[] bytes = new byte[buffer.remaining()];
+            buffer.get(bytes);
+            datagram.release();
+            inputData.add(bytes);
+            messageSignal.signal();
         }else{
-            Frame frame = Frame.parse(bytes);
-            inputDataFrames.add(frame);
-            // debug("Receiving: " + frame.toString());
-            synchronized(inputDataFrames){
-                inputDataFrames.notify();
+            if(!datagram.decode()){
+                metrics.droppedFrames.increment();
+                datagram.release();
+                return true;
             }
+            // debug("Receiving: " + frame.toString());
+            receiveFrame(datagram);
         }
         return true;
     }
 
     /**
-     * Allows sending payload size greater than SPECIFIED_BUF_LENGTH with 
-     * one udp packet
+     * Frames are processed as soon as they arrive. Report frames slide 
+     * the windows of the messages being sent, the other frames are put 
+     * back into order by their stream and reported to the sender.
+     * <p>
+     * The ack of a message of one frame which did not request a report 
+     * is held back for {@link #ACK_DELAY_MS}, so that the reply (if 
+     * any) carries it. A small request and its reply then cost one 
+     * datagram each way.
+     */
+    private void receiveFrame(Frame frame){
+        if(frame.ackAttached){
+            metrics.reportsReceived.increment();
+            sender.onAck(frame.ackStreamId, frame.ackMsgId, frame.ackWindow);
+        }
+        if(frame.type == Frame.REPORT){
+            metrics.reportsReceived.increment();
+            sender.onReport(frame);
+            frame.release();
+            return;
+        }
+        if(frame.type == Frame.WINDOW_UPDATE){
+            sender.onWindowUpdate(frame);
+            frame.release();
+            return;
+        }
+
+        metrics.framesReceived.increment();
+        UdpStream stream = getOrCreateStream(frame.streamId);
+        Frame report = stream.onFrame(frame);
+        if(report == null) return;
+        if(stream.isReportDelayable()){
+            delayAck(report);
+            return;
+        }
+        sendAck(report);
+    }
+
+    private void sendAck(Frame report){
+        metrics.reportsSent.increment();
+        try{
+            sendFrame(report);
+        }catch(IOException ignored){} // the sender will send the frames again
+    }
+
+    /**
+     * Only one ack waits at a time, the previous one is sent now
+     */
+    private void delayAck(Frame ack){
+        Frame previous = delayedAck.getAndSet(ack);
+        if(previous != null)
+            sendAck(previous);
+        HashedWheelTimer.Timeout timeout = ackTimeout;
+        if(timeout == null)
+            ackTimeout = timer.schedule(this::flushDelayedAck, ACK_DELAY_MS);
+        else if(timeout.isExpired())
+            timeout.reset(ACK_DELAY_MS);
+    }
+
+    private void flushDelayedAck(){
+        Frame ack = delayedAck.getAndSet(null);
+        if(ack != null)
+            sendAck(ack);
+    }
+
+    /**
+     * Called by the sender to attach the delayed ack to a frame
+     * @return the (pooled) complete report of the delayed ack, null if
+     * no ack is waiting
+     */
+    Frame takeDelayedAck(){
+        if(delayedAck.get() == null) return null;
+        return delayedAck.getAndSet(null);
+    }
+
+    /**
+     * Sends the datagram from the position to the limit of the buffer
+     */
+    void sendDatagram(ByteBuffer datagram) throws IOException{
+        transport.send(datagram);
+    }
+
+    /**
+     * Sends one datagram made of the header, the payload and the trailer
+     * (each from its position to its limit, the positions may be moved,
+     * the trailer is usually empty)
      */
-    protected abstract void sendUnsafe(byte[] bytes) throws IOException;
+    void sendDatagram(ByteBuffer header, ByteBuffer payload, ByteBuffer trailer) throws IOException{
+        transport.send(header, payload, trailer);
+    }
 
-    protected abstract void sendUnsafe(byte[] bytes, int offset, int length) throws IOException;
+    /**
+     * Sends the datagrams held back by the transport
+     * @see PacketTransport#flush()
+     */
+    void flushDatagrams() throws IOException{
+        transport.flush();
+    }
 
     /**
      * Send bytes to the destination through udp without using frames. 
@@ -105,15 +377,16 @@ public abstract class UdpSocket implements Closeable{
      */
     private void sendRaw(byte[] bytes) throws IOException {
         int totalRead = 0; // start from 0
-        byte[] payload = new byte[PACKET_LENGTH];
         for(; totalRead + PACKET_LENGTH < bytes.length; totalRead += PACKET_LENGTH){
-            System.arraycopy(bytes, totalRead, payload, 0, PACKET_LENGTH);
-            // byte[] payload = Arrays.copyOfRange(bytes, totalRead, totalRead + PACKET_LENGTH);
-            sendUnsafe(payload);
+            sendDatagram(ByteBuffer.wrap(bytes, totalRead, PACKET_LENGTH));
+            metrics.framesSent.increment();
+        }
+        metrics.messagesSent.increment();
+        if(totalRead + 1 < bytes.length){
+            sendDatagram(ByteBuffer.wrap(bytes, totalRead, bytes.length - totalRead));
+            metrics.framesSent.increment();
         }
-        if(totalRead + 1 >= bytes.length) return;
-        payload = Arrays.copyOfRange(bytes, totalRead, bytes.length);
-        sendUnsafe(payload);
+        flushDatagrams();
     }
 
     /**
@@ -122,155 +395,178 @@ public abstract class UdpSocket implements Closeable{
      * @see #sendRaw(byte[])
      */
     private byte[] recvRaw() throws IOException {
-        synchronized(inputData){
-            try{
-                while(inputData.peekFirst() == null && !isClosed()){
-                    inputData.wait();
-                }
-            }catch(InterruptedException ignored){}
+        try{
+            messageSignal.await(() -> inputData.peekFirst() != null || isClosed());
+        }catch(InterruptedException ignored){}
+        byte[] bytes = inputData.pollFirst();
+        if(bytes != null){
+            receiveBudget.releaseBytes(bytes.length);
+            metrics.messagesReceived.increment();
         }
-        return inputData.pollFirst();
+        return bytes;
     }
 
     /**
-     * Send a frame. Sequence number will not be assigned automatically
+     * Send a frame. Sequence number will not be assigned automatically. 
+     * The frame is released afterwards.
      * @see #recvFrame()
      */
-    private void sendFrame(Frame frame) throws IOException {
+    void sendFrame(Frame frame) throws IOException {
         // debug("Sending: " + frame);
-        sendUnsafe(frame.toBytes());
+        try{
+            sendDatagram(frame.encode());
+            flushDatagrams();
+        }finally{
+            frame.release();
+        }
     }
 
     /**
      * Send payload with a {@link com.vincentcodes.io.udpframes.Frame Frame} 
      * using udp. Payload has no limit in size ({@code < Integer.MAX_VALUE}). 
-     * Sequence number will be assigned automatically, data frames are sent
-     * after start of data frame is sent. End of data frame is sent after
-     * data frames are sent.
+     * Sequence number will be assigned automatically. START, DATA... and 
+     * END frames are sent through a sliding window, at most 
+     * {@link #getWindowSize()} frames (and no more than the congestion 
+     * window) are waiting for an ack. Frames are paced over the round 
+     * trip time instead of being sent in one burst.
      * <p>
-     * This method also waits for a report frame sent from the client. The 
-     * method will re-send the lost packets again until {@code payload.length 
-     * == 0}
+     * The listener thread processes the report frames sent from the 
+     * receiver while the frames are being sent. Acknowledged frames slide 
+     * the window forward, lost frames are re-sent immediately. If no report 
+     * arrives in time (the retransmission timeout, computed from the 
+     * measured round trip time), all unacknowledged frames inside the 
+     * window are re-sent. The method returns when every frame is 
+     * acknowledged.
+     * @throws IOException if the receiver stops responding, the socket 
+     * is closed in this case
+     * @see #sendAsync(byte[])
      * @see #recv()
      */
     public void send(byte[] bytes) throws IOException{
-        if(isClosed()) return;
+        if(!reliable){
+            if(!isClosed())
+                sendRaw(bytes);
+            return;
+        }
+        sendReliable(DEFAULT_STREAM, bytes);
+    }
 
+    /**
+     * Same as {@link #send(byte[])}, the bytes from the position to the 
+     * limit of the buffer are sent. The frames are cut from the buffer 
+     * without copying the bytes, the buffer (and its position) is not 
+     * modified.
+     * @see #sendAsync(ByteBuffer)
+     */
+    public void send(ByteBuffer data) throws IOException{
         if(!reliable){
-            sendRaw(bytes);
+            send(toArray(data));
             return;
         }
-        
-        // Send data: START, DATA..., END
-        List<Frame> sentPackets = new ArrayList<>((int)Math.ceil(bytes.length / (PAYLOAD_LENGTH * 1.0)));
-        int totalRead = 0; // start from 0
-        int seqNum = 0; // start from 0
-        boolean firstPacket = true;
-        Frame frame = null;
-        for(; totalRead + PAYLOAD_LENGTH < bytes.length; totalRead += PAYLOAD_LENGTH){
-            byte[] payload = Arrays.copyOfRange(bytes, totalRead, totalRead+PAYLOAD_LENGTH);
-            if(firstPacket){
-                frame = new Frame(1, seqNum++, payload);
-                firstPacket = false;
-            }else
-                frame = new Frame(0, seqNum++, payload);
-            // sendFrame(frame);
-            sentPackets.add(frame);
+        sendReliable(DEFAULT_STREAM, data);
+    }
+
+    void sendReliable(int streamId, byte[] bytes) throws IOException{
+        sendReliable(streamId, ByteBuffer.wrap(bytes));
+    }
+
+    void sendReliable(int streamId, ByteBuffer data) throws IOException{
+        if(isClosed()) return;
+        // we are waiting, the receiver should not delay its ack
+        awaitAcked(sender.send(streamId, data, true));
+    }
+
+    /**
+     * Blocks until a message is acknowledged
+     * @throws IOException if the message failed
+     */
+    void awaitAcked(CompletableFuture<Void> future) throws IOException{
+        try{
+            reportSignal.await(future::isDone);
+        }catch(InterruptedException e){
+            close();
+            return;
         }
-        byte[] payload = Arrays.copyOfRange(bytes, totalRead, bytes.length);
-        frame = new Frame(2, seqNum++, payload);
-        // sendFrame(frame);
-        sentPackets.add(frame);
+        try{
+            future.join();
+        }catch(CompletionException e){
+            if(e.getCause() instanceof IOException)
+                throw (IOException)e.getCause();
+            throw new IOException(e.getCause());
+        }
+    }
 
-        
-        // Start the timer beforehand. Wait at most 1s for the report frame 
-        Container<Frame> lastFrame = new Container<>();
-        lastFrame.value = sentPackets.get(sentPackets.size()-1);
-        CountdownTimer readTimeoutTimer = new CountdownTimer(1000);
-        readTimeoutTimer.setExitHandler(() ->{
+    /**
+     * Send a message without waiting for the receiver. Messages are sent 
+     * in order, each message starts as soon as the frames of the previous 
+     * one are sent (without waiting for its acks). The receiver gets them 
+     * in the same order from {@link #recv()}. Messages of other streams 
+     * are sent in between.
+     * <p>
+     * The future completes once every frame of the message is 
+     * acknowledged, or completes exceptionally with an IOException if 
+     * the receiver stops responding (the socket is closed in this case). 
+     * It is completed by the listener thread, keep the callbacks short.
+     * <p>
+     * The bytes must not be changed until the future completes.
+     * @see #send(byte[])
+     */
+    public CompletableFuture<Void> sendAsync(byte[] bytes){
+        if(!reliable && !isClosed()){
+            CompletableFuture<Void> future = new CompletableFuture<>();
             try{
-                // Maybe the client didn't receive the last frame
-                sendFrame(lastFrame.value);
+                sendRaw(bytes);
+                future.complete(null);
             }catch(IOException e){
-                throw new UncheckedIOException(e);
-            }
-        });
-        
-        for(Frame f : sentPackets)
-            sendFrame(f);
-        
-        Frame reportFrame = null;
-        boolean isLastFrame = false;
-        readTimeoutTimer.start();
-        while(true){
-            readTimeoutTimer.reset();
-            firstPacket = true;
-            //Wait for the report frame
-            // debug("Waiting for report frame");
-            while(true){
-                synchronized(inputDataFrames){
-                    try{
-                        inputDataFrames.wait();
-                    }catch(InterruptedException e){close();return;}
-                }
-                // Catch the latest packet
-                if(inputDataFrames.peekLast() != null && inputDataFrames.peekLast().type == 3){
-                    isLastFrame =  true;
-                    break;
-                }
-                // just in case recv() took all the packets and the report frame becomes the first
-                if(inputDataFrames.peekFirst() != null && inputDataFrames.peekFirst().type == 3){
-                    isLastFrame = false;
-                    break;
-                }
-            }
-            readTimeoutTimer.stopTimer();
-            if(isLastFrame){
-                reportFrame = inputDataFrames.pollLast();
-            }else{
-                reportFrame = inputDataFrames.pollFirst();
-            }
-            // debug("Report arrived: " + reportFrame.toString());
-
-            // Exit if no packet loss
-            if(reportFrame.payload.length == 0) break;
-            
-            String response = new String(reportFrame.payload).trim();
-
-            reportFrame = null;
-            String[] missingPacketsSeq = response.split(",");
-            // debug("Respond missing packets: " + Arrays.toString(missingPacketsSeq));
-            if(missingPacketsSeq.length == 1){
-                int index = Integer.parseInt(response);
-                frame = sentPackets.get(index);
-                frame.type = 2;
-                lastFrame.value = frame;
-                sendFrame(sentPackets.get(index));
-            }else{
-                int index = Integer.parseInt(missingPacketsSeq[0]);
-                frame = sentPackets.get(index);
-                frame.type = 1;
-                sendFrame(sentPackets.get(index));
-                for(int i = 1; i < missingPacketsSeq.length-1; i++){
-                    String num = missingPacketsSeq[i];
-                    index = Integer.parseInt(num);
-                    if(index >= 0 && index < sentPackets.size())
-                        sendFrame(sentPackets.get(index));
-                }
-                index = Integer.parseInt(missingPacketsSeq[missingPacketsSeq.length-1]);
-                frame = sentPackets.get(index);
-                frame.type = 2;
-                lastFrame.value = frame;
-                sendFrame(sentPackets.get(index));
+                future.completeExceptionally(e);
             }
+            return future;
         }
-        readTimeoutTimer.killTimer();
-        sentPackets.clear();
+        return sendReliableAsync(DEFAULT_STREAM, bytes);
+    }
+
+    /**
+     * Same as {@link #sendAsync(byte[])}, the bytes from the position to 
+     * the limit of the buffer are sent. The frames are cut from the 
+     * buffer without copying the bytes (lost frames are sent again from 
+     * the buffer as well), the bytes must not be changed until the 
+     * future completes. The position of the buffer is not modified.
+     * <p>
+     * A direct buffer is never copied by sockets which connect to a 
+     * server (they write the header and the payload in one gathering 
+     * write).
+     * @see #send(ByteBuffer)
+     */
+    public CompletableFuture<Void> sendAsync(ByteBuffer data){
+        if(!reliable)
+            return sendAsync(toArray(data));
+        return sendReliableAsync(DEFAULT_STREAM, data);
+    }
+
+    CompletableFuture<Void> sendReliableAsync(int streamId, byte[] bytes){
+        return sendReliableAsync(streamId, ByteBuffer.wrap(bytes));
+    }
+
+    CompletableFuture<Void> sendReliableAsync(int streamId, ByteBuffer data){
+        if(isClosed()){
+            CompletableFuture<Void> future = new CompletableFuture<>();
+            future.completeExceptionally(new IOException("Socket is closed"));
+            return future;
+        }
+        return sender.send(streamId, data, false);
+    }
+
+    private static byte[] toArray(ByteBuffer data){
+        byte[] bytes = new byte[data.remaining()];
+        data.duplicate().get(bytes);
+        return bytes;
     }
 
     /**
      * Receive data. Will re-order or request lost packets.
+     * @throws IOException if no frame arrives within the read timeout
      * @see #send(byte[])
+     * @see #setReadTimeout(int)
      */
     public byte[] recv() throws IOException {
         if(isClosed()) return null;
@@ -278,100 +574,364 @@ public abstract class UdpSocket implements Closeable{
         if(!reliable){
             return recvRaw();
         }
-        
-        BooleanContainer readTimeout = new BooleanContainer();
-        CountdownTimer receiveTimeoutTimer = new CountdownTimer(1000);
-        receiveTimeoutTimer.setExitHandler(() ->{
-            readTimeout.value = true;
-        });
-        receiveTimeoutTimer.start();
-        List<Frame> receivedPackets = new ArrayList<>();
-        // Take frames until the "End of data" packet
-        while(true){
-            // Wait for all packets to arrive
-            while(true){
-                try{
-                    Thread.sleep(1);
-                }catch(InterruptedException e){close();return null;}
-                if(readTimeout.value)
-                    throw new IOException("Read timeout, exiting recv()");
-                if(inputDataFrames.peekLast() != null && inputDataFrames.peekLast().type == 2){
-                    break;
-                }
-            }
-            // Re-order the packets
-            while(true){
-                Frame frame = inputDataFrames.pollFirst();
-                fillArrayToSize(receivedPackets, frame.seq+1);
-                receivedPackets.set(frame.seq, frame);
-                receiveTimeoutTimer.resetTimeLapsed();
-                if(frame.type == 2) break;
-            }
-            String missingPackets = findNullEleIndexes(receivedPackets, 10000);
-            if(missingPackets.length() == 0){
-                sendFrame(new Frame(3, receivedPackets.size(), new byte[0]));
-                break;
-            }
-            // debug("Request missing packets: " + missingPackets);
-            sendFrame(new Frame(3, receivedPackets.size(), missingPackets.getBytes()));
+        return defaultStream.recv();
+    }
+
+    /**
+     * @return the input stream of {@link #DEFAULT_STREAM}
+     * @throws IllegalStateException if the socket is raw
+     * @see UdpStream#getInputStream()
+     */
+    public InputStream getInputStream(){
+        return getStream(DEFAULT_STREAM).getInputStream();
+    }
+
+    /**
+     * @return the output stream of {@link #DEFAULT_STREAM}
+     * @throws IllegalStateException if the socket is raw
+     * @see UdpStream#getOutputStream()
+     */
+    public OutputStream getOutputStream(){
+        return getStream(DEFAULT_STREAM).getOutputStream();
+    }
+
+    /**
+     * Send a file on the stream {@link #DEFAULT_STREAM}. The file is 
+     * mapped, frames are read straight from it.
+     * @throws IllegalStateException if the socket is raw
+     * @see UdpStream#sendFile(Path)
+     */
+    public void sendFile(Path path) throws IOException{
+        getStream(DEFAULT_STREAM).sendFile(path);
+    }
+
+    /**
+     * Receive a file from the stream {@link #DEFAULT_STREAM}. Frames are 
+     * written straight into the mapped file.
+     * @return the size of the file
+     * @throws IllegalStateException if the socket is raw
+     * @see UdpStream#receiveToFile(Path)
+     */
+    public long receiveToFile(Path path) throws IOException{
+        return getStream(DEFAULT_STREAM).receiveToFile(path);
+    }
+
+    /**
+     * Get a stream of this connection, the stream is created if it is 
+     * not used yet. Messages of different streams are delivered 
+     * independently, a large message or a lost frame on one stream does 
+     * not delay the messages of the others. The peer receives the 
+     * messages from the stream with the same id.
+     * @param id 0 - {@link Frame#MAX_STREAM_ID}, 
+     * {@link #DEFAULT_STREAM} is used by {@link #send(byte[])} and 
+     * {@link #recv()}
+     * @throws IllegalStateException if the socket is raw
+     */
+    public UdpStream getStream(int id){
+        if(!reliable)
+            throw new IllegalStateException("Raw sockets have no streams");
+        if(id < 0 || id > Frame.MAX_STREAM_ID)
+            throw new IllegalArgumentException("Stream id must be within 0 - " + Frame.MAX_STREAM_ID);
+        return getOrCreateStream(id);
+    }
+
+    private UdpStream getOrCreateStream(int id){
+        UdpStream stream = streams.get(id);
+        if(stream == null)
+            stream = streams.computeIfAbsent(id, (key) -> new UdpStream(this, key, framePool, receiveBudget, waitStrategy, metrics, rttEstimator));
+        return stream;
+    }
+
+    /**
+     * A stream handed a message to the application, its room is given 
+     * back to the sender
+     */
+    void onMessageReceived(int length){
+        metrics.messagesReceived.increment();
+        if(receiveBudget.releaseBytes(length) && !isClosed()){
+            Frame update = framePool.acquire();
+            update.type = Frame.WINDOW_UPDATE;
+            update.beginPayload().putInt(receiveBudget.advertise());
+            try{
+                sendFrame(update);
+            }catch(IOException ignored){} // the sender probes the window
         }
-        receiveTimeoutTimer.killTimer();
+    }
+
+    /**
+     * Set the maximum number of frames which are sent but not yet 
+     * acknowledged by the receiver (for all messages in flight).
+     */
+    public void setWindowSize(int frames){
+        if(frames < 1)
+            throw new IllegalArgumentException("Window size must be positive");
+        windowSize = frames;
+        sender.setWindowSize(frames);
+    }
+
+    public int getWindowSize(){
+        return windowSize;
+    }
+
+    /**
+     * Turn on forward error correction for the messages sent afterwards. 
+     * After every group of frames, a parity frame (the XOR of the group) 
+     * is sent, and the END frame of a message is sent twice. The 
+     * receiver rebuilds a lost frame of a group on its own, without 
+     * waiting a round trip for the retransmission. Losing 2 frames of a 
+     * group still needs a retransmission.
+     * <p>
+     * The redundancy is 1 frame per group: small groups repair more 
+     * losses, large groups cost less bandwidth. {@link #FEC_ADAPTIVE} 
+     * picks the group size from the losses which could not be repaired 
+     * (from 2 to 128 frames). The receiver needs no setting.
+     * @param frames {@link #FEC_OFF}, {@link #FEC_ADAPTIVE} or a power 
+     * of 2 from 2 to 128
+     */
+    public void setFecGroupSize(int frames){
+        if(frames != FEC_OFF && frames != FEC_ADAPTIVE 
+                && (frames < 2 || frames > 1 << Frame.MAX_GROUP_SHIFT || Integer.bitCount(frames) != 1))
+            throw new IllegalArgumentException("Group size must be a power of 2 from 2 to " + (1 << Frame.MAX_GROUP_SHIFT));
+        fecGroupSize = frames;
+        sender.setFecGroupSize(frames);
+    }
 
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
-        for(Frame frame : receivedPackets){
-            baos.write(frame.payload);
+    public int getFecGroupSize(){
+        return fecGroupSize;
+    }
+
+    /**
+     * Pack small messages into shared frames. Messages of up to 
+     * {@link #MAX_BATCHED_MESSAGE} bytes sent on the same stream are 
+     * copied into a bundle (each with a 2 byte length), the bundle is 
+     * sent as one frame once it is full or once the delay is over. The 
+     * receiver splits it up again, recv() returns the messages one by 
+     * one as usual.
+     * <p>
+     * Many small messages then cost one datagram (and one ack) per 
+     * bundle instead of one per message, but every message may wait up 
+     * to the delay before it leaves. {@link #send(byte[])} does not wait 
+     * for the delay, it sends the bundle straight away. The messages of 
+     * a bundle are acknowledged together, their futures complete at the 
+     * same time. Bundled bytes are copied, they may be changed as soon 
+     * as sendAsync() returns.
+     * @param delayMs longest time a message waits for others, 0 turns 
+     * batching off (default)
+     */
+    public void setBatchDelay(int delayMs){
+        if(delayMs < 0)
+            throw new IllegalArgumentException("Delay must not be negative");
+        batchDelayMs = delayMs;
+        sender.setBatchDelay(delayMs);
+    }
+
+    public int getBatchDelay(){
+        return batchDelayMs;
+    }
+
+    /**
+     * Replace the congestion control of this socket. A controller must 
+     * not be shared by sockets. Default: {@link NewRenoController}
+     * @see DelayBasedController
+     */
+    public void setCongestionController(CongestionController controller){
+        if(controller == null)
+            throw new IllegalArgumentException("Controller must not be null");
+        sender.setCongestionController(controller);
+    }
+
+    public CongestionController getCongestionController(){
+        return sender.getCongestionController();
+    }
+
+    /**
+     * Set the time {@link #recv()} waits without receiving any frame 
+     * before it throws. 0 waits forever. Default: 
+     * {@link #DEFAULT_READ_TIMEOUT}
+     */
+    public void setReadTimeout(int timeoutMs){
+        if(timeoutMs < 0)
+            throw new IllegalArgumentException("Timeout must not be negative");
+        readTimeoutMs = timeoutMs;
+    }
+
+    public int getReadTimeout(){
+        return readTimeoutMs;
+    }
+
+    /**
+     * Limit the bytes which are received but not yet taken by recv() 
+     * (of all streams), including the messages which are not complete 
+     * yet. Reliable sockets tell the sender how much room is left, so it 
+     * stops sending when the application does not keep up. Raw sockets 
+     * drop the packets which do not fit.
+     * <p>
+     * The next message of a stream is taken even if it does not fit as 
+     * long as the application has received the messages before it, so 
+     * a message larger than the buffer can still be received. Default: 
+     * {@link #DEFAULT_RECEIVE_BUFFER_SIZE}
+     */
+    public void setReceiveBufferSize(int bytes){
+        if(bytes < PAYLOAD_LENGTH)
+            throw new IllegalArgumentException("Buffer must hold at least one frame");
+        receiveBudget.setMaxBytes(bytes);
+    }
+
+    public int getReceiveBufferSize(){
+        return receiveBudget.getMaxBytes();
+    }
+
+    /**
+     * Limit the frames which are kept because the frames before them 
+     * are missing. Default: {@link #DEFAULT_MAX_RECEIVE_FRAMES}
+     */
+    public void setMaxReceiveFrames(int frames){
+        if(frames < 1)
+            throw new IllegalArgumentException("At least one frame must be allowed");
+        receiveBudget.setMaxFrames(frames);
+    }
+
+    public int getMaxReceiveFrames(){
+        return receiveBudget.getMaxFrames();
+    }
+
+    /**
+     * @return the smoothed round trip time measured by {@link #send(byte[])} 
+     * in microseconds, -1 if nothing is measured yet
+     */
+    public long getSmoothedRtt(){
+        long srtt = rttEstimator.getSmoothedRtt();
+        return srtt == -1? -1 : srtt / 1000;
+    }
+
+    /**
+     * @return the counters of this socket
+     * @see #registerMetrics()
+     */
+    public SocketMetrics getMetrics(){
+        return metrics;
+    }
+
+    /**
+     * Make the metrics of this socket visible through JMX (under 
+     * {@code com.vincentcodes.io:type=UdpSocket,id=<n>,remote="<address>"}), 
+     * they are removed once the socket is closed.
+     * @return the name of the MBean
+     * @throws JMException if the MBean cannot be registered
+     */
+    public ObjectName registerMetrics() throws JMException{
+        synchronized(metrics){
+            if(mbeanName == null){
+                ObjectName name = new ObjectName("com.vincentcodes.io:type=UdpSocket,id=" + mbeanIds.incrementAndGet() 
+                    + ",remote=" + ObjectName.quote(String.valueOf(getRemoteFullAddr())));
+                ManagementFactory.getPlatformMBeanServer().registerMBean(metrics, name);
+                mbeanName = name;
+            }
+            return mbeanName;
         }
-        receivedPackets.clear();
-        return baos.toByteArray();
     }
-    private <T> void fillArrayToSize(List<T> list, int size){
-        while(list.size() < size){
-            list.add(null);
+
+    Sender getSender(){
+        return sender;
+    }
+
+    ReceiveBudget getReceiveBudget(){
+        return receiveBudget;
+    }
+
+    /**
+     * Choose how {@link #recv()} and {@link #send(byte[])} (of every 
+     * stream) wait for the listener thread. Default: 
+     * {@link WaitStrategy#BLOCKING}
+     */
+    public void setWaitStrategy(WaitStrategy strategy){
+        waitStrategy = strategy;
+        messageSignal.setStrategy(strategy);
+        reportSignal.setStrategy(strategy);
+        for(UdpStream stream : streams.values()){
+            stream.setWaitStrategy(strategy);
         }
     }
+
+    public WaitStrategy getWaitStrategy(){
+        return waitStrategy;
+    }
+
     /**
-     * @param limit number of element to take
-     * @return
+     * Fails the messages which are not acknowledged yet and wakes up the 
+     * threads waiting in recv() / send(). Subclasses call it when the 
+     * socket is closed.
      */
-    private <T> String findNullEleIndexes(List<T> list, int limit){
-        int counter = 0;
-        List<String> indexes = new ArrayList<>();
-        for(int i = 0; i < list.size() && counter < limit; i++){
-            if(list.get(i) == null){
-                indexes.add(Integer.toString(i));
-                counter++;
-            }
+    protected void onClose(){
+        sender.close();
+        unregisterMetrics();
+        HashedWheelTimer.Timeout timeout = ackTimeout;
+        if(timeout != null)
+            timeout.cancel();
+        Frame ack = delayedAck.getAndSet(null);
+        if(ack != null)
+            ack.release();
+        messageSignal.signal();
+        reportSignal.signal();
+        for(UdpStream stream : streams.values()){
+            stream.wakeUp();
         }
-        if(counter == 0) return "";
-        return String.join(",", indexes);
-    }
-    // private <T> int findNumNullEle(List<T> list){
-    //     int counter = 0;
-    //     for(int i = 0; i < list.size(); i++){
-    //         if(list.get(i) == null){
-    //             counter++;
-    //         }
-    //     }
-    //     return counter;
-    // }
+    }
 
-    public abstract InetAddress getRemoteAddress();
+    private void unregisterMetrics(){
+        synchronized(metrics){
+            if(mbeanName == null) return;
+            try{
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(mbeanName);
+            }catch(JMException ignored){}
+            mbeanName = null;
+        }
+    }
+
+    /**
+     * @return the transport this socket sends its packets through
+     */
+    public PacketTransport getTransport(){
+        return transport;
+    }
+
+    /**
+     * @return null if the peer has no address (eg. it is reached 
+     * through shared memory)
+     */
+    public InetAddress getRemoteAddress(){
+        InetSocketAddress address = transport.getRemoteAddress();
+        return address == null? null : address.getAddress();
+    }
 
-    public abstract int getRemotePort();
+    /**
+     * @return 0 if the peer has no address
+     */
+    public int getRemotePort(){
+        InetSocketAddress address = transport.getRemoteAddress();
+        return address == null? 0 : address.getPort();
+    }
 
-    public abstract String getRemoteFullAddr();
+    public String getRemoteFullAddr(){
+        return transport.getRemoteName();
+    }
 
     /**
      * This should be {@code false} until {@link #close()} is called
      * @return the state of this socket
      */
-    public abstract boolean isClosed();
+    public boolean isClosed(){
+        return transport.isClosed();
+    }
 
     /**
-     * Closes the socket
+     * Closes the socket and its transport
      */
     @Override
-    public abstract void close() throws IOException;
+    public void close() throws IOException{
+        transport.close();
+        onClose();
+    }
 
     // private boolean debug = true;
     // private void debug(String msg){
@@ -1,21 +1,24 @@
 package com.vincentcodes.io;
 
 import java.io.IOException;
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
 import java.net.Inet4Address;
-import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.SocketException;
-import java.util.Arrays;
+import java.util.function.UnaryOperator;
 
 /**
  * A normal udp socket which connects to a udp server.
+ * <p>
+ * The socket runs on a {@link DatagramTransport} (a connected 
+ * DatagramChannel), so the header and the payload of a frame are sent 
+ * in one gathering write (the payload is never copied into a frame).
+ * Packets are read from the channel straight into pooled frames backed 
+ * by direct buffers.
  */
-public class UdpSocketImpl extends UdpSocket{
-    private final DatagramSocket socket;
-    private final DatagramPacket outPacket;
-    private final DatagramPacket inPacket;
+public class UdpSocketImpl extends TransportSocket{
+    private final DatagramTransport channel;
+    private long lastChecked; // datagrams received when the timeout was checked last
+    private HashedWheelTimer.Timeout receiveTimeout;
 
     /**
      * Creates a normal socket which connects to a udp server.
@@ -23,16 +26,15 @@ public class UdpSocketImpl extends UdpSocket{
      * @throws SocketException
      */
     public UdpSocketImpl(InetSocketAddress destAddr, boolean reliable) throws SocketException{
-        super();
-        this.socket = new DatagramSocket(); // do not give any params
-        this.outPacket = new DatagramPacket(new byte[PAYLOAD_LENGTH], PAYLOAD_LENGTH, destAddr);
-        this.inPacket = new DatagramPacket(new byte[MAX_UDP_PACKET_SIZE], MAX_UDP_PACKET_SIZE);
-        super.reliable = reliable;
-
-        socket.connect(destAddr);
-        socket.setReceiveBufferSize(65536);
+        this(destAddr, reliable, UnaryOperator.identity());
+    }
 
-        startWorker();
+    /**
+     * @param wrapper wraps the udp transport of the socket (eg. in an 
+     * {@link ImpairedTransport}), packets go through what it returns
+     */
+    public UdpSocketImpl(InetSocketAddress destAddr, boolean reliable, UnaryOperator<PacketTransport> wrapper) throws SocketException{
+        this(openTransport(destAddr), reliable, wrapper);
     }
 
     public UdpSocketImpl(String dest, int port, boolean reliable) throws SocketException{
@@ -43,84 +45,69 @@ public class UdpSocketImpl extends UdpSocket{
         this(new InetSocketAddress(dest, port), reliable);
     }
 
-    private void startWorker(){
-        new Thread("Bytes listener"){
-            @Override
-            public void run(){
-                try{
-                    while(!isClosed()){
-                        socket.receive(inPacket);
-                        // inPacket.setLength(UdpSocket.PACKET_LENGTH);
-                        byte[] payload = Arrays.copyOfRange(inPacket.getData(), 0, inPacket.getLength());
-                        addData(payload);
-                    }
-                }catch(Exception e){
-                    e.printStackTrace();
-                    try{
-                        close();
-                    }catch(IOException ex){
-                        e.printStackTrace();
-                    }
-                }
-                return;
-            }
-        }.start();
+    private UdpSocketImpl(DatagramTransport channel, boolean reliable, UnaryOperator<PacketTransport> wrapper){
+        super(wrapper.apply(channel), reliable);
+        this.channel = channel;
+        // every field is assigned now
+        start();
     }
 
-    /**
-     * Allows sending payload size greater than SPECIFIED_BUF_LENGTH with 
-     * one udp packet. This is actually faster than 
-     * {@link #sendUnsafe(byte[], int, int)}
-     */
-    protected void sendUnsafe(byte[] bytes) throws IOException{
-        outPacket.setData(bytes);
-        socket.send(outPacket);
-        // outPacket.setData(bytes, offset, length); // slower
-        // socket.send(new DatagramPacket(bytes, bytes.length));
-    }
-    protected void sendUnsafe(byte[] bytes, int offset, int length) throws IOException{
-        outPacket.setData(bytes, offset, length);
-        socket.send(outPacket);
+    private static DatagramTransport openTransport(InetSocketAddress destAddr) throws SocketException{
+        try{
+            return new DatagramTransport(new InetSocketAddress(0), destAddr);
+        }catch(SocketException e){
+            throw e;
+        }catch(IOException e){
+            SocketException ex = new SocketException(e.getMessage());
+            ex.initCause(e);
+            throw ex;
+        }
     }
 
     /**
-     * Set DatagramSocket receive timeout
-     * @param timeout the amount of time until a SocketTimeoutException to be thrown in milliseconds
+     * Close the socket if no packet arrives for this long (it is checked
+     * every {@code timeout}, so it may take up to twice as long)
+     * @param timeout in milliseconds, 0 never closes the socket
      */
-    public void setSoTimeout(int timeout) throws SocketException{
-        socket.setSoTimeout(timeout);
+    public synchronized void setSoTimeout(int timeout) throws SocketException{
+        if(timeout < 0)
+            throw new SocketException("Timeout must not be negative");
+        if(receiveTimeout != null)
+            receiveTimeout.cancel();
+        receiveTimeout = null;
+        if(timeout > 0){
+            lastChecked = getMetrics().getDatagramsReceived();
+            receiveTimeout = timer.schedule(this::checkReceiveTimeout, timeout);
+        }
+    }
+
+    private synchronized void checkReceiveTimeout(){
+        if(receiveTimeout == null) return;
+        long count = getMetrics().getDatagramsReceived();
+        if(count == lastChecked){
+            try{
+                close();
+            }catch(IOException ignored){}
+            return;
+        }
+        lastChecked = count;
+        receiveTimeout.reset();
     }
 
     /**
      * Enable/disable SO_BROADCAST
      */
     public void setSetBroadcast(boolean on) throws SocketException{
-        socket.setBroadcast(on);
-    }
-
-    @Override
-    public InetAddress getRemoteAddress(){
-        return outPacket.getAddress();
-    }
-
-    @Override
-    public int getRemotePort(){
-        return outPacket.getPort();
-    }
-
-    @Override
-    public String getRemoteFullAddr(){
-        return getRemoteAddress().getHostAddress() + ":" + getRemotePort();
-    }
-
-    @Override
-    public boolean isClosed(){
-        return socket.isClosed();
+        channel.setBroadcast(on);
     }
 
     @Override
     public void close() throws IOException {
-        socket.close();
+        synchronized(this){
+            if(receiveTimeout != null)
+                receiveTimeout.cancel();
+        }
+        super.close();
     }
 
 }
\ No newline at end of file
@@ -1,23 +1,19 @@
 package com.vincentcodes.io;
 
-import java.io.IOException;
-import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.Inet4Address;
-import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.SocketException;
 
+import com.vincentcodes.io.udpframes.FramePool;
+
 /**
- * This implementation is used for UdpServerSocket only.
+ * This implementation is used for UdpServerSocket only. Packets are sent
+ * through a transport given by the server (from the port of the server)
+ * and received by the listener of the server, which passes them in with
+ * {@link #addData(com.vincentcodes.io.udpframes.Frame)}.
  */
 public class UdpSocketServerImpl extends UdpSocket {
-    // Use the server socket for send only.
-    private final DatagramSocket serverSocket;
-    private final DatagramPacket outPacket;
-    
-    private boolean isClosed = false;
-
     /**
      * Creates a normal socket which connects to a server. 
      * @param serverSocket all UdpSocket from accept() shares the same server socket, 
@@ -26,59 +22,31 @@ public class UdpSocketServerImpl extends UdpSocket {
      * @throws SocketException
      */
     public UdpSocketServerImpl(DatagramSocket serverSocket, InetSocketAddress destAddr, boolean reliable) throws SocketException{
-        super();
-        this.serverSocket = serverSocket;
-        this.outPacket = new DatagramPacket(new byte[PAYLOAD_LENGTH], PAYLOAD_LENGTH, destAddr);
-        super.reliable = reliable;
+        this(new DatagramSocketPeer(serverSocket, destAddr), new FramePool(PACKET_LENGTH, false), HashedWheelTimer.getShared(), reliable);
     }
 
-    public UdpSocketServerImpl(DatagramSocket serverSocket, String dest, int port, boolean reliable) throws SocketException{
-        this(serverSocket, new InetSocketAddress(dest, port), reliable);
-    }
-
-    public UdpSocketServerImpl(DatagramSocket serverSocket, Inet4Address dest, int port, boolean reliable) throws SocketException{
-        this(serverSocket, new InetSocketAddress(dest, port), reliable);
+    UdpSocketServerImpl(PacketTransport transport, FramePool framePool, HashedWheelTimer timer, boolean reliable){
+        this(transport, framePool, timer, reliable, null);
     }
 
     /**
-     * Allows sending payload size greater than SPECIFIED_BUF_LENGTH with 
-     * one udp packet. This is actually faster than 
-     * {@link #sendUnsafe(byte[], int, int)}
+     * @param transport sends to the peer, its packets are received by 
+     * the server
+     * @param serverMetrics totals of the server, null if there are none
      */
-    protected void sendUnsafe(byte[] bytes) throws IOException{
-        outPacket.setData(bytes);
-        serverSocket.send(outPacket);
-    }
-    protected void sendUnsafe(byte[] bytes, int offset, int length) throws IOException{
-        outPacket.setData(bytes, offset, length);
-        serverSocket.send(outPacket);
-    }
-
-    // Use addData(byte[] bytes) to receiveData
-
-    @Override
-    public InetAddress getRemoteAddress() {
-        return outPacket.getAddress();
-    }
-
-    @Override
-    public int getRemotePort() {
-        return outPacket.getPort();
+    UdpSocketServerImpl(PacketTransport transport, FramePool framePool, HashedWheelTimer timer, boolean reliable, SocketMetrics serverMetrics){
+        super(transport, framePool, timer, serverMetrics);
+        super.reliable = reliable;
     }
 
-    @Override
-    public String getRemoteFullAddr() {
-        return getRemoteAddress().getHostAddress() + ":" + getRemotePort();
+    public UdpSocketServerImpl(DatagramSocket serverSocket, String dest, int port, boolean reliable) throws SocketException{
+        this(serverSocket, new InetSocketAddress(dest, port), reliable);
     }
 
-    @Override
-    public boolean isClosed() {
-        return isClosed;
+    public UdpSocketServerImpl(DatagramSocket serverSocket, Inet4Address dest, int port, boolean reliable) throws SocketException{
+        this(serverSocket, new InetSocketAddress(dest, port), reliable);
     }
 
-    @Override
-    public void close() throws IOException {
-        isClosed = true;
-    }
+    // Use addData(Frame datagram) to receiveData
     
 }
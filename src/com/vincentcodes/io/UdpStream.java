@@ -0,0 +1,286 @@
+package com.vincentcodes.io;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedDeque;
+
+import com.vincentcodes.io.udpframes.Frame;
+import com.vincentcodes.io.udpframes.FramePool;
+
+/**
+ * An ordered message pipe inside a reliable {@link UdpSocket}. Every
+ * stream has its own message order and its own reliability state, a
+ * lost frame of one stream never holds back the messages of the others.
+ * The congestion window, the round trip time and the timeouts are
+ * shared by the streams of a connection.
+ * <p>
+ * Streams are not opened or closed, both sides simply use the same id
+ * (eg. stream 1 for control messages and stream 2 for bulk transfers).
+ * A stream is created on either side the first time it is used, they
+ * live as long as the socket. {@link UdpSocket#send(byte[])} and
+ * {@link UdpSocket#recv()} use the stream {@link UdpSocket#DEFAULT_STREAM}.
+ * <p>
+ * Messages sent on a stream are only received from the same stream.
+ * <p>
+ * Besides messages, a stream can carry a byte stream through
+ * {@link #getInputStream()} and {@link #getOutputStream()}.
+ * @see UdpSocket#getStream(int)
+ */
+public class UdpStream {
+    private final UdpSocket socket;
+    private final int id;
+
+    /**
+     * Complete messages
+     */
+    private final ConcurrentLinkedDeque<byte[]> inputData = new ConcurrentLinkedDeque<>();
+    private final ReceiveWindow receiveWindow;
+    private final Signal messageSignal;
+    private volatile long framesReceived = 0;
+    private volatile boolean streaming = false;
+    private UdpInputStream inputStream;
+    private UdpOutputStream outputStream;
+
+    UdpStream(UdpSocket socket, int id, FramePool framePool, ReceiveBudget budget, WaitStrategy strategy, SocketMetrics metrics, RttEstimator rtt){
+        this.socket = socket;
+        this.id = id;
+        this.receiveWindow = new ReceiveWindow(framePool, id, budget, metrics, rtt);
+        this.messageSignal = new Signal(strategy);
+    }
+
+    /**
+     * Send a message on this stream and wait until it is acknowledged.
+     * The frames of this message take turns with the frames of the other
+     * streams.
+     * @throws IOException if the receiver stops responding, the socket
+     * is closed in this case
+     * @see UdpSocket#send(byte[])
+     */
+    public void send(byte[] bytes) throws IOException{
+        socket.sendReliable(id, bytes);
+    }
+
+    /**
+     * Send a message on this stream without waiting for the receiver.
+     * @see UdpSocket#sendAsync(byte[])
+     */
+    public CompletableFuture<Void> sendAsync(byte[] bytes){
+        return socket.sendReliableAsync(id, bytes);
+    }
+
+    /**
+     * Send the bytes from the position to the limit of the buffer as a 
+     * message on this stream and wait until it is acknowledged.
+     * @see UdpSocket#send(ByteBuffer)
+     */
+    public void send(ByteBuffer data) throws IOException{
+        socket.sendReliable(id, data);
+    }
+
+    /**
+     * Send the bytes from the position to the limit of the buffer as a 
+     * message on this stream without waiting for the receiver.
+     * @see UdpSocket#sendAsync(ByteBuffer)
+     */
+    public CompletableFuture<Void> sendAsync(ByteBuffer data){
+        return socket.sendReliableAsync(id, data);
+    }
+
+    /**
+     * Receive the next message of this stream
+     * @throws IOException if no frame of this stream arrives within the
+     * read timeout
+     * @throws IllegalStateException if {@link #getInputStream()} is used
+     * @see UdpSocket#recv()
+     * @see UdpSocket#setReadTimeout(int)
+     */
+    public byte[] recv() throws IOException{
+        if(streaming)
+            throw new IllegalStateException("The input stream of this stream is in use");
+        return take();
+    }
+
+    /**
+     * Get the bytes of the messages on this stream as one byte stream 
+     * (the boundaries of the messages are lost). Bytes can be read as 
+     * soon as every byte before them has arrived, a large message is 
+     * never put together as a whole. {@link #recv()} cannot be used 
+     * afterwards.
+     * <p>
+     * Reads throw if nothing arrives within the read timeout, they 
+     * return -1 once the socket is closed. Closing the returned stream 
+     * does not close the socket.
+     * @see UdpSocket#setReadTimeout(int)
+     */
+    public synchronized InputStream getInputStream(){
+        if(inputStream == null){
+            streaming = true;
+            receiveWindow.setStreaming();
+            inputStream = new UdpInputStream(this);
+        }
+        return inputStream;
+    }
+
+    /**
+     * Get a stream which sends the written bytes on this stream. Bytes 
+     * are buffered and sent in messages of 
+     * {@link UdpOutputStream#CHUNK_SIZE} bytes (or less on flush()). 
+     * Writes block while too many bytes are waiting for an ack. close() 
+     * waits until every byte is acknowledged, it does not close the 
+     * socket.
+     * <p>
+     * The peer can read the bytes from {@link #getInputStream()} or 
+     * receive them as messages.
+     */
+    public synchronized OutputStream getOutputStream(){
+        if(outputStream == null)
+            outputStream = new UdpOutputStream(this);
+        return outputStream;
+    }
+
+    /**
+     * Send a file on this stream, the peer receives it with 
+     * {@link #receiveToFile(Path)}. The file is mapped and sent in 
+     * regions of {@link FileTransfer#REGION_SIZE} bytes, frames are read 
+     * straight from the mapped file (lost frames as well), so the heap 
+     * used does not grow with the size of the file. Returns once the 
+     * whole file is acknowledged.
+     * <p>
+     * The stream must not be used for anything else during the transfer.
+     * The peer must call receiveToFile() within the read timeout.
+     * @throws IOException if the file cannot be read or the peer stops 
+     * responding
+     */
+    public void sendFile(Path path) throws IOException{
+        FileTransfer.send(this, path);
+    }
+
+    /**
+     * Receive a file sent by {@link #sendFile(Path)}. The file is created 
+     * (or replaced) with its full size and mapped, every frame is written 
+     * at its offset in the file as soon as it arrives. Nothing is held in 
+     * memory, frames arriving out of order included.
+     * @return the size of the file
+     * @throws IOException if the file cannot be written, nothing arrives 
+     * within the read timeout or the peer sends something else
+     * @throws IllegalStateException if {@link #getInputStream()} is used
+     */
+    public long receiveToFile(Path path) throws IOException{
+        if(streaming)
+            throw new IllegalStateException("The input stream of this stream is in use");
+        return FileTransfer.receive(this, path);
+    }
+
+    /**
+     * @see ReceiveWindow#setSink(ReceiveWindow.Sink)
+     */
+    void setSink(ReceiveWindow.Sink sink){
+        receiveWindow.setSink(sink);
+    }
+
+    /**
+     * Blocks until a message (a piece of a message in streaming mode)
+     * is ready
+     * @return null if the socket is closed
+     */
+    byte[] take() throws IOException{
+        if(socket.isClosed()) return null;
+
+        byte[] message = poll();
+        if(message != null) return message;
+
+        int timeoutMs = socket.getReadTimeout();
+        BooleanContainer readTimeout = new BooleanContainer();
+        HashedWheelTimer.Timeout receiveTimeout = null;
+        if(timeoutMs > 0){
+            receiveTimeout = socket.timer.schedule(() ->{
+                readTimeout.value = true;
+                messageSignal.signal();
+            }, timeoutMs);
+        }
+        try{
+            // Frames are re-ordered by the listener, it wakes us up once
+            // a message is complete
+            long lastFramesReceived = framesReceived;
+            while((message = poll()) == null){
+                messageSignal.await(() -> inputData.peekFirst() != null || readTimeout.value || socket.isClosed());
+                if(socket.isClosed()) return null;
+                if(readTimeout.value){
+                    // the timeout is only checked when it fires, frames
+                    // may still be arriving
+                    if(lastFramesReceived == framesReceived)
+                        throw new IOException("Read timeout, exiting recv()");
+                    lastFramesReceived = framesReceived;
+                    readTimeout.value = false;
+                    receiveTimeout.reset();
+                }
+            }
+        }catch(InterruptedException e){
+            socket.close();
+            return null;
+        }finally{
+            if(receiveTimeout != null)
+                receiveTimeout.cancel();
+        }
+        return message;
+    }
+
+    /**
+     * @return a message (a piece of a message in streaming mode) if one
+     * is ready, otherwise null
+     */
+    byte[] poll(){
+        byte[] message = inputData.pollFirst();
+        if(message != null)
+            socket.onMessageReceived(message.length);
+        return message;
+    }
+
+    /**
+     * Called by the listener thread for every frame of this stream
+     * (except reports)
+     * @return a report to send back, null if none
+     */
+    Frame onFrame(Frame frame){
+        framesReceived++;
+        Frame report = receiveWindow.onFrame(frame, inputData.isEmpty());
+        byte[] message = receiveWindow.pollMessage();
+        if(message != null){
+            do{
+                inputData.add(message);
+            }while((message = receiveWindow.pollMessage()) != null);
+            messageSignal.signal();
+        }
+        return report;
+    }
+
+    /**
+     * @see ReceiveWindow#isReportDelayable()
+     */
+    boolean isReportDelayable(){
+        return receiveWindow.isReportDelayable();
+    }
+
+    void setWaitStrategy(WaitStrategy strategy){
+        messageSignal.setStrategy(strategy);
+    }
+
+    /**
+     * Wake up the threads waiting in recv()
+     */
+    void wakeUp(){
+        messageSignal.signal();
+    }
+
+    public int getId(){
+        return id;
+    }
+
+    public UdpSocket getSocket(){
+        return socket;
+    }
+}
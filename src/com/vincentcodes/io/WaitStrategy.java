@@ -0,0 +1,26 @@
+package com.vincentcodes.io;
+
+/**
+ * How a thread waits inside {@link UdpSocket#recv()} and
+ * {@link UdpSocket#send(byte[])} until the listener thread has a
+ * complete message or a report for it.
+ * @see UdpSocket#setWaitStrategy(WaitStrategy)
+ */
+public enum WaitStrategy{
+    /**
+     * The thread sleeps until it is woken up. Uses no cpu while idle,
+     * waking up costs a few microseconds.
+     */
+    BLOCKING,
+    /**
+     * The thread spins for a short while then keeps calling
+     * {@link Thread#yield()}. Lower latency than BLOCKING, other
+     * threads can still run on the core.
+     */
+    YIELDING,
+    /**
+     * The thread never gives up the core. Lowest latency but one core is
+     * 100% busy while waiting, only use it with spare cores.
+     */
+    BUSY_SPIN
+}
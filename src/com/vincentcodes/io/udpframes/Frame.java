@@ -1,38 +1,160 @@
 package com.vincentcodes.io.udpframes;
 
-import java.io.ByteArrayOutputStream;
-import java.io.IOException;
-import java.util.Arrays;
-
-import com.vincentcodes.io.UdpSocket;
+import java.nio.ByteBuffer;
 
 /**
  * Custom frames for Vincent's custom udp loss packet prevention protocol
  * <p>
- * The way of sending frames is shown as follows:
- * START, DATA..., END, (wait for) REPORT
+ * Frames of a message are sent through a sliding window:
+ * START, DATA..., END. At most "window size" frames
+ * are unacknowledged at any time. The receiver sends
+ * REPORT frames while the data arrives, each report
+ * acknowledges frames of one message cumulatively and
+ * selectively. The window slides forward as reports
+ * come back.
+ * <p>
+ * Every frame carries the id of its message, so several
+ * messages can be in flight at the same time and a late
+ * frame of an old message is never mixed into a new one.
  * <p>
- * If report frame has payload, then server go 
- * through the same procedure again until there 
- * are no lost packets 
+ * A connection carries independent streams. Each stream
+ * has its own msgIds and its messages are ordered only
+ * among themselves, so a lost frame of one stream never
+ * holds back the messages of another one.
  * <p>
- * When you are re-sending the packets, do no 
- * generate new seq numbers for the requested 
- * packets. 
+ * When you are re-sending the packets, do no
+ * generate new seq numbers for the requested
+ * packets. A re-sent frame keeps its original type.
  * <p>
  * Do give the first packet type 1 and
- * the last packet type 2. If there is only 
- * 1 packet needs to be re-sent, give it type 2
+ * the last packet type 2. If the message only
+ * has 1 packet, give it type 2
+ * <p>
+ * A frame owns a buffer which holds the whole datagram (header followed
+ * by the payload). Received frames are decoded in place, the payload is
+ * never copied out of the buffer. Frames usually come from a
+ * {@link FramePool}, call {@link #release()} once the frame is not
+ * needed anymore.
+ * <p>
+ * A data frame can carry the ack of a message of the other direction
+ * at the end of its payload (see {@link #ACK_ATTACHED}), so that a
+ * reply acknowledges the request it answers.
  */
 public class Frame {
+    public static final int DATA = 0;
+    public static final int START = 1;
+    public static final int END = 2;
+    public static final int REPORT = 3;
+    public static final int WINDOW_UPDATE = 4;
+    public static final int PARITY = 5;
+    public static final int BUNDLE = 6;
+
+    /**
+     * Every message inside the payload of a BUNDLE frame is prefixed by
+     * its length (unsigned, 2 bytes)
+     */
+    public static final int BUNDLE_PREFIX_LENGTH = 2;
+
+    /**
+     * The payload of REPORT and WINDOW_UPDATE frames starts with the
+     * receive window: the number of frames the receiver can still
+     * take (4 bytes). The selective acks of a report follow it.
+     */
+    public static final int WINDOW_LENGTH = 4;
+
+    /**
+     * Seq of a report which acknowledges every frame of the message. It
+     * is sent when a frame arrives after its message is complete.
+     */
+    public static final int WHOLE_MESSAGE = Integer.MAX_VALUE;
+
+    /**
+     * Flag inside the type byte. The sender cannot send anything more
+     * until a report arrives, the receiver should report immediately.
+     */
+    public static final int REPORT_REQUESTED = 0x40;
+
+    /**
+     * Flag inside the type byte. The last {@link #ACK_LENGTH} bytes of
+     * the payload acknowledge a whole message sent by the other side:
+     * streamId (2 bytes) + msgId (4 bytes) + receive window (4 bytes).
+     * They are taken off the payload by {@link #decode()}.
+     */
+    public static final int ACK_ATTACHED = 0x80;
+    public static final int ACK_LENGTH = 10;
+
+    /**
+     * Bits 3 - 5 of the type byte carry {@link #groupShift}
+     */
+    private static final int GROUP_SHIFT_BIT = 3;
+    public static final int MAX_GROUP_SHIFT = 7;
+
+    /**
+     * type (1 byte) + streamId (2 bytes) + msgId (4 bytes) + seq (4 bytes)
+     */
+    public static final int HEADER_LENGTH = 11;
+
+    /**
+     * Stream ids are unsigned 16 bit numbers
+     */
+    public static final int MAX_STREAM_ID = 0xffff;
+
     /**
      * 0 - data,
      * 1 - start of data
      * 2 - end of data
-     * 3 - report frame (payload contains missing seq numbers)
+     * 3 - report frame (seq is the cumulative ack, payload contains
+     * the receive window and the selective acks)
+     * 4 - window update (payload contains the receive window, sent
+     * when the receiver has room again)
+     * 5 - parity (payload is the XOR of the payloads of a group of
+     * frames, seq is the last frame of the group)
+     * 6 - bundle (a message of one frame made of several small messages,
+     * see {@link #BUNDLE_PREFIX_LENGTH}, it is received like an END
+     * frame with seq 0)
+     * <p>
+     * The highest bit of the type byte carries {@link #ackAttached},
+     * the second highest bit carries {@link #reportRequested}, bits
+     * 3 - 5 carry {@link #groupShift}
      */
     public int type; // 1 byte
 
+    /**
+     * @see #REPORT_REQUESTED
+     */
+    public boolean reportRequested;
+
+    /**
+     * The frame acknowledges the message {@link #ackMsgId} of the stream
+     * {@link #ackStreamId}, the receiver had room for {@link #ackWindow}
+     * frames
+     * @see #ACK_ATTACHED
+     */
+    public boolean ackAttached;
+    public int ackStreamId;
+    public int ackMsgId;
+    public int ackWindow;
+
+    /**
+     * Messages sent with forward error correction are cut into groups
+     * of {@code 1 << groupShift} frames (aligned on seq, the END frame
+     * belongs to none of them). A PARITY frame follows every group, a
+     * single lost frame of the group can be rebuilt from it. 0 if the
+     * message has no parity frames.
+     */
+    public int groupShift;
+
+    /**
+     * Id of the stream inside the connection (0 - {@link #MAX_STREAM_ID})
+     */
+    public int streamId; // 2 bytes
+
+    /**
+     * Id of the message (increases by 1 for every message of a 
+     * stream, it may wrap around)
+     */
+    public int msgId; // 4 bytes
+
     /**
      * Sequence number (used to put packets back into order)
      * Starts from 0. Can be used as array index
@@ -40,58 +162,166 @@ public class Frame {
     public int seq; // 4 bytes
 
     /**
-     * Unlimited (but the max length that achieves best performance is 1472-5)
-     * 
-     * For report frame, the payload contains the missing seq number of the 
-     * frames separated by comma (empty if there aren't lost packets)
-     * eg. 2,5,9
+     * Holds the whole datagram. The payload starts at {@link #HEADER_LENGTH}
+     * and ends at the limit of the buffer.
+     * <p>
+     * Unlimited (but the max length that achieves best performance is 1472-11)
+     *
+     * For report frame, the payload contains the frames received above
+     * the cumulative ack in a binary format
+     * @see SackReport
      */
-    public byte[] payload;
+    private final ByteBuffer buffer;
+    private final FramePool pool;
+    private boolean released = false;
 
-    public Frame(){}
-    public Frame(int type, int seq, byte[] payload){
-        this.type = type;
-        this.seq = seq;
-        this.payload = payload;
+    /**
+     * Creates a frame which is not pooled
+     */
+    public Frame(ByteBuffer buffer){
+        this(buffer, null);
+    }
+    Frame(ByteBuffer buffer, FramePool pool){
+        this.buffer = buffer;
+        this.pool = pool;
     }
 
     // This method hinders performance
     // public String toString(){
     //     return String.format("{Frame type: %d, seq: %d, payload: %s}", type, seq, payload.toString() + " " + payload.length);
     // }
-    
-    // private static ByteBuffer buffer = ByteBuffer.allocate(4);
-    private static ByteArrayOutputStream baos = new ByteArrayOutputStream(UdpSocket.PACKET_LENGTH);
-
-    public static Frame parse(byte[] bytes){
-        Frame frame = new Frame();
-        
-        frame.type = bytes[0];
-        frame.seq = getIntFrom4Bytes(bytes, 1);
-        frame.payload = Arrays.copyOfRange(bytes, 5, bytes.length);
-        return frame;
+
+    /**
+     * The buffer holding the whole datagram. Receive a datagram into it
+     * (position 0 to limit) then call {@link #decode()}.
+     */
+    public ByteBuffer getBuffer(){
+        return buffer;
+    }
+
+    /**
+     * Reads the header of the datagram inside the buffer (from index 0
+     * to the limit). Nothing is copied. An attached ack is read and
+     * taken off the payload (the limit is moved back).
+     * @return false if the datagram is too short to be a frame
+     */
+    public boolean decode(){
+        if(buffer.limit() < HEADER_LENGTH) return false;
+        int header = buffer.get(0);
+        type = header & 0x07;
+        reportRequested = (header & REPORT_REQUESTED) != 0;
+        ackAttached = (header & ACK_ATTACHED) != 0;
+        if(ackAttached){
+            int ack = buffer.limit() - ACK_LENGTH;
+            if(ack < HEADER_LENGTH) return false;
+            ackStreamId = buffer.getShort(ack) & 0xffff;
+            ackMsgId = buffer.getInt(ack+2);
+            ackWindow = buffer.getInt(ack+6);
+            buffer.limit(ack);
+        }
+        groupShift = (header >> GROUP_SHIFT_BIT) & MAX_GROUP_SHIFT;
+        streamId = buffer.getShort(1) & 0xffff;
+        msgId = buffer.getInt(3);
+        seq = buffer.getInt(7);
+        return true;
+    }
+
+    /**
+     * Start writing a frame. Write the payload into the returned buffer
+     * then call {@link #encode()}.
+     * @return the buffer, positioned at the start of the payload
+     */
+    public ByteBuffer beginPayload(){
+        buffer.clear();
+        buffer.position(HEADER_LENGTH);
+        return buffer;
+    }
+
+    /**
+     * Writes the header in front of the payload written after
+     * {@link #beginPayload()}
+     * @return the buffer ready to be sent (position 0, limit at the end
+     * of the payload)
+     */
+    public ByteBuffer encode(){
+        buffer.flip();
+        encodeHeader(buffer, 0, typeByte(type, reportRequested, groupShift), streamId, msgId, seq);
+        return buffer;
+    }
+
+    public int getPayloadLength(){
+        return buffer.limit() - HEADER_LENGTH;
     }
-    public byte[] toBytes(){
-        try{
-            baos.reset();
-            
-            // Write type
-            baos.write(type);
-
-            // Write sequence
-            baos.write(intToByteArray(seq));
-
-            // Write payload
-            baos.write(payload);
-        }catch(IOException ignored){}
-        return baos.toByteArray();
+
+    /**
+     * Copies the whole payload into {@code dst}
+     */
+    public void copyPayload(byte[] dst, int offset){
+        int position = buffer.position();
+        buffer.position(HEADER_LENGTH);
+        buffer.get(dst, offset, getPayloadLength());
+        buffer.position(position);
+    }
+
+    /**
+     * Copies the whole payload into {@code dst} at its position (the 
+     * position of dst moves past the payload)
+     */
+    public void copyPayload(ByteBuffer dst){
+        int position = buffer.position();
+        buffer.position(HEADER_LENGTH);
+        dst.put(buffer);
+        buffer.position(position);
+    }
+
+    /**
+     * Give the frame back to its pool. The frame must not be used
+     * afterwards. Releasing a frame twice has no effect.
+     */
+    public void release(){
+        if(released || pool == null) return;
+        released = true;
+        pool.release(this);
     }
 
-    private static byte[] intToByteArray(int value){
-        return new byte[]{(byte)(value >> 24), (byte)(value >> 16), (byte)(value >> 8), (byte)value};
+    void reuse(){
+        released = false;
+        type = 0;
+        reportRequested = false;
+        ackAttached = false;
+        groupShift = 0;
+        streamId = 0;
+        msgId = 0;
+        seq = 0;
+        buffer.clear();
     }
 
-    private static int getIntFrom4Bytes(byte[] bytes, int startingIndex){
-        return ((bytes[startingIndex] & 0xff) << 8*3) | ((bytes[startingIndex+1] & 0xff) << 8*2) | ((bytes[startingIndex+2] & 0xff) << 8) | (bytes[startingIndex+3] & 0xff);
+    /**
+     * @return the type byte with its flags
+     */
+    public static int typeByte(int type, boolean reportRequested, int groupShift){
+        int typeByte = type | groupShift << GROUP_SHIFT_BIT;
+        return reportRequested? typeByte | REPORT_REQUESTED : typeByte;
+    }
+
+    /**
+     * Writes an ack (see {@link #ACK_ATTACHED}) at the position of
+     * {@code dst}
+     */
+    public static void encodeAck(ByteBuffer dst, int streamId, int msgId, int window){
+        dst.putShort((short)streamId).putInt(msgId).putInt(window);
+    }
+
+    /**
+     * Writes a header at the absolute {@code index} of {@code dst}. Useful
+     * when the header and the payload are not in the same buffer.
+     * @param type type with the flags
+     * @see #typeByte(int, boolean, int)
+     */
+    public static void encodeHeader(ByteBuffer dst, int index, int type, int streamId, int msgId, int seq){
+        dst.put(index, (byte)type);
+        dst.putShort(index+1, (short)streamId);
+        dst.putInt(index+3, msgId);
+        dst.putInt(index+7, seq);
     }
 }
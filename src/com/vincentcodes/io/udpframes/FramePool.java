@@ -0,0 +1,67 @@
+package com.vincentcodes.io.udpframes;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+/**
+ * Keeps released frames (together with their buffers) for reuse, so
+ * that sending and receiving do not allocate anything once the pool
+ * is warmed up. The pool can be shared by many threads.
+ */
+public class FramePool {
+    /**
+     * Released frames above this number are left to the gc
+     */
+    public static final int DEFAULT_MAX_POOLED = 4096;
+
+    private final ArrayDeque<Frame> frames;
+    private final int bufferSize;
+    private final boolean direct;
+    private final int maxPooled;
+
+    /**
+     * @param bufferSize capacity of each frame (header + payload)
+     * @param direct use direct buffers (for channels) instead of heap
+     * buffers (for DatagramSocket)
+     */
+    public FramePool(int bufferSize, boolean direct){
+        this(bufferSize, direct, DEFAULT_MAX_POOLED);
+    }
+    public FramePool(int bufferSize, boolean direct, int maxPooled){
+        this.frames = new ArrayDeque<>();
+        this.bufferSize = bufferSize;
+        this.direct = direct;
+        this.maxPooled = maxPooled;
+    }
+
+    /**
+     * @return a cleared frame, a new one is created if the pool is empty
+     */
+    public Frame acquire(){
+        Frame frame;
+        synchronized(frames){
+            frame = frames.pollFirst();
+        }
+        if(frame == null){
+            ByteBuffer buffer = direct? ByteBuffer.allocateDirect(bufferSize) : ByteBuffer.allocate(bufferSize);
+            return new Frame(buffer, this);
+        }
+        frame.reuse();
+        return frame;
+    }
+
+    void release(Frame frame){
+        synchronized(frames){
+            if(frames.size() < maxPooled)
+                frames.addFirst(frame);
+        }
+    }
+
+    public int getBufferSize(){
+        return bufferSize;
+    }
+
+    public boolean isDirect(){
+        return direct;
+    }
+}
@@ -0,0 +1,214 @@
+package com.vincentcodes.io.udpframes;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Binary format of the selective acks inside a report frame. The
+ * cumulative ack is stored in {@link Frame#seq}, the selective acks
+ * (after the receive window) only describe the frames above it.
+ * <p>
+ * The first byte tells the format:
+ * <ul>
+ * <li>{@link #NONE} - nothing is received above the cumulative ack (the
+ * selective acks may be empty as well)</li>
+ * <li>{@link #BITMAP} - bit i (most significant bit first) tells whether
+ * frame {@code cumulative + 1 + i} is received</li>
+ * <li>{@link #RUNS} - variable length ints which are the lengths of
+ * missing and received runs in turn, starting from the cumulative ack
+ * (which is always missing)</li>
+ * </ul>
+ * The encoder picks the shorter format, so one report describes around
+ * 11k frames with a bitmap or any number of frames as long as the gaps
+ * are few.
+ * <p>
+ * Nothing is allocated when encoding or decoding. Buffers are accessed
+ * with absolute indexes (heap or direct). The decoder is a cursor, reuse
+ * one instance for every report:
+ * <pre>
+ * int offset = Frame.HEADER_LENGTH + Frame.WINDOW_LENGTH;
+ * reader.wrap(frame.seq, frame.getBuffer(), offset, frame.getPayloadLength() - Frame.WINDOW_LENGTH);
+ * while(reader.nextRange()){
+ *     // frames [reader.getRangeStart(), reader.getRangeEnd()) are received
+ * }
+ * </pre>
+ */
+public class SackReport {
+    public static final int NONE = 0;
+    public static final int BITMAP = 1;
+    public static final int RUNS = 2;
+
+    /**
+     * Tells the encoder which frames are received
+     */
+    @FunctionalInterface
+    public interface ReceivedFrames {
+        boolean contains(int seq);
+    }
+
+    /**
+     * @param cumulative frames below it are all received
+     * @param highest the highest seq received
+     * @param maxLength the report is truncated (frames on top are left
+     * out) if it does not fit
+     * @return number of bytes written into {@code dst}
+     */
+    public static int encode(int cumulative, int highest, ReceivedFrames received, ByteBuffer dst, int offset, int maxLength){
+        if(highest <= cumulative || maxLength < 2){
+            dst.put(offset, (byte)NONE);
+            return 1;
+        }
+        int bitmapLength = 1 + (highest - cumulative + 7) / 8;
+        if(bitmapLength <= maxLength && bitmapLength <= runsLength(cumulative, highest, received)){
+            return encodeBitmap(cumulative, highest, received, dst, offset);
+        }
+        return encodeRuns(cumulative, highest, received, dst, offset, maxLength);
+    }
+
+    private static int encodeBitmap(int cumulative, int highest, ReceivedFrames received, ByteBuffer dst, int offset){
+        int pos = offset;
+        dst.put(pos++, (byte)BITMAP);
+        for(int seq = cumulative+1; seq <= highest; seq += 8){
+            int bits = 0;
+            for(int bit = 0; bit < 8; bit++){
+                if(seq + bit <= highest && received.contains(seq + bit))
+                    bits |= 0x80 >>> bit;
+            }
+            dst.put(pos++, (byte)bits);
+        }
+        return pos - offset;
+    }
+
+    private static int encodeRuns(int cumulative, int highest, ReceivedFrames received, ByteBuffer dst, int offset, int maxLength){
+        int pos = offset;
+        int end = offset + maxLength;
+        dst.put(pos++, (byte)RUNS);
+        int seq = cumulative;
+        boolean state = false; // runs start with missing frames
+        while(seq <= highest){
+            int runStart = seq;
+            while(seq <= highest && received.contains(seq) == state) seq++;
+            int runLength = seq - runStart;
+            // a missing run is useless without the received run after it
+            int needed = varIntLength(runLength) + (state? 0 : 1);
+            if(pos + needed > end) break;
+            pos = writeVarInt(dst, pos, runLength);
+            state = !state;
+        }
+        return pos - offset;
+    }
+
+    private static int runsLength(int cumulative, int highest, ReceivedFrames received){
+        int length = 1;
+        int seq = cumulative;
+        boolean state = false;
+        while(seq <= highest){
+            int runStart = seq;
+            while(seq <= highest && received.contains(seq) == state) seq++;
+            length += varIntLength(seq - runStart);
+            state = !state;
+        }
+        return length;
+    }
+
+    private static int writeVarInt(ByteBuffer dst, int pos, int value){
+        while((value & ~0x7f) != 0){
+            dst.put(pos++, (byte)((value & 0x7f) | 0x80));
+            value >>>= 7;
+        }
+        dst.put(pos++, (byte)value);
+        return pos;
+    }
+
+    private static int varIntLength(int value){
+        int length = 1;
+        while((value & ~0x7f) != 0){
+            value >>>= 7;
+            length++;
+        }
+        return length;
+    }
+
+    private ByteBuffer payload;
+    private int pos;
+    private int end;
+    private int format;
+    private int seq;
+    private int bitmapOffset;
+    private int bitmapFirstSeq;
+    private int rangeStart;
+    private int rangeEnd;
+
+    /**
+     * Start reading a report payload
+     */
+    public void wrap(int cumulative, ByteBuffer payload, int offset, int length){
+        this.payload = payload;
+        this.pos = offset;
+        this.end = offset + length;
+        this.format = length > 0? payload.get(pos++) : NONE;
+        this.seq = format == BITMAP? cumulative+1 : cumulative;
+        this.bitmapOffset = pos;
+        this.bitmapFirstSeq = cumulative+1;
+    }
+
+    /**
+     * Move to the next range of received frames
+     * @return false if there are no more ranges
+     */
+    public boolean nextRange(){
+        if(format == BITMAP){
+            while(seq < maxBitmapSeq() && !bitAt(seq)) seq++;
+            if(seq >= maxBitmapSeq()) return false;
+            rangeStart = seq;
+            while(seq < maxBitmapSeq() && bitAt(seq)) seq++;
+            rangeEnd = seq;
+            return true;
+        }
+        if(format == RUNS){
+            if(pos >= end) return false;
+            seq += readVarInt();
+            if(pos >= end) return false;
+            rangeStart = seq;
+            seq += readVarInt();
+            rangeEnd = seq;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return first frame of the range (inclusive)
+     */
+    public int getRangeStart(){
+        return rangeStart;
+    }
+
+    /**
+     * @return last frame of the range (exclusive)
+     */
+    public int getRangeEnd(){
+        return rangeEnd;
+    }
+
+    // frames described by the bitmap end at this seq (exclusive)
+    private int maxBitmapSeq(){
+        return bitmapFirstSeq + (end - bitmapOffset) * 8;
+    }
+
+    private boolean bitAt(int seq){
+        int bit = seq - bitmapFirstSeq;
+        return (payload.get(bitmapOffset + bit / 8) & (0x80 >>> (bit % 8))) != 0;
+    }
+
+    private int readVarInt(){
+        int value = 0;
+        int shift = 0;
+        while(pos < end){
+            int b = payload.get(pos++);
+            value |= (b & 0x7f) << shift;
+            if((b & 0x80) == 0) break;
+            shift += 7;
+        }
+        return value;
+    }
+}
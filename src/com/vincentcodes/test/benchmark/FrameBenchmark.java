@@ -0,0 +1,106 @@
+package com.vincentcodes.test.benchmark;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.vincentcodes.io.UdpSocket;
+import com.vincentcodes.io.udpframes.Frame;
+
+/**
+ * Writing and reading the header of a frame, with and without an
+ * attached ack. The payload is not touched, frames are sent and
+ * received in place.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FrameBenchmark {
+    @Param({"false", "true"})
+    public boolean ackAttached;
+
+    private Frame outgoing;
+    private Frame incoming;
+    private ByteBuffer header;
+    private ByteBuffer trailer;
+    private int length;
+
+    @Setup
+    public void setup(){
+        outgoing = new Frame(ByteBuffer.allocateDirect(UdpSocket.PACKET_LENGTH + Frame.ACK_LENGTH));
+        header = ByteBuffer.allocateDirect(Frame.HEADER_LENGTH);
+        trailer = ByteBuffer.allocateDirect(Frame.ACK_LENGTH);
+
+        // a full data frame to decode
+        ByteBuffer buffer = ByteBuffer.allocateDirect(UdpSocket.PACKET_LENGTH + Frame.ACK_LENGTH);
+        int type = Frame.typeByte(Frame.DATA, true, 0);
+        if(ackAttached) type |= Frame.ACK_ATTACHED;
+        Frame.encodeHeader(buffer, 0, type, 1, 42, 7);
+        length = UdpSocket.PACKET_LENGTH;
+        if(ackAttached){
+            buffer.position(length);
+            Frame.encodeAck(buffer, 1, 41, 1 << 20);
+            length += Frame.ACK_LENGTH;
+        }
+        buffer.clear();
+        incoming = new Frame(buffer);
+    }
+
+    /**
+     * What the listener does with every datagram
+     */
+    @Benchmark
+    public int decode(){
+        ByteBuffer buffer = incoming.getBuffer();
+        buffer.clear().limit(length);
+        incoming.decode();
+        return incoming.seq + incoming.ackMsgId;
+    }
+
+    /**
+     * A frame built inside its own buffer (reports, window updates)
+     */
+    @Benchmark
+    public ByteBuffer encode(){
+        outgoing.type = Frame.END;
+        outgoing.streamId = 1;
+        outgoing.msgId = 42;
+        outgoing.seq = 7;
+        ByteBuffer payload = outgoing.beginPayload();
+        payload.position(payload.position() + UdpSocket.PAYLOAD_LENGTH);
+        return outgoing.encode();
+    }
+
+    /**
+     * What the sender does for every data frame: the header and the
+     * trailer are written into their own buffers, the payload is sent
+     * from the message
+     */
+    @Benchmark
+    public int encodeHeader(){
+        header.clear();
+        trailer.clear();
+        int type = Frame.typeByte(Frame.DATA, false, 0);
+        if(ackAttached){
+            Frame.encodeAck(trailer, 1, 41, 1 << 20);
+            type |= Frame.ACK_ATTACHED;
+        }
+        trailer.flip();
+        Frame.encodeHeader(header, 0, type, 1, 42, 7);
+        return header.limit() + trailer.limit();
+    }
+}
@@ -0,0 +1,164 @@
+package com.vincentcodes.test.benchmark;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayDeque;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.BenchmarkParams;
+
+import com.vincentcodes.io.UdpServerSocket;
+import com.vincentcodes.io.UdpSocket;
+
+/**
+ * Reliable udp against tcp over the loopback interface (replaces the
+ * performanceTest() of the manual Client and Server).
+ * <ul>
+ * <li>latency - a message goes to the peer and comes back</li>
+ * <li>throughput - messages flow one way, multiply the score by the
+ * size to get bytes per second. At most {@link #MAX_PENDING} messages
+ * wait for their ack at the same time, tcp is held back by its own
+ * buffers.</li>
+ * </ul>
+ */
+@State(Scope.Thread)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class LoopbackBenchmark {
+    private static final int MAX_PENDING = 16;
+
+    @Param({"reliable", "tcp"})
+    public String transport;
+
+    @Param({"64", "1024", "65536", "1048576"})
+    public int size;
+
+    private byte[] message;
+    private byte[] response;
+    private Thread peerThread;
+
+    // reliable
+    private UdpServerSocket server;
+    private UdpSocket client;
+    private UdpSocket peer;
+    private final ArrayDeque<CompletableFuture<Void>> pending = new ArrayDeque<>();
+
+    // tcp
+    private ServerSocket tcpServer;
+    private Socket tcpClient;
+    private Socket tcpPeer;
+    private OutputStream out;
+    private DataInputStream in;
+
+    @Setup
+    public void setup(BenchmarkParams params) throws IOException{
+        message = new byte[size];
+        response = new byte[size];
+        boolean echo = params.getBenchmark().endsWith("latency");
+        if(transport.equals("reliable")){
+            server = new UdpServerSocket(0, true);
+            server.startListening();
+            client = UdpSocket.create("127.0.0.1", server.getLocalPort());
+            client.send(new byte[1]);
+            peer = server.accept();
+            peer.recv();
+            peerThread = new Thread(() -> serveReliable(echo), "Benchmark peer");
+        }else{
+            InetAddress loopback = InetAddress.getLoopbackAddress();
+            tcpServer = new ServerSocket(0, 1, loopback);
+            tcpClient = new Socket(loopback, tcpServer.getLocalPort());
+            tcpPeer = tcpServer.accept();
+            tcpClient.setTcpNoDelay(true);
+            tcpPeer.setTcpNoDelay(true);
+            out = tcpClient.getOutputStream();
+            in = new DataInputStream(tcpClient.getInputStream());
+            peerThread = new Thread(() -> serveTcp(echo), "Benchmark peer");
+        }
+        peerThread.setDaemon(true);
+        peerThread.start();
+    }
+
+    private void serveReliable(boolean echo){
+        try{
+            byte[] received;
+            while((received = peer.recv()) != null){
+                if(echo) peer.sendAsync(received);
+            }
+        }catch(IOException e){
+            // closed by tearDown()
+        }
+    }
+
+    private void serveTcp(boolean echo){
+        byte[] buffer = new byte[size];
+        try(DataInputStream peerIn = new DataInputStream(tcpPeer.getInputStream()); OutputStream peerOut = tcpPeer.getOutputStream()){
+            while(true){
+                peerIn.readFully(buffer);
+                if(echo) peerOut.write(buffer);
+            }
+        }catch(IOException e){
+            // closed by tearDown()
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws IOException{
+        if(client != null){
+            for(CompletableFuture<Void> future : pending){
+                future.join();
+            }
+            pending.clear();
+            client.close();
+            peer.close();
+            server.close();
+        }else{
+            tcpClient.close();
+            tcpPeer.close();
+            tcpServer.close();
+        }
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public byte[] latency() throws IOException{
+        if(client != null){
+            client.sendAsync(message);
+            return client.recv();
+        }
+        out.write(message);
+        in.readFully(response);
+        return response;
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    public void throughput() throws IOException{
+        if(client != null){
+            if(pending.size() >= MAX_PENDING)
+                pending.pollFirst().join();
+            pending.add(client.sendAsync(message));
+            return;
+        }
+        out.write(message);
+    }
+}
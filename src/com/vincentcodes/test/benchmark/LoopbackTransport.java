@@ -0,0 +1,108 @@
+package com.vincentcodes.test.benchmark;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import com.vincentcodes.io.PacketTransport;
+
+/**
+ * Hands the packets to the peer inside the same process. Losses follow
+ * a fixed pattern (the last {@code burst} packets of every
+ * {@code period} are dropped, in both directions), so that every run
+ * drops the same packets.
+ */
+class LoopbackTransport implements PacketTransport{
+    private final LinkedBlockingQueue<byte[]> queue = new LinkedBlockingQueue<>();
+    private final int period;
+    private final int burst;
+    private LoopbackTransport peer;
+    private long sent = 0; // guarded by this
+    private volatile boolean closed = false;
+
+    private LoopbackTransport(int period, int burst){
+        this.period = period;
+        this.burst = burst;
+    }
+
+    /**
+     * @param period 0 drops nothing
+     */
+    static LoopbackTransport[] pair(int period, int burst){
+        LoopbackTransport a = new LoopbackTransport(period, burst);
+        LoopbackTransport b = new LoopbackTransport(period, burst);
+        a.peer = b;
+        b.peer = a;
+        return new LoopbackTransport[]{a, b};
+    }
+
+    /**
+     * @param pattern none, 1% (1 packet out of 100) or burst (10 packets
+     * in a row out of 1000)
+     */
+    static LoopbackTransport[] pair(String pattern){
+        switch(pattern){
+            case "none": return pair(0, 0);
+            case "1%": return pair(100, 1);
+            case "burst": return pair(1000, 10);
+            default: throw new IllegalArgumentException("Unknown loss pattern: " + pattern);
+        }
+    }
+
+    private synchronized boolean drop(){
+        return period > 0 && sent++ % period >= period - burst;
+    }
+
+    @Override
+    public void send(ByteBuffer datagram) throws IOException{
+        if(drop()) return;
+        byte[] packet = new byte[datagram.remaining()];
+        datagram.get(packet);
+        peer.queue.add(packet);
+    }
+
+    @Override
+    public void send(ByteBuffer header, ByteBuffer payload, ByteBuffer trailer) throws IOException{
+        if(drop()) return;
+        byte[] packet = new byte[header.remaining() + payload.remaining() + trailer.remaining()];
+        ByteBuffer.wrap(packet).put(header).put(payload).put(trailer);
+        peer.queue.add(packet);
+    }
+
+    @Override
+    public void receive(ByteBuffer dst) throws IOException{
+        try{
+            while(!closed){
+                byte[] packet = queue.poll(100, TimeUnit.MILLISECONDS);
+                if(packet != null){
+                    dst.put(packet, 0, Math.min(packet.length, dst.remaining()));
+                    return;
+                }
+            }
+        }catch(InterruptedException ignored){}
+        throw new SocketException("Socket is closed");
+    }
+
+    @Override
+    public InetSocketAddress getRemoteAddress(){
+        return null;
+    }
+
+    @Override
+    public String getRemoteName(){
+        return "loopback";
+    }
+
+    @Override
+    public boolean isClosed(){
+        return closed;
+    }
+
+    @Override
+    public void close(){
+        closed = true;
+    }
+}
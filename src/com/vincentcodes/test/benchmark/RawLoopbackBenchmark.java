@@ -0,0 +1,78 @@
+package com.vincentcodes.test.benchmark;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.vincentcodes.io.UdpServerSocket;
+import com.vincentcodes.io.UdpSocket;
+
+/**
+ * Round trip of one datagram through "raw" sockets over the loopback
+ * interface, the floor under {@link LoopbackBenchmark#latency()}. Raw
+ * sockets do not re-send anything, messages are kept within one packet
+ * (a lost packet would stall the benchmark).
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RawLoopbackBenchmark {
+    @Param({"64", "1024"})
+    public int size;
+
+    private UdpServerSocket server;
+    private UdpSocket client;
+    private UdpSocket peer;
+    private byte[] message;
+
+    @Setup
+    public void setup() throws IOException{
+        message = new byte[size];
+        server = new UdpServerSocket(0, false);
+        server.startListening();
+        client = UdpSocket.createRaw("127.0.0.1", server.getLocalPort());
+        client.send(message);
+        peer = server.accept();
+        peer.recv();
+        Thread echo = new Thread(() -> {
+            try{
+                byte[] received;
+                while((received = peer.recv()) != null){
+                    peer.send(received);
+                }
+            }catch(IOException e){
+                // closed by tearDown()
+            }
+        }, "Benchmark peer");
+        echo.setDaemon(true);
+        echo.start();
+    }
+
+    @TearDown
+    public void tearDown() throws IOException{
+        client.close();
+        peer.close();
+        server.close();
+    }
+
+    @Benchmark
+    public byte[] latency() throws IOException{
+        client.send(message);
+        return client.recv();
+    }
+}
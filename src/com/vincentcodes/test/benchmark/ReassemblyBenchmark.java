@@ -0,0 +1,66 @@
+package com.vincentcodes.test.benchmark;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.vincentcodes.io.UdpSocket;
+
+/**
+ * Time from sending a message until {@code recv()} returns it on the
+ * other side, without the kernel in between. Measures the sliding
+ * window, the re-ordering of the frames and the recovery of the lost
+ * ones (see {@link LoopbackTransport#pair(String)} for the patterns).
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ReassemblyBenchmark {
+    @Param({"1024", "65536", "1048576"})
+    public int size;
+
+    @Param({"none", "1%", "burst"})
+    public String loss;
+
+    private UdpSocket sender;
+    private UdpSocket receiver;
+    private byte[] message;
+
+    @Setup
+    public void setup(){
+        LoopbackTransport[] transports = LoopbackTransport.pair(loss);
+        sender = UdpSocket.create(transports[0]);
+        receiver = UdpSocket.create(transports[1]);
+        // a burst may hit the same frame several times, the backoff of
+        // its re-sends can outlast the default read timeout
+        receiver.setReadTimeout(0);
+        message = new byte[size];
+    }
+
+    @TearDown
+    public void tearDown() throws IOException{
+        sender.close();
+        receiver.close();
+    }
+
+    @Benchmark
+    public byte[] sendAndReceive() throws IOException{
+        sender.sendAsync(message);
+        return receiver.recv();
+    }
+}
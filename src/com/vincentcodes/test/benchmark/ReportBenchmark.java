@@ -0,0 +1,84 @@
+package com.vincentcodes.test.benchmark;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.vincentcodes.io.UdpSocket;
+import com.vincentcodes.io.udpframes.Frame;
+import com.vincentcodes.io.udpframes.SackReport;
+
+/**
+ * Encoding and decoding the selective acks of a report for a window of
+ * {@link #FRAMES} frames with different holes in it.
+ * <ul>
+ * <li>tail - only the first frame is missing</li>
+ * <li>sparse - every 100th frame is missing (runs)</li>
+ * <li>random - 10% of the frames are missing at random (bitmap)</li>
+ * </ul>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ReportBenchmark {
+    private static final int FRAMES = 4096;
+    private static final int MAX_LENGTH = UdpSocket.PAYLOAD_LENGTH - Frame.WINDOW_LENGTH;
+
+    @Param({"tail", "sparse", "random"})
+    public String pattern;
+
+    private boolean[] received;
+    private SackReport.ReceivedFrames frames;
+    private ByteBuffer buffer;
+    private int length;
+    private final SackReport reader = new SackReport();
+
+    @Setup
+    public void setup(){
+        received = new boolean[FRAMES];
+        Random random = new Random(0);
+        for(int seq = 1; seq < FRAMES; seq++){
+            switch(pattern){
+                case "tail": received[seq] = true; break;
+                case "sparse": received[seq] = seq % 100 != 0; break;
+                default: received[seq] = random.nextInt(10) != 0;
+            }
+        }
+        frames = seq -> received[seq];
+        buffer = ByteBuffer.allocateDirect(MAX_LENGTH);
+        length = SackReport.encode(0, FRAMES - 1, frames, buffer, 0, MAX_LENGTH);
+    }
+
+    @Benchmark
+    public int encode(){
+        return SackReport.encode(0, FRAMES - 1, frames, buffer, 0, MAX_LENGTH);
+    }
+
+    /**
+     * Walk through every received range, like the sender does
+     */
+    @Benchmark
+    public int decode(){
+        int acked = 0;
+        reader.wrap(0, buffer, 0, length);
+        while(reader.nextRange()){
+            acked += reader.getRangeEnd() - reader.getRangeStart();
+        }
+        return acked;
+    }
+}
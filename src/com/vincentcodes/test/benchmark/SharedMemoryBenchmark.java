@@ -0,0 +1,122 @@
+package com.vincentcodes.test.benchmark;
+
+import java.io.IOException;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.vincentcodes.io.DatagramTransport;
+import com.vincentcodes.io.PacketTransport;
+import com.vincentcodes.io.SharedMemoryTransport;
+import com.vincentcodes.io.WaitStrategy;
+
+/**
+ * Round trip of one packet through the transports alone (no socket on
+ * top): a {@link SharedMemoryTransport} with each wait strategy against
+ * a {@link DatagramTransport} over loopback.
+ * <p>
+ * {@code pauseUs} waits (spinning) before every packet, so that the
+ * listener of the peer goes idle first. Subtract it from the score to
+ * get what waking up the listener costs.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SharedMemoryBenchmark {
+    @Param({"udp", "BLOCKING", "YIELDING", "BUSY_SPIN"})
+    public String transport;
+
+    @Param({"0", "2000"})
+    public int pauseUs;
+
+    private static final int SIZE = 64;
+
+    private Path file;
+    private PacketTransport client;
+    private PacketTransport peer;
+    private final ByteBuffer message = ByteBuffer.allocateDirect(SIZE);
+    private final ByteBuffer response = ByteBuffer.allocateDirect(SIZE);
+
+    @Setup
+    public void setup() throws IOException{
+        if(transport.equals("udp")){
+            int clientPort = freePort();
+            int peerPort = freePort();
+            client = new DatagramTransport(new InetSocketAddress("127.0.0.1", clientPort), new InetSocketAddress("127.0.0.1", peerPort));
+            peer = new DatagramTransport(new InetSocketAddress("127.0.0.1", peerPort), new InetSocketAddress("127.0.0.1", clientPort));
+        }else{
+            file = Files.createTempFile("shm-benchmark", null);
+            SharedMemoryTransport created = SharedMemoryTransport.create(file, SharedMemoryTransport.MIN_CAPACITY);
+            SharedMemoryTransport opened = SharedMemoryTransport.open(file);
+            created.setWaitStrategy(WaitStrategy.valueOf(transport));
+            opened.setWaitStrategy(WaitStrategy.valueOf(transport));
+            client = created;
+            peer = opened;
+        }
+        Thread echo = new Thread(this::echo, "Benchmark peer");
+        echo.setDaemon(true);
+        echo.start();
+    }
+
+    private static int freePort() throws IOException{
+        try(DatagramSocket socket = new DatagramSocket(0)){
+            return socket.getLocalPort();
+        }
+    }
+
+    private void echo(){
+        ByteBuffer buffer = ByteBuffer.allocateDirect(SIZE);
+        try{
+            while(true){
+                buffer.clear();
+                peer.receive(buffer);
+                buffer.flip();
+                peer.send(buffer);
+            }
+        }catch(IOException e){
+            // closed by tearDown()
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws IOException{
+        client.close();
+        peer.close();
+        if(file != null)
+            Files.deleteIfExists(file);
+    }
+
+    @Benchmark
+    public ByteBuffer latency() throws IOException{
+        if(pauseUs > 0){
+            long until = System.nanoTime() + TimeUnit.MICROSECONDS.toNanos(pauseUs);
+            while(System.nanoTime() < until){
+                Thread.onSpinWait();
+            }
+        }
+        message.clear();
+        client.send(message);
+        response.clear();
+        client.receive(response);
+        return response;
+    }
+}
@@ -30,6 +30,10 @@ public class Client {
                     // fis.close();
                     // socket.close();
 
+                    // Method 3: Send the file straight from disk (the heap does not grow with the file)
+                    // socket.sendFile(Paths.get("resource/test.mp3"));
+                    // socket.close();
+
                     // Method 2: Send data by separation (re-ordering happens each time you call send())
                     //           But this is better for streaming where few packets fit the data you need
                     // byte[] payload = new byte[131072];
@@ -0,0 +1,117 @@
+package com.vincentcodes.test.manual;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+
+import com.vincentcodes.io.ImpairedTransport;
+import com.vincentcodes.io.PacketTransport;
+import com.vincentcodes.io.UdpServerSocket;
+import com.vincentcodes.io.UdpSocket;
+
+/**
+ * Runs the same transfers over loopback with different kinds of bad
+ * networks (both directions impaired, fixed seeds). For each one it
+ * prints the throughput of a bulk transfer and the round trip times of
+ * small messages, the slow ones are those which had to be recovered.
+ * <p>
+ * The client is a normal {@link UdpSocket} and the echo side is accepted
+ * by a {@link UdpServerSocket} (engine: first argument, NIO by default),
+ * both wrap their transports in an {@link ImpairedTransport}.
+ */
+public class ImpairedNetwork {
+    private static final int BULK_SIZE = 8 * 1024 * 1024;
+    private static final int ECHOES = 500;
+
+    private static UdpServerSocket.Engine engine = UdpServerSocket.Engine.NIO;
+
+    public static void main(String[] args) throws Exception{
+        if(args.length > 0)
+            engine = UdpServerSocket.Engine.valueOf(args[0]);
+        run("clean", transport -> {});
+        run("2% loss", transport -> transport.setLoss(0.02));
+        run("bursts of 3", transport -> transport.setBurstLoss(0.005, 3));
+        run("20ms +-5ms, 5% reordered", transport -> {
+            transport.setDelay(20, 5);
+            transport.setReorder(0.05, 10);
+        });
+        run("5% duplicated", transport -> transport.setDuplicate(0.05));
+        run("10MB/s, 50ms queue", transport -> transport.setBandwidth(10_000_000, 50));
+    }
+
+    private static void run(String name, Consumer<ImpairedTransport> profile) throws Exception{
+        List<ImpairedTransport> transports = new CopyOnWriteArrayList<>();
+        UdpServerSocket server = new UdpServerSocket(0, true, engine);
+        server.setTransportWrapper(transport -> impair(transport, 2, profile, transports));
+        server.startListening();
+        UdpSocket a = UdpSocket.create("127.0.0.1", server.getLocalPort(), transport -> impair(transport, 1, profile, transports));
+        // the retransmission timeout backs off up to 3s under heavy loss
+        a.setReadTimeout(10000);
+        System.out.println("[*] " + name + " (" + engine + ")");
+
+        UdpSocket[] accepted = new UdpSocket[1];
+        Thread echo = new Thread(){
+            public void run(){
+                try{
+                    UdpSocket b = server.accept();
+                    accepted[0] = b;
+                    b.setReadTimeout(10000);
+                    b.recv();
+                    for(int i = 0; i < ECHOES; i++){
+                        byte[] message = b.recv();
+                        if(message == null) return; // the run has failed
+                        b.send(message);
+                    }
+                }catch(IOException e){
+                    if(!server.isClosed())
+                        e.printStackTrace();
+                }
+            }
+        };
+        echo.start();
+
+        try{
+            byte[] bulk = new byte[BULK_SIZE];
+            new Random(0).nextBytes(bulk);
+            long start = System.nanoTime();
+            a.send(bulk);
+            System.out.println("Bulk: " + BULK_SIZE / 1024 / 1024 + "MB in " + (System.nanoTime() - start) / 1_000_000 + "ms");
+
+            long[] rtts = new long[ECHOES];
+            byte[] message = new byte[64];
+            for(int i = 0; i < ECHOES; i++){
+                long sent = System.nanoTime();
+                a.send(message);
+                a.recv();
+                rtts[i] = System.nanoTime() - sent;
+            }
+            echo.join();
+            Arrays.sort(rtts);
+            System.out.println("Round trips (us): p50 " + rtts[ECHOES / 2] / 1000 + ", p99 " + rtts[ECHOES * 99 / 100] / 1000 + ", max " + rtts[ECHOES - 1] / 1000);
+            long sent = 0, dropped = 0, reordered = 0, duplicated = 0;
+            for(ImpairedTransport transport : transports){
+                sent += transport.getSent();
+                dropped += transport.getDropped();
+                reordered += transport.getReordered();
+                duplicated += transport.getDuplicated();
+            }
+            System.out.println("Packets sent: " + sent + ", dropped: " + dropped + ", reordered: " + reordered + ", duplicated: " + duplicated);
+            System.out.println("Sender: " + a.getMetrics() + ", timeouts: " + a.getMetrics().getTimeouts());
+            System.out.println("Receiver: " + accepted[0].getMetrics());
+        }catch(IOException e){
+            System.out.println("Failed: " + e.getMessage());
+        }
+        a.close();
+        server.close();
+    }
+
+    private static PacketTransport impair(PacketTransport transport, long seed, Consumer<ImpairedTransport> profile, List<ImpairedTransport> transports){
+        ImpairedTransport impaired = new ImpairedTransport(transport, seed);
+        profile.accept(impaired);
+        transports.add(impaired);
+        return impaired;
+    }
+}
@@ -49,6 +49,10 @@ class ServerThread extends Thread{
             // }
             // System.out.println("Total bytes read: " + totalRead);
 
+            // Receive a file sent with sendFile()
+            // long size = socket.receiveToFile(Paths.get("resource/received.mp3"));
+            // System.out.println("Total bytes received: " + size);
+
             // Echo Server
             // String msg = new String(socket.recv());
             // while(true){